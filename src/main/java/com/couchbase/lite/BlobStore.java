@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
@@ -32,6 +33,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.zip.GZIPInputStream;
 
+import com.couchbase.lite.support.BloomFilter;
 import com.couchbase.lite.util.Log;
 
 /**
@@ -176,6 +178,7 @@ public class BlobStore {
         if(file.canRead()) {
             // object with this hash already exists, we should delete tmp file and return true
             tmp.delete();
+            markRecentlyUsed(file);
             return true;
         } else {
             // does not exist, we should rename tmp file to this name
@@ -190,6 +193,7 @@ public class BlobStore {
         String path = pathForKey(outKey);
         File file = new File(path);
         if(file.canRead()) {
+            markRecentlyUsed(file);
             return true;
         }
 
@@ -276,12 +280,15 @@ public class BlobStore {
 
     public int deleteBlobsExceptWithKeys(List<BlobKey> keysToKeep) {
         int numDeleted = 0;
+        Set<BlobKey> keys = new HashSet<BlobKey>(keysToKeep);
         File file = new File(path);
         File[] contents = file.listFiles();
         for (File attachment : contents) {
             BlobKey attachmentKey = new BlobKey();
-            getKeyForFilename(attachmentKey, attachment.getPath());
-            if(!keysToKeep.contains(attachmentKey)) {
+            if(!getKeyForFilename(attachmentKey, attachment.getPath())) {
+                continue;   // not a blob (eg. the temp directory or an in-progress tmp file)
+            }
+            if(!keys.contains(attachmentKey)) {
                 boolean result = attachment.delete();
                 if(result) {
                     ++numDeleted;
@@ -294,6 +301,51 @@ public class BlobStore {
         return numDeleted;
     }
 
+    /**
+     * The sweep half of incremental attachment garbage collection. Deletes the blobs whose
+     * hex names start with namePrefix (so the store can be swept in batches) and aren't in
+     * keysToKeep, which holds hex digests. Blobs stored or re-stored at or after
+     * protectedSince (a time in ms) are kept regardless, since they may belong to revisions
+     * that are still being saved.
+     *
+     * Directory entries are examined as they're listed, without building an array of them.
+     */
+    public int deleteBlobsExcept(final BloomFilter keysToKeep, final String namePrefix, final long protectedSince) {
+        final File directory = new File(path);
+        final int[] numDeleted = new int[1];
+        directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                if (!name.startsWith(namePrefix) || !name.endsWith(FILE_EXTENSION)) {
+                    return false;
+                }
+                String hex = name.substring(0, name.length() - FILE_EXTENSION.length());
+                if (keysToKeep.mightContain(hex)) {
+                    return false;
+                }
+                File attachment = new File(directory, name);
+                if (attachment.lastModified() >= protectedSince) {
+                    return false;
+                }
+                if (attachment.delete()) {
+                    ++numDeleted[0];
+                } else {
+                    Log.e(Log.TAG_BLOB_STORE, "Error deleting attachment: %s", attachment);
+                }
+                return false;
+            }
+        });
+        return numDeleted[0];
+    }
+
+    /**
+     * Bumps a blob file's modification time when it's stored again, so that a garbage
+     * collection that started before it was referenced won't delete it.
+     */
+    /* package */ static void markRecentlyUsed(File file) {
+        file.setLastModified(System.currentTimeMillis());
+    }
+
     public int deleteBlobs() {
         return deleteBlobsExceptWithKeys(new ArrayList<BlobKey>());
     }
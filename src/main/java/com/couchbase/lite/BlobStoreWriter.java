@@ -139,6 +139,7 @@ public class BlobStoreWriter {
         if (result == false) {
             cancel();
         }
+        BlobStore.markRecentlyUsed(destPathFile);
 
         tempFile = null;
 
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The built-in reduce functions, equivalent to CouchDB's "_count", "_sum" and "_stats".
+ *
+ * Pass one of these to View.setMapReduce() instead of a custom Reducer. Reduced and grouped
+ * queries of such a view are then computed by SQLite, from the numeric value of each emitted
+ * row, without loading the rows into Java. (_sum and _stats only consider values that are
+ * numbers; others are ignored.)
+ */
+public final class BuiltinReducer implements Reducer {
+
+    /** Counts the rows. */
+    @InterfaceAudience.Public
+    public static final BuiltinReducer COUNT = new BuiltinReducer("_count");
+
+    /** Adds up the values of the rows. */
+    @InterfaceAudience.Public
+    public static final BuiltinReducer SUM = new BuiltinReducer("_sum");
+
+    /**
+     * Computes the sum, count, min, max and sum of squares of the values of the rows, as a map
+     * with those keys ("sum", "count", "min", "max", "sumsqr").
+     */
+    @InterfaceAudience.Public
+    public static final BuiltinReducer STATS = new BuiltinReducer("_stats");
+
+    private final String name;
+
+    private BuiltinReducer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the built-in reducer with this name ("_count", "_sum" or "_stats"), or null.
+     */
+    @InterfaceAudience.Public
+    public static BuiltinReducer forName(String name) {
+        if (COUNT.name.equals(name)) {
+            return COUNT;
+        } else if (SUM.name.equals(name)) {
+            return SUM;
+        } else if (STATS.name.equals(name)) {
+            return STATS;
+        }
+        return null;
+    }
+
+    @InterfaceAudience.Public
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object reduce(List<Object> keys, List<Object> values, boolean rereduce) {
+        if (this == COUNT) {
+            if (!rereduce) {
+                return (long) values.size();
+            }
+            long count = 0;
+            for (Object value : values) {
+                count += ((Number) value).longValue();
+            }
+            return count;
+        } else if (this == SUM) {
+            return View.totalValues(values);
+        }
+
+        Aggregate aggregate = new Aggregate();
+        for (Object value : values) {
+            if (!rereduce) {
+                if (value instanceof Number) {
+                    double number = ((Number) value).doubleValue();
+                    aggregate.add(1, 1, number, number, number, number * number);
+                }
+            } else if (value instanceof Map) {
+                Map<String, Object> stats = (Map<String, Object>) value;
+                long count = ((Number) stats.get("count")).longValue();
+                if (count > 0) {
+                    aggregate.add(count, count, ((Number) stats.get("sum")).doubleValue(),
+                            ((Number) stats.get("min")).doubleValue(), ((Number) stats.get("max")).doubleValue(),
+                            ((Number) stats.get("sumsqr")).doubleValue());
+                }
+            }
+        }
+        return valueOf(aggregate);
+    }
+
+    /**
+     * The reduced value of a group of rows, given the aggregates of their values.
+     */
+    /* package */ Object valueOf(Aggregate aggregate) {
+        if (this == COUNT) {
+            return aggregate.rowCount;
+        } else if (this == SUM) {
+            return aggregate.sum;
+        }
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("sum", aggregate.sum);
+        stats.put("count", aggregate.count);
+        stats.put("min", aggregate.count > 0 ? aggregate.min : null);
+        stats.put("max", aggregate.count > 0 ? aggregate.max : null);
+        stats.put("sumsqr", aggregate.sumsqr);
+        return stats;
+    }
+
+    /**
+     * Running totals over a group of rows: the number of rows, and the count, sum, min, max and
+     * sum of squares of those values that are numbers.
+     */
+    /* package */ static class Aggregate {
+        long rowCount;
+        long count;
+        double sum;
+        double min;
+        double max;
+        double sumsqr;
+
+        void add(long rowCount, long count, double sum, double min, double max, double sumsqr) {
+            if (count > 0) {
+                this.min = (this.count > 0) ? Math.min(this.min, min) : min;
+                this.max = (this.count > 0) ? Math.max(this.max, max) : max;
+            }
+            this.rowCount += rowCount;
+            this.count += count;
+            this.sum += sum;
+            this.sumsqr += sumsqr;
+        }
+    }
+}
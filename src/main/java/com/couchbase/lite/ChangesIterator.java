@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.util.Log;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A pull-based iterator over the changes feed, in sequence order, returned by
+ * Database.getChanges(). Rows are read from an open database cursor as they're asked for,
+ * and revision bodies are only loaded (if include_docs is set) for rows that pass the filter.
+ *
+ * The cursor is closed once the iterator is exhausted or has returned 'limit' revisions; a
+ * caller that stops early must call close(). If reading a row fails, hasNext() and next()
+ * throw the SQLException (having closed the cursor), rather than ending the feed early.
+ * @exclude
+ */
+@InterfaceAudience.Private
+public class ChangesIterator implements Iterator<RevisionInternal>, Closeable {
+
+    private final Database database;
+    private final ChangesOptions options;
+    private final ReplicationFilter filter;
+    private Cursor cursor;
+    private RevisionInternal next;
+    private int returned;
+    private long lastSequence;
+
+    /* package */ ChangesIterator(Database database, Cursor cursor, long lastSequence, ChangesOptions options, ReplicationFilter filter) {
+        this.database = database;
+        this.cursor = cursor;
+        this.lastSequence = lastSequence;
+        this.options = options;
+        this.filter = filter;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = readNext();
+        }
+        return next != null;
+    }
+
+    @Override
+    public RevisionInternal next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        RevisionInternal rev = next;
+        next = null;
+        returned++;
+        return rev;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The sequence of the last row read from the database, or the 'since' sequence if none
+     * has been yet. Rows rejected by the filter still advance this.
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Closes the underlying cursor. Safe to call more than once.
+     */
+    @Override
+    public void close() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+    }
+
+    private RevisionInternal readNext() {
+        if (cursor == null) {
+            return null;
+        }
+        if (returned >= options.getLimit()) {
+            close();
+            return null;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                RevisionInternal rev = new RevisionInternal(cursor.getString(2), cursor.getString(3), (cursor.getInt(4) > 0), database);
+                rev.setSequence(cursor.getLong(5));
+                lastSequence = cursor.getLong(0);
+                Map<String, Object> paramsFixMe = null;  // TODO: these should not be null
+                if (!database.runFilter(filter, paramsFixMe, rev)) {
+                    continue;
+                }
+                if (options.isIncludeDocs()) {
+                    database.expandStoredJSONIntoRevisionWithAttachments(
+                            database.getRevisionJSON(rev.getSequence()), rev, options.getContentOptions());
+                }
+                // A winning rev reported for a change to a losing branch gets that change's
+                // sequence, so that the feed stays in order:
+                rev.setSequence(lastSequence);
+                return rev;
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error looking for changes", e);
+            close();
+            throw e;
+        }
+        close();
+        return null;
+    }
+}
@@ -0,0 +1,237 @@
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.support.BloomFilter;
+import com.couchbase.lite.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An incremental compaction of a Database, started by Database.compactIncrementally() or by
+ * the Manager's CompactionPolicy.
+ *
+ * The work is split into short steps, each in its own transaction, which run one at a time
+ * on the Manager's work executor with a pause in between:
+ * 1. Pruning revisions beyond maxRevTreeDepth, a range of documents at a time.
+ * 2. Deleting the JSON of non-current revisions, a range of sequences at a time.
+ * 3. Deleting unused attachments: marking the ones in use, then sweeping the blob store in
+ *    batches.
+ * 4. Returning free pages to the file system with SQLite's incremental vacuum (if the
+ *    database file has been converted to incremental auto-vacuum by a full compact()).
+ */
+public final class Compaction {
+
+    /**
+     * Receives progress updates from a Compaction. Called on the Manager's work executor.
+     */
+    public static interface ProgressListener {
+        /**
+         * @param compaction the compaction
+         * @param fractionComplete an estimate of the work done so far, from 0.0 to 1.0
+         */
+        void progress(Compaction compaction, double fractionComplete);
+
+        /**
+         * Called once the compaction has finished, been cancelled or failed.
+         */
+        void finished(Compaction compaction);
+    }
+
+    private enum Phase { PRUNE, CLEAR_BODIES, ATTACHMENTS, VACUUM, DONE }
+
+    // Share of the overall progress given to each phase:
+    private static final double PRUNE_END = 0.2;
+    private static final double CLEAR_BODIES_END = 0.75;
+    private static final double ATTACHMENTS_END = 0.8;
+
+    private final Database database;
+    private final CompactionPolicy policy;
+    private final ProgressListener listener;
+    private final ScheduledExecutorService executor;
+    private final CountDownLatch finishedLatch = new CountDownLatch(1);
+
+    private Phase phase = Phase.PRUNE;
+    private long position;          // last doc_id / sequence processed in the current phase
+    private long end;               // last doc_id / sequence to process in the current phase
+    private long initialFreePages;
+    private BloomFilter keysInUse;  // attachments referenced when the GC's mark step ran
+    private long markTime;
+    private volatile boolean cancelled;
+    private volatile double fractionComplete;
+    private volatile Throwable error;
+
+    /* package */ Compaction(Database database, CompactionPolicy policy, ProgressListener listener, ScheduledExecutorService executor) {
+        this.database = database;
+        this.policy = policy;
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    /**
+     * Stops the compaction after the step in progress, if any. Work already done is kept.
+     */
+    @InterfaceAudience.Public
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @InterfaceAudience.Public
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @InterfaceAudience.Public
+    public boolean isFinished() {
+        return finishedLatch.getCount() == 0;
+    }
+
+    @InterfaceAudience.Public
+    public double getFractionComplete() {
+        return fractionComplete;
+    }
+
+    /**
+     * The error that stopped the compaction, or null.
+     */
+    @InterfaceAudience.Public
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Blocks until the compaction has finished, been cancelled or failed.
+     */
+    @InterfaceAudience.Public
+    public void waitForCompletion() throws InterruptedException {
+        finishedLatch.await();
+    }
+
+    /* package */ void start() {
+        scheduleNextStep(0);
+    }
+
+    private void scheduleNextStep(long delay) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runStep();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void runStep() {
+        if (cancelled || !database.isOpen()) {
+            Log.v(Database.TAG, "%s: compaction cancelled", database);
+            finish();
+            return;
+        }
+        try {
+            step();
+        } catch (Throwable e) {
+            Log.e(Database.TAG, "Error compacting " + database, e);
+            error = e;
+            finish();
+            return;
+        }
+        if (listener != null) {
+            listener.progress(this, fractionComplete);
+        }
+        if (phase == Phase.DONE) {
+            finish();
+        } else {
+            scheduleNextStep(policy.getPauseBetweenSteps());
+        }
+    }
+
+    private void step() throws CouchbaseLiteException {
+        int stepSize = Math.max(policy.getSequencesPerStep(), 1);
+        switch (phase) {
+            case PRUNE:
+                if (end == 0) {
+                    end = database.getMaxDocNumericID();
+                }
+                if (position < end) {
+                    long last = Math.min(position + stepSize, end);
+                    database.pruneRevsInDocRange(position, last, 0);
+                    position = last;
+                }
+                fractionComplete = end > 0 ? PRUNE_END * position / end : PRUNE_END;
+                if (position >= end) {
+                    startPhase(Phase.CLEAR_BODIES, database.getLastSequenceNumber());
+                }
+                break;
+
+            case CLEAR_BODIES:
+                if (position < end) {
+                    long last = Math.min(position + stepSize, end);
+                    database.clearOldRevisionBodies(position, last);
+                    position = last;
+                }
+                fractionComplete = PRUNE_END + (CLEAR_BODIES_END - PRUNE_END) * (end > 0 ? (double) position / end : 1.0);
+                if (position >= end) {
+                    startPhase(Phase.ATTACHMENTS, 0);
+                }
+                break;
+
+            case ATTACHMENTS:
+                if (keysInUse == null) {
+                    markTime = System.currentTimeMillis();
+                    try {
+                        keysInUse = database.markAttachmentsInUse();
+                    } catch (SQLException e) {
+                        throw new CouchbaseLiteException(e, Status.DB_ERROR);
+                    }
+                    end = Database.ATTACHMENT_SWEEP_BATCHES;
+                } else {
+                    database.sweepAttachments(keysInUse, (int) position, markTime);
+                    position++;
+                }
+                fractionComplete = CLEAR_BODIES_END + (ATTACHMENTS_END - CLEAR_BODIES_END) * position / end;
+                if (position < end) {
+                    break;
+                }
+                keysInUse = null;
+                if (database.isIncrementalVacuumEnabled()) {
+                    initialFreePages = database.getFreePageCount();
+                    startPhase(Phase.VACUUM, 0);
+                } else {
+                    Log.v(Database.TAG, "%s: incremental vacuum not enabled; skipping. A full compact() enables it.", database);
+                    startPhase(Phase.DONE, 0);
+                }
+                break;
+
+            case VACUUM:
+                long freePages = database.incrementalVacuum(policy.getPagesPerVacuumStep());
+                fractionComplete = ATTACHMENTS_END + (1.0 - ATTACHMENTS_END) *
+                        (initialFreePages > 0 ? (double) (initialFreePages - freePages) / initialFreePages : 1.0);
+                if (freePages <= 0) {
+                    startPhase(Phase.DONE, 0);
+                }
+                break;
+
+            default:
+                break;
+        }
+        if (phase == Phase.DONE) {
+            fractionComplete = 1.0;
+            database.compactionFinished();
+        }
+    }
+
+    private void startPhase(Phase nextPhase, long nextEnd) {
+        phase = nextPhase;
+        position = 0;
+        end = nextEnd;
+    }
+
+    private void finish() {
+        database.forgetCompaction(this);
+        finishedLatch.countDown();
+        if (listener != null) {
+            listener.finished(this);
+        }
+    }
+}
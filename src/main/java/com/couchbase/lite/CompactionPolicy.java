@@ -0,0 +1,112 @@
+package com.couchbase.lite;
+
+/**
+ * Controls automatic, incremental compaction of the databases of a Manager (see
+ * ManagerOptions.setCompactionPolicy()) and the step size of Database.compactIncrementally().
+ *
+ * A database is compacted automatically when it is larger than the minimum size and either
+ * enough of its file is free pages, or enough revisions have been added since it was last
+ * compacted. The work is done in small steps on the Manager's work executor, with a pause
+ * between steps so that other database users are never blocked for long.
+ */
+public class CompactionPolicy {
+
+    private long minDatabaseSize = 10 * 1024 * 1024;
+    private double maxFreePageRatio = 0.25;
+    private long maxSequencesSinceCompaction = 10000;
+    private long checkInterval = 60 * 1000;
+    private int sequencesPerStep = 1000;
+    private int pagesPerVacuumStep = 256;
+    private long pauseBetweenSteps = 50;
+
+    /**
+     * Returns true if a database with the given stats should be compacted.
+     *
+     * @param totalDataSize size of the database file plus attachments, in bytes
+     * @param freePageRatio fraction of the database file's pages that are unused
+     * @param sequencesSinceCompaction number of sequences added since the last compaction
+     */
+    public boolean shouldCompact(long totalDataSize, double freePageRatio, long sequencesSinceCompaction) {
+        if (totalDataSize < minDatabaseSize) {
+            return false;
+        }
+        return freePageRatio >= maxFreePageRatio || sequencesSinceCompaction >= maxSequencesSinceCompaction;
+    }
+
+    /**
+     * Databases smaller than this (in bytes, including attachments) are never auto-compacted.
+     */
+    public long getMinDatabaseSize() {
+        return minDatabaseSize;
+    }
+
+    public void setMinDatabaseSize(long minDatabaseSize) {
+        this.minDatabaseSize = minDatabaseSize;
+    }
+
+    /**
+     * The fraction of unused pages in the database file at which to compact.
+     */
+    public double getMaxFreePageRatio() {
+        return maxFreePageRatio;
+    }
+
+    public void setMaxFreePageRatio(double maxFreePageRatio) {
+        this.maxFreePageRatio = maxFreePageRatio;
+    }
+
+    /**
+     * The number of revisions added since the last compaction at which to compact again.
+     */
+    public long getMaxSequencesSinceCompaction() {
+        return maxSequencesSinceCompaction;
+    }
+
+    public void setMaxSequencesSinceCompaction(long maxSequencesSinceCompaction) {
+        this.maxSequencesSinceCompaction = maxSequencesSinceCompaction;
+    }
+
+    /**
+     * Minimum time between checks of a database's stats, in milliseconds.
+     */
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * How many sequences (or documents, while pruning) each compaction step covers.
+     */
+    public int getSequencesPerStep() {
+        return sequencesPerStep;
+    }
+
+    public void setSequencesPerStep(int sequencesPerStep) {
+        this.sequencesPerStep = sequencesPerStep;
+    }
+
+    /**
+     * How many free pages each incremental vacuum step returns to the file system.
+     */
+    public int getPagesPerVacuumStep() {
+        return pagesPerVacuumStep;
+    }
+
+    public void setPagesPerVacuumStep(int pagesPerVacuumStep) {
+        this.pagesPerVacuumStep = pagesPerVacuumStep;
+    }
+
+    /**
+     * Time to wait between compaction steps, in milliseconds.
+     */
+    public long getPauseBetweenSteps() {
+        return pauseBetweenSteps;
+    }
+
+    public void setPauseBetweenSteps(long pauseBetweenSteps) {
+        this.pauseBetweenSteps = pauseBetweenSteps;
+    }
+}
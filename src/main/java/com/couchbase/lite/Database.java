@@ -20,6 +20,7 @@ package com.couchbase.lite;
 import com.couchbase.lite.internal.AttachmentInternal;
 import com.couchbase.lite.internal.Body;
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevTree;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.replicator.Puller;
 import com.couchbase.lite.replicator.Pusher;
@@ -29,12 +30,15 @@ import com.couchbase.lite.storage.Cursor;
 import com.couchbase.lite.storage.SQLException;
 import com.couchbase.lite.storage.SQLiteStorageEngine;
 import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
+import com.couchbase.lite.storage.StatementCache;
 import com.couchbase.lite.support.Base64;
+import com.couchbase.lite.support.BloomFilter;
 import com.couchbase.lite.support.FileDirUtils;
 import com.couchbase.lite.support.HttpClientFactory;
 import com.couchbase.lite.support.PersistentCookieStore;
 import com.couchbase.lite.util.CollectionUtils;
 import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.LruCache;
 import com.couchbase.lite.util.StreamUtils;
 import com.couchbase.lite.util.TextUtils;
 import com.couchbase.lite.util.Utils;
@@ -50,6 +54,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -71,11 +76,33 @@ public final class Database {
     // Default value for maxRevTreeDepth, the max rev depth to preserve in a prune operation
     private static final int DEFAULT_MAX_REVS = Integer.MAX_VALUE;
 
+    // Number of docid -> doc_id mappings kept in memory
+    private static final int DOC_NUMERIC_ID_CACHE_SIZE = 1000;
+
+    // Target false positive rate of the filter of known docids
+    private static final double DOC_ID_FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+    // Number of docids read per query while building the filter of known docids
+    private static final int DOC_ID_FILTER_BATCH_SIZE = 1000;
+
+    // Number of documents whose revision trees are kept in memory
+    private static final int REV_TREE_CACHE_SIZE = 100;
+
+    // Max number of values bound in one "IN (...)" list; SQLite allows at most 999 parameters
+    private static final int MAX_SQL_IN_ARGS = 500;
+
+    // Attachment GC sweeps the blob store one leading hex digit at a time:
+    /* package */ static final int ATTACHMENT_SWEEP_BATCHES = 16;
+    private static final double ATTACHMENT_GC_FALSE_POSITIVE_RATE = 0.01;
+    // Allow for file systems that store modification times with coarse resolution:
+    private static final long BLOB_MTIME_GRANULARITY = 2000;
+
     private static ReplicationFilterCompiler filterCompiler;
 
     private String path;
     private String name;
     private SQLiteStorageEngine database;
+    private StatementCache statements;
 
     private boolean open = false;
     private int transactionLevel = 0;
@@ -97,6 +124,32 @@ public final class Database {
     private Manager manager;
     final private CopyOnWriteArrayList<ChangeListener> changeListeners;
     private Cache<String, Document> docCache;
+    private QueryResultCache queryResultCache;
+
+    // docid -> doc_id lookups, plus a Bloom filter of every docid in the docs table so that
+    // lookups of new docs can skip the SELECT. The filter is built in the background; docids
+    // inserted meanwhile are kept in pendingDocIDs and added when it's installed. Entries
+    // cached during a transaction are remembered so they can be dropped again if it's rolled back.
+    private LruCache<String, Long> docNumericIDs;
+    private BloomFilter knownDocIDs;
+    private List<String> pendingDocIDs;  // non-null while the filter is being built
+    private int docIDFilterGeneration;  // bumped on close, so a build in progress is dropped
+    private final Object docIDLock = new Object();
+    private final List<String> docNumericIDsCachedInTransaction = new ArrayList<String>();
+    private boolean transactionAborted;
+
+    // Revision trees of recently used docs, keyed by doc_id. Kept in sync by the methods that
+    // write to 'revs'; anything that rewrites rows wholesale just drops them.
+    private LruCache<Long, RevTree> revTrees;
+    private long revTreeChanges;  // counts changes to revTrees' trees; guarded by revTrees
+
+    // The incremental compaction in progress, if any, and when auto-compaction last checked
+    // whether one was needed.
+    private Compaction activeCompaction;
+    private long lastCompactionCheckTime;
+
+    // Updates view indexes in the background; created when first needed.
+    private ViewIndexScheduler indexScheduler;
     private List<DocumentChange> changesToNotify;
     private boolean postingChangeNotifications;
 
@@ -234,6 +287,9 @@ public final class Database {
         this.manager = manager;
         this.changeListeners = new CopyOnWriteArrayList<ChangeListener>();
         this.docCache = new Cache<String, Document>();
+        this.queryResultCache = new QueryResultCache(this);
+        this.docNumericIDs = new LruCache<String, Long>(DOC_NUMERIC_ID_CACHE_SIZE);
+        this.revTrees = new LruCache<Long, RevTree>(REV_TREE_CACHE_SIZE);
         this.startTime = System.currentTimeMillis();
         this.changesToNotify = new ArrayList<DocumentChange>();
         this.activeReplicators =  Collections.newSetFromMap(new ConcurrentHashMap());
@@ -332,6 +388,9 @@ public final class Database {
             ContentValues args = new ContentValues();
             args.put("json", (String)null);
             database.update("revs", args, "current=0", null);
+            database.execSQL("DELETE FROM attachments WHERE sequence IN " +
+                    "(SELECT sequence FROM revs WHERE current=0 AND json IS null)");
+            uncacheRevTrees();
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error compacting", e);
             throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
@@ -345,15 +404,201 @@ public final class Database {
 
         Log.v(Database.TAG, "Vacuuming SQLite sqliteDb...");
         try {
+            // The VACUUM also converts older database files to incremental auto-vacuum, so that
+            // later compactions can use compactIncrementally().
+            database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
             database.execSQL("VACUUM");
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error vacuuming sqliteDb", e);
             throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
         }
+        compactionFinished();
+
+
+    }
+
+
+    /**
+     * Starts compacting the database incrementally in the background: the same work as
+     * compact(), but done in short steps (each its own transaction) with pauses in between, so
+     * other readers and writers are never blocked for long. The step sizes come from the
+     * Manager's CompactionPolicy, if it has one.
+     *
+     * If a compaction is already running, returns that one.
+     *
+     * @param listener Optional listener for progress updates.
+     */
+    @InterfaceAudience.Public
+    public synchronized Compaction compactIncrementally(Compaction.ProgressListener listener) {
+        if (activeCompaction != null) {
+            return activeCompaction;
+        }
+        CompactionPolicy policy = manager.getOptions().getCompactionPolicy();
+        if (policy == null) {
+            policy = new CompactionPolicy();
+        }
+        activeCompaction = new Compaction(this, policy, listener, manager.getWorkExecutor());
+        activeCompaction.start();
+        return activeCompaction;
+    }
+
+    /**
+     * The scheduler that updates this database's view indexes in the background, for queries
+     * with IndexUpdateMode.AFTER and for views kept warm.
+     */
+    @InterfaceAudience.Public
+    public synchronized ViewIndexScheduler getIndexScheduler() {
+        if (indexScheduler == null) {
+            indexScheduler = new ViewIndexScheduler(this);
+        }
+        return indexScheduler;
+    }
+
+    /* package */ synchronized void forgetCompaction(Compaction compaction) {
+        if (activeCompaction == compaction) {
+            activeCompaction = null;
+        }
+    }
+
+    /**
+     * Checks the database's stats against the Manager's CompactionPolicy (at most once per
+     * check interval) and starts an incremental compaction if they call for one. The check
+     * (which measures the attachment store) runs on the work executor, not the committing
+     * thread.
+     */
+    private void maybeStartAutoCompaction() {
+        final CompactionPolicy policy = manager.getOptions().getCompactionPolicy();
+        if (policy == null) {
+            return;
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (activeCompaction != null || now - lastCompactionCheckTime < policy.getCheckInterval()) {
+                return;
+            }
+            lastCompactionCheckTime = now;
+        }
+        manager.getWorkExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                checkAutoCompaction(policy);
+            }
+        });
+    }
+
+    private void checkAutoCompaction(CompactionPolicy policy) {
+        if (!isOpen()) {
+            return;
+        }
+        try {
+            long pageCount = longForQuery("PRAGMA page_count");
+            double freePageRatio = pageCount > 0 ? (double) getFreePageCount() / pageCount : 0;
+            long sequencesSinceCompaction = getLastSequenceNumber() - getLastCompactedSequence();
+            if (policy.shouldCompact(totalDataSize(), freePageRatio, sequencesSinceCompaction)) {
+                Log.i(Database.TAG, "%s: starting auto-compaction (free page ratio %f, %d sequences since last compaction)",
+                        this, freePageRatio, sequencesSinceCompaction);
+                compactIncrementally(null);
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error checking whether to compact", e);
+        }
+    }
+
+    /**
+     * Records that the database has been compacted up to its current last sequence.
+     */
+    /* package */ void compactionFinished() {
+        try {
+            statements.execute("INSERT OR REPLACE INTO info (key, value) VALUES ('lastCompactedSequence', ?)",
+                    Long.toString(getLastSequenceNumber()));
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error recording last compacted sequence", e);
+        }
+    }
+
+    private long getLastCompactedSequence() throws SQLException {
+        String value = statements.stringForQuery("SELECT value FROM info WHERE key='lastCompactedSequence'");
+        return value != null ? Long.parseLong(value) : 0;
+    }
+
+    private long longForQuery(String sql) throws SQLException {
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(sql, null);
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /* package */ long getMaxDocNumericID() throws CouchbaseLiteException {
+        try {
+            return longForQuery("SELECT MAX(doc_id) FROM docs");
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        }
+    }
+
+    /**
+     * Deletes the JSON of the non-current revisions with sequences in (afterSequence, lastSequence].
+     */
+    /* package */ int clearOldRevisionBodies(long afterSequence, long lastSequence) throws CouchbaseLiteException {
+        boolean shouldCommit = false;
+        int cleared = 0;
+        beginTransaction();
+        try {
+            cleared = statements.executeUpdateDelete("UPDATE revs SET json=null " +
+                    "WHERE sequence>? AND sequence<=? AND current=0 AND json NOTNULL", afterSequence, lastSequence);
+            if (cleared > 0) {
+                statements.executeUpdateDelete("DELETE FROM attachments WHERE sequence IN " +
+                        "(SELECT sequence FROM revs WHERE sequence>? AND sequence<=? AND json IS null)",
+                        afterSequence, lastSequence);
+                uncacheRevTrees();
+            }
+            shouldCommit = true;
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        } finally {
+            endTransaction(shouldCommit);
+        }
+        return cleared;
+    }
 
+    /* package */ boolean isIncrementalVacuumEnabled() throws CouchbaseLiteException {
+        try {
+            return longForQuery("PRAGMA auto_vacuum") == 2;   // 2 = INCREMENTAL
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        }
+    }
 
+    /* package */ long getFreePageCount() throws SQLException {
+        return longForQuery("PRAGMA freelist_count");
     }
 
+    /**
+     * Returns up to maxPages free pages to the file system, and returns how many are left.
+     */
+    /* package */ long incrementalVacuum(int maxPages) throws CouchbaseLiteException {
+        Cursor cursor = null;
+        try {
+            // incremental_vacuum frees one page per step of the statement:
+            cursor = database.rawQuery("PRAGMA incremental_vacuum(" + maxPages + ")", null);
+            while (cursor.moveToNext()) {
+            }
+            cursor.close();
+            cursor = null;
+            return getFreePageCount();
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
 
     /**
      * Deletes the database.
@@ -457,6 +702,48 @@ public final class Database {
         return getDocument(Misc.TDCreateUUID());
     }
 
+    /**
+     * Saves a batch of documents in a single transaction, which is much faster than saving
+     * them one at a time. Each properties map is treated as by Document.putProperties(): it
+     * may contain "_id" (else a new UUID is assigned), "_rev" (the revision being replaced),
+     * "_deleted" and "_attachments". Change listeners are notified once for the whole batch.
+     *
+     * @return The saved revisions, in the same order as the input. An entry is null if that
+     * document couldn't be saved, eg. because of a conflict or a validation failure.
+     */
+    @InterfaceAudience.Public
+    public List<SavedRevision> saveDocuments(List<Map<String, Object>> documents) throws CouchbaseLiteException {
+        List<RevisionInternal> revs = new ArrayList<RevisionInternal>(documents.size());
+        List<String> prevRevIds = new ArrayList<String>(documents.size());
+        for (Map<String, Object> properties : documents) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> attachments = (Map<String, Object>) properties.get("_attachments");
+            if (attachments != null && attachments.size() > 0) {
+                properties.put("_attachments", Attachment.installAttachmentBodies(attachments, this));
+            }
+            boolean deleted = Boolean.TRUE.equals(properties.get("_deleted"));
+            RevisionInternal rev = new RevisionInternal((String) properties.get("_id"), null, deleted, this);
+            rev.setProperties(properties);
+            revs.add(rev);
+            prevRevIds.add((String) properties.get("_rev"));
+        }
+
+        List<Status> statuses = new ArrayList<Status>(documents.size());
+        List<RevisionInternal> newRevs = putRevisions(revs, prevRevIds, false, statuses);
+
+        List<SavedRevision> result = new ArrayList<SavedRevision>(newRevs.size());
+        for (int i = 0; i < newRevs.size(); i++) {
+            RevisionInternal newRev = newRevs.get(i);
+            if (newRev == null) {
+                Log.w(Database.TAG, "Could not save document %s: %s", revs.get(i).getDocId(), statuses.get(i));
+                result.add(null);
+            } else {
+                result.add(new SavedRevision(getDocument(newRev.getDocId()), newRev));
+            }
+        }
+        return result;
+    }
+
     /**
      * Returns the contents of the local document with the given ID, or nil if none exists.
      */
@@ -932,7 +1219,9 @@ public final class Database {
             // First-time initialization:
             // (Note: Declaring revs.sequence as AUTOINCREMENT means the values will always be
             // monotonically increasing, never reused. See <http://www.sqlite.org/autoinc.html>)
-            if(!initialize(SCHEMA)) {
+            // Incremental auto-vacuum has to be chosen before any tables are created; it lets
+            // compaction return free pages to the file system a few at a time.
+            if(!initialize("PRAGMA auto_vacuum = INCREMENTAL;" + SCHEMA)) {
                 database.close();
                 return false;
             }
@@ -1057,6 +1346,133 @@ public final class Database {
                 database.close();
                 return false;
             }
+            dbVersion = 11;
+        }
+
+        if (dbVersion < 12) {
+            // Version 12: Denormalize each doc's winning revision, deletion and conflict state
+            // into the docs table, so readers can join straight to the winner.
+            String upgradeSql = "ALTER TABLE docs ADD COLUMN winning_seq INTEGER; " +
+                    "ALTER TABLE docs ADD COLUMN deleted BOOLEAN DEFAULT 0; " +
+                    "ALTER TABLE docs ADD COLUMN conflicted BOOLEAN DEFAULT 0; " +
+                    "UPDATE docs SET winning_seq=(SELECT sequence FROM revs WHERE revs.doc_id=docs.doc_id " +
+                    "    AND current=1 ORDER BY deleted ASC, revid DESC LIMIT 1); " +
+                    "UPDATE docs SET deleted=IFNULL((SELECT deleted FROM revs WHERE revs.sequence=docs.winning_seq), 0), " +
+                    "    conflicted=((SELECT COUNT(*) FROM revs WHERE revs.doc_id=docs.doc_id " +
+                    "    AND current=1 AND deleted=0) > 1); " +
+                    "CREATE INDEX docs_winning_seq ON docs(winning_seq); " +
+                    "PRAGMA user_version = 12";
+            if (!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 12;
+        }
+
+        if (dbVersion < 13) {
+            // Version 13: Index for reading the changes feed in sequence order
+            String upgradeSql = "CREATE INDEX revs_cur_seq ON revs(current, sequence); " +
+                    "PRAGMA user_version = 13";
+            if (!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 13;
+        }
+
+        if (dbVersion < 14) {
+            // Version 14: Stored partial reductions of view indexes (see ReduceIndex). Each block
+            // is a run of consecutive index rows in key order, spanning the positions
+            // (key, sequence) to (last_key, last_sequence).
+            String upgradeSql = "CREATE TABLE reduces ( " +
+                    "    view_id INTEGER NOT NULL REFERENCES views(view_id) ON DELETE CASCADE, " +
+                    "    key TEXT NOT NULL COLLATE JSON, " +
+                    "    sequence INTEGER NOT NULL, " +
+                    "    last_key TEXT NOT NULL COLLATE JSON, " +
+                    "    last_sequence INTEGER NOT NULL, " +
+                    "    value TEXT); " +
+                    "CREATE INDEX reduces_keys ON reduces(view_id, key COLLATE JSON, sequence); " +
+                    "ALTER TABLE views ADD COLUMN reducesequence INTEGER DEFAULT -1; " +
+                    "PRAGMA user_version = 14";
+            if (!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 14;
+        }
+
+        if (dbVersion < 15) {
+            // Version 15: The numeric value of each view index row, for the built-in reducers.
+            // A JSON value starting with a digit or '-' can only be a number.
+            String upgradeSql = "ALTER TABLE maps ADD COLUMN numeric_value REAL; " +
+                    "UPDATE maps SET numeric_value=CAST(value AS REAL) WHERE substr(value, 1, 1) IN " +
+                    "    ('-', '0', '1', '2', '3', '4', '5', '6', '7', '8', '9'); " +
+                    "PRAGMA user_version = 15";
+            if (!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 15;
+        }
+
+        if (dbVersion < 16) {
+            // Version 16: Move each view's index rows from the shared 'maps' table to a table of
+            // its own, which also stores the docids (see View.createMapTableSQL()). The tables
+            // get the default collation; a view with another one recreates its table when used.
+            // This takes several statements, so they're run in a transaction: a partial upgrade
+            // would leave views.collation added, and the ALTER TABLE failing at every open.
+            boolean upgraded = false;
+            Cursor cursor = null;
+            database.beginTransaction();
+            try {
+                List<Integer> viewIds = new ArrayList<Integer>();
+                cursor = database.rawQuery("SELECT view_id FROM views", null);
+                while (cursor.moveToNext()) {
+                    viewIds.add(cursor.getInt(0));
+                }
+                cursor.close();
+                cursor = null;
+                database.execSQL("ALTER TABLE views ADD COLUMN collation TEXT");
+                for (int viewId : viewIds) {
+                    for (String statement : View.createMapTableSQL(viewId, "JSON").split(";")) {
+                        database.execSQL(statement);
+                    }
+                    database.execSQL(String.format("INSERT INTO %s (sequence, key, value, numeric_value, docid) " +
+                            "SELECT maps.sequence, key, value, numeric_value, docid FROM maps, revs, docs " +
+                            "WHERE maps.view_id=%d AND revs.sequence=maps.sequence AND docs.doc_id=revs.doc_id",
+                            View.mapTableName(viewId), viewId));
+                    database.execSQL(String.format("UPDATE views SET collation='JSON' WHERE view_id=%d", viewId));
+                }
+                database.execSQL("DROP TABLE maps");
+                database.execSQL("PRAGMA user_version = 16");
+                database.setTransactionSuccessful();
+                upgraded = true;
+            } catch (SQLException e) {
+                Log.e(Database.TAG, "Error moving view indexes to their own tables", e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                database.endTransaction();
+            }
+            if (!upgraded) {
+                database.close();
+                return false;
+            }
+            dbVersion = 16;
+        }
+
+        if (dbVersion < 17) {
+            // Version 17: The new version of a view whose index is being rebuilt in a shadow
+            // table, and the sequence it's indexed up to (see View.setMapReduce()).
+            String upgradeSql = "ALTER TABLE views ADD COLUMN shadow_version TEXT; " +
+                    "ALTER TABLE views ADD COLUMN shadow_sequence INTEGER DEFAULT 0; " +
+                    "PRAGMA user_version = 17";
+            if (!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            dbVersion = 17;
         }
 
 
@@ -1068,6 +1484,8 @@ public final class Database {
             return false;
         }
 
+        statements = new StatementCache(database);
+
         open = true;
         return true;
     }
@@ -1081,6 +1499,15 @@ public final class Database {
             return false;
         }
 
+        ViewIndexScheduler scheduler;
+        synchronized (this) {
+            scheduler = indexScheduler;
+            indexScheduler = null;
+        }
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+
         if(views != null) {
             for (View view : views.values()) {
                 view.databaseClosing();
@@ -1097,6 +1524,28 @@ public final class Database {
 
         allReplicators = null;
 
+        synchronized (this) {
+            if(activeCompaction != null) {
+                activeCompaction.cancel();
+                activeCompaction = null;
+            }
+        }
+
+        if(statements != null) {
+            statements.close();
+            statements = null;
+        }
+
+        docNumericIDs.evictAll();
+        uncacheRevTrees();
+        synchronized (docIDLock) {
+            knownDocIDs = null;
+            pendingDocIDs = null;
+            docIDFilterGeneration++;
+            docNumericIDsCachedInTransaction.clear();
+            transactionAborted = false;
+        }
+
         if(database != null && database.isOpen()) {
             database.close();
         }
@@ -1125,6 +1574,15 @@ public final class Database {
         return database;
     }
 
+    /**
+     * Compiled statements for hot queries, shared with View.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    StatementCache getStatementCache() {
+        return statements;
+    }
+
     /**
      * @exclude
      */
@@ -1196,7 +1654,11 @@ public final class Database {
         }
 
         --transactionLevel;
+        endTransactionForDocNumericIDs(commit);
         postChangeNotifications();
+        if(commit && transactionLevel == 0) {
+            maybeStartAutoCompaction();
+        }
 
 
         return true;
@@ -1414,6 +1876,54 @@ public final class Database {
         return docProperties;
     }
 
+    /**
+     * Gives the cached Documents of prefetched query rows the revisions the rows were read
+     * with (unless they already have newer ones), so that the Documents don't read them again.
+     */
+    /* package */ void cacheDocuments(List<QueryRow> rows) {
+        for (QueryRow row : rows) {
+            if (row.getDocumentProperties() != null && row.getDocumentId() != null) {
+                getDocument(row.getDocumentId()).loadCurrentRevisionFrom(row);
+            }
+        }
+    }
+
+    /**
+     * The properties of the current revisions of several documents, by docID, read with one
+     * query per MAX_SQL_IN_ARGS documents. Deleted and missing documents are left out.
+     */
+    /* package */ Map<String, Map<String, Object>> getDocumentsPropertiesWithIDs(Collection<String> docIds) throws SQLException {
+        Map<String, Map<String, Object>> result = new HashMap<String, Map<String, Object>>(docIds.size());
+        List<String> ids = new ArrayList<String>(docIds);
+        for (int start = 0; start < ids.size(); start += MAX_SQL_IN_ARGS) {
+            List<String> chunk = ids.subList(start, Math.min(start + MAX_SQL_IN_ARGS, ids.size()));
+            String sql = "SELECT docid, revid, sequence, json, no_attachments FROM docs, revs " +
+                    "WHERE docs.docid IN (" + sqlPlaceholders(chunk.size()) + ") " +
+                    "AND revs.sequence=docs.winning_seq AND docs.deleted=0";
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery(sql, chunk.toArray(new String[chunk.size()]));
+                while (cursor.moveToNext()) {
+                    EnumSet<TDContentOptions> contentOptions = EnumSet.noneOf(TDContentOptions.class);
+                    if (cursor.getInt(4) > 0) {  // no_attachments == true
+                        contentOptions.add(TDContentOptions.TDNoAttachments);
+                    }
+                    String docId = cursor.getString(0);
+                    Map<String, Object> properties = documentPropertiesFromJSON(cursor.getBlob(3), docId,
+                            cursor.getString(1), false, cursor.getLong(2), contentOptions);
+                    if (properties != null) {
+                        result.put(docId, properties);
+                    }
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * @exclude
      */
@@ -1425,21 +1935,19 @@ public final class Database {
         Cursor cursor = null;
         try {
             cursor = null;
-            String cols = "revid, deleted, sequence, no_attachments";
+            String cols = "revid, revs.deleted, sequence, no_attachments";
             if(!contentOptions.contains(TDContentOptions.TDNoBody)) {
                 cols += ", json";
             }
             if(rev != null) {
                 sql = "SELECT " + cols + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id AND revid=? LIMIT 1";
                 //TODO: mismatch w iOS: {sql = "SELECT " + cols + " FROM revs WHERE revs.doc_id=? AND revid=? AND json notnull LIMIT 1";}
-                String[] args = {id, rev};
-                cursor = database.rawQuery(sql, args);
+                cursor = statements.query(sql, id, rev);
             }
             else {
-                sql = "SELECT " + cols + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id and current=1 and deleted=0 ORDER BY revid DESC LIMIT 1";
-                //TODO: mismatch w iOS: {sql = "SELECT " + cols + " FROM revs WHERE revs.doc_id=? and current=1 and deleted=0 ORDER BY revid DESC LIMIT 1";}
-                String[] args = {id};
-                cursor = database.rawQuery(sql, args);
+                // The docs row points straight at the winning revision:
+                sql = "SELECT " + cols + " FROM docs, revs WHERE docs.docid=? AND revs.sequence=docs.winning_seq AND docs.deleted=0 LIMIT 1";
+                cursor = statements.query(sql, id);
             }
 
             if(cursor.moveToNext()) {
@@ -1497,8 +2005,7 @@ public final class Database {
             // TODO: on ios this query is:
             // TODO: "SELECT sequence, json FROM revs WHERE doc_id=? AND revid=? LIMIT 1"
             String sql = "SELECT sequence, json FROM revs, docs WHERE revid=? AND docs.docid=? AND revs.doc_id=docs.doc_id LIMIT 1";
-            String[] args = { rev.getRevId(), rev.getDocId()};
-            cursor = database.rawQuery(sql, args);
+            cursor = statements.query(sql, rev.getRevId(), rev.getDocId());
             if(cursor.moveToNext()) {
                 result.setCode(Status.OK);
                 rev.setSequence(cursor.getLong(0));
@@ -1525,81 +2032,170 @@ public final class Database {
      */
     @InterfaceAudience.Private
     public long getDocNumericID(String docId) {
-        Cursor cursor = null;
-        String[] args = { docId };
+        Long cached = docNumericIDs.get(docId);
+        if (cached != null) {
+            return cached;
+        }
 
         long result = -1;
         try {
-            cursor = database.rawQuery("SELECT doc_id FROM docs WHERE docid=?", args);
-
-            if(cursor.moveToNext()) {
-                result = cursor.getLong(0);
+            if (!mightContainDocID(docId)) {
+                return 0;
             }
-            else {
-                result = 0;
+            // doc_id is an autoincrement key starting at 1, so 0 means "no such row"
+            result = statements.longForQuery("SELECT doc_id FROM docs WHERE docid=?", docId);
+            if (result > 0) {
+                cacheDocNumericID(docId, result);
             }
         } catch (Exception e) {
             Log.e(Database.TAG, "Error getting doc numeric id", e);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
         }
 
         return result;
     }
 
-    /** HISTORY: **/
-
     /**
-     * Returns all the known revisions (or all current/conflicting revisions) of a document.
-     * @exclude
+     * Returns false if the docid is definitely not in the docs table. Until the filter has
+     * been built (in the background, the first time through) the answer is always "maybe".
+     * Once it fills up, a bigger one is built while the full one goes on answering.
      */
-    @InterfaceAudience.Private
-    public RevisionList getAllRevisionsOfDocumentID(String docId, long docNumericID, boolean onlyCurrent) {
-
-        String sql = null;
-        if(onlyCurrent) {
-            sql = "SELECT sequence, revid, deleted FROM revs " +
-                    "WHERE doc_id=? AND current ORDER BY sequence DESC";
-        }
-        else {
-            sql = "SELECT sequence, revid, deleted FROM revs " +
-                    "WHERE doc_id=? ORDER BY sequence DESC";
-        }
-
-        String[] args = { Long.toString(docNumericID) };
-        Cursor cursor = null;
-
-        cursor = database.rawQuery(sql, args);
-
-        RevisionList result;
-        try {
-            cursor.moveToNext();
-            result = new RevisionList();
-            while(!cursor.isAfterLast()) {
-                RevisionInternal rev = new RevisionInternal(docId, cursor.getString(1), (cursor.getInt(2) > 0), this);
-                rev.setSequence(cursor.getLong(0));
-                result.add(rev);
-                cursor.moveToNext();
-            }
-        } catch (SQLException e) {
-            Log.e(Database.TAG, "Error getting all revisions of document", e);
-            return null;
-        } finally {
-            if(cursor != null) {
-                cursor.close();
+    private boolean mightContainDocID(String docId) {
+        synchronized (docIDLock) {
+            if (knownDocIDs == null || knownDocIDs.isSaturated()) {
+                startBuildingDocIDFilter();
             }
+            return knownDocIDs == null || knownDocIDs.mightContain(docId);
         }
+    }
 
-        return result;
+    private void startBuildingDocIDFilter() {
+        // Caller holds docIDLock
+        if (pendingDocIDs != null || !isOpen()) {
+            return;
+        }
+        pendingDocIDs = new ArrayList<String>();
+        final int generation = docIDFilterGeneration;
+        manager.getWorkExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                buildDocIDFilter(generation);
+            }
+        });
     }
 
     /**
-     * @exclude
+     * Reads every docid into a new filter, a batch at a time and without holding docIDLock,
+     * then installs it along with the docids inserted in the meantime.
      */
-    @InterfaceAudience.Private
-    public RevisionList getAllRevisionsOfDocumentID(String docId, boolean onlyCurrent) {
+    private void buildDocIDFilter(int generation) {
+        BloomFilter filter = null;
+        try {
+            if (isOpen()) {
+                int maxDocNumericID = (int) longForQuery("SELECT MAX(doc_id) FROM docs");
+                filter = new BloomFilter(Math.max(2 * maxDocNumericID, DOC_NUMERIC_ID_CACHE_SIZE),
+                        DOC_ID_FILTER_FALSE_POSITIVE_RATE);
+                long lastDocNumericID = 0;
+                int read;
+                do {
+                    read = 0;
+                    Cursor cursor = null;
+                    try {
+                        cursor = statements.query("SELECT doc_id, docid FROM docs WHERE doc_id > ? ORDER BY doc_id LIMIT ?",
+                                lastDocNumericID, DOC_ID_FILTER_BATCH_SIZE);
+                        while (cursor.moveToNext()) {
+                            lastDocNumericID = cursor.getLong(0);
+                            filter.add(cursor.getString(1));
+                            read++;
+                        }
+                    } finally {
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                    }
+                } while (read == DOC_ID_FILTER_BATCH_SIZE && isOpen());
+            }
+        } catch (Exception e) {
+            Log.w(Database.TAG, "Error building the filter of known docids", e);
+            filter = null;
+        }
+        synchronized (docIDLock) {
+            if (generation != docIDFilterGeneration || pendingDocIDs == null) {
+                return;  // the database was closed meanwhile
+            }
+            if (filter != null && isOpen()) {
+                for (String docId : pendingDocIDs) {
+                    filter.add(docId);
+                }
+                knownDocIDs = filter;
+            }
+            pendingDocIDs = null;
+        }
+    }
+
+    private void addKnownDocID(String docId) {
+        // Caller holds docIDLock
+        if (knownDocIDs != null) {
+            knownDocIDs.add(docId);
+        }
+        if (pendingDocIDs != null) {
+            pendingDocIDs.add(docId);
+        }
+    }
+
+    private void cacheDocNumericID(String docId, long docNumericId) {
+        docNumericIDs.put(docId, docNumericId);
+        synchronized (docIDLock) {
+            if (transactionLevel > 0) {
+                docNumericIDsCachedInTransaction.add(docId);
+            }
+        }
+    }
+
+    /**
+     * Keeps the docid cache consistent with the outcome of a transaction. An abort at any
+     * nesting level may undo rows inserted anywhere in the outermost transaction, so every
+     * mapping cached since it began is dropped; they'll simply be looked up again.
+     * (Rolled-back docids stay in the Bloom filter, which only costs a false positive.)
+     */
+    private void endTransactionForDocNumericIDs(boolean commit) {
+        synchronized (docIDLock) {
+            if (!commit) {
+                transactionAborted = true;
+            }
+            if (transactionAborted) {
+                for (String docId : docNumericIDsCachedInTransaction) {
+                    docNumericIDs.remove(docId);
+                }
+                uncacheRevTrees();
+            }
+            if (transactionLevel == 0) {
+                docNumericIDsCachedInTransaction.clear();
+                transactionAborted = false;
+            }
+        }
+    }
+
+    /** HISTORY: **/
+
+    /**
+     * Returns all the known revisions (or all current/conflicting revisions) of a document.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public RevisionList getAllRevisionsOfDocumentID(String docId, long docNumericID, boolean onlyCurrent) {
+        try {
+            return getRevTree(docNumericID).getAllRevisions(docId, onlyCurrent, this);
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error getting all revisions of document", e);
+            return null;
+        }
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public RevisionList getAllRevisionsOfDocumentID(String docId, boolean onlyCurrent) {
         long docNumericId = getDocNumericID(docId);
         if(docNumericId < 0) {
             return null;
@@ -1612,6 +2208,129 @@ public final class Database {
         }
     }
 
+    /**
+     * Returns the revision tree of a document, loading it from the revs table if it isn't
+     * already cached. An unknown document's (empty) tree isn't cached, nor is one loaded while
+     * a cached tree was changed, since it may have been read before that change was written
+     * and cached after it was (which the change would then have missed).
+     */
+    private RevTree getRevTree(long docNumericID) throws SQLException {
+        if (docNumericID <= 0) {
+            return new RevTree();
+        }
+        long changes;
+        synchronized (revTrees) {
+            RevTree tree = revTrees.get(docNumericID);
+            if (tree != null) {
+                return tree;
+            }
+            changes = revTreeChanges;
+        }
+
+        RevTree tree = new RevTree();
+        Cursor cursor = null;
+        try {
+            cursor = statements.query("SELECT sequence, parent, revid, deleted, current, json isnull FROM revs " +
+                    "WHERE doc_id=? ORDER BY sequence", docNumericID);
+            while (cursor.moveToNext()) {
+                tree.add(cursor.getLong(0), cursor.getLong(1), cursor.getString(2),
+                        cursor.getInt(3) > 0, cursor.getInt(4) > 0, cursor.getInt(5) > 0);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (tree.size() > 0) {
+            synchronized (revTrees) {
+                if (revTreeChanges == changes) {
+                    revTrees.put(docNumericID, tree);
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Adds a new revision to a document's revision tree, if it's cached. Call it after the
+     * revision has been written.
+     */
+    private void addToCachedRevTree(long docNumericID, long sequence, long parent, String revID,
+                                    boolean deleted, boolean current, boolean missing) {
+        synchronized (revTrees) {
+            revTreeChanges++;
+            RevTree tree = revTrees.get(docNumericID);
+            if (tree != null) {
+                tree.add(sequence, parent, revID, deleted, current, missing);
+            }
+        }
+    }
+
+    /**
+     * Sets the 'current' flag of a revision in its document's revision tree, if it's cached.
+     * Call it after the change has been written.
+     */
+    private void setCurrentInCachedRevTree(long docNumericID, long sequence, boolean current) {
+        synchronized (revTrees) {
+            revTreeChanges++;
+            RevTree tree = revTrees.get(docNumericID);
+            if (tree != null) {
+                tree.setCurrent(sequence, current);
+            }
+        }
+    }
+
+    private void uncacheRevTree(long docNumericID) {
+        synchronized (revTrees) {
+            revTreeChanges++;
+            revTrees.remove(docNumericID);
+        }
+    }
+
+    private void uncacheRevTrees() {
+        synchronized (revTrees) {
+            revTreeChanges++;
+            revTrees.evictAll();
+        }
+    }
+
+    /**
+     * Recomputes the winning_seq, deleted and conflicted columns of a document's row in the
+     * docs table from its revision tree. Must be called after every change to the doc's revs.
+     */
+    private void updateWinner(long docNumericID) throws SQLException {
+        RevTree tree = getRevTree(docNumericID);
+        List<Boolean> outIsDeleted = new ArrayList<Boolean>();
+        List<Boolean> outIsConflict = new ArrayList<Boolean>();
+        String winningRevID = tree.getWinningRevID(outIsDeleted, outIsConflict);
+        Long winningSequence = null;
+        if (winningRevID != null) {
+            winningSequence = tree.getSequence(winningRevID, true);
+        }
+        statements.executeUpdateDelete("UPDATE docs SET winning_seq=?, deleted=?, conflicted=? WHERE doc_id=?",
+                winningSequence, outIsDeleted.size() > 0, outIsConflict.size() > 0, docNumericID);
+    }
+
+    /**
+     * Set-based version of updateWinner(), for batch operations that touch many documents.
+     */
+    private void updateWinners(Collection<Long> docNumericIDs) throws SQLException {
+        List<Long> ids = new ArrayList<Long>(docNumericIDs);
+        for (int start = 0; start < ids.size(); start += MAX_SQL_IN_ARGS) {
+            List<Long> chunk = ids.subList(start, Math.min(start + MAX_SQL_IN_ARGS, ids.size()));
+            Object[] args = chunk.toArray();
+            String placeholders = sqlPlaceholders(chunk.size());
+            statements.executeUpdateDelete("UPDATE docs SET winning_seq=(SELECT sequence FROM revs " +
+                    "WHERE revs.doc_id=docs.doc_id AND current=1 ORDER BY deleted ASC, revid DESC LIMIT 1) " +
+                    "WHERE doc_id IN (" + placeholders + ")", args);
+            statements.executeUpdateDelete("UPDATE docs SET " +
+                    "deleted=IFNULL((SELECT deleted FROM revs WHERE revs.sequence=docs.winning_seq), 0), " +
+                    "conflicted=((SELECT COUNT(*) FROM revs WHERE revs.doc_id=docs.doc_id " +
+                    "AND current=1 AND deleted=0) > 1) " +
+                    "WHERE doc_id IN (" + placeholders + ")", args);
+        }
+    }
+
     /**
      * @exclude
      */
@@ -1622,28 +2341,16 @@ public final class Database {
             return null;
         }
 
-        List<String> result = new ArrayList<String>();
-        Cursor cursor = null;
-        try {
-            String[] args = { Long.toString(docIdNumeric) };
-            cursor = database.rawQuery("SELECT revid FROM revs WHERE doc_id=? AND current " +
-                                           "ORDER BY revid DESC OFFSET 1", args);
-            cursor.moveToNext();
-            while(!cursor.isAfterLast()) {
-                result.add(cursor.getString(0));
-                cursor.moveToNext();
-            }
+        if(docIdNumeric == 0) {
+            return new ArrayList<String>();
+        }
 
+        try {
+            return getRevTree(docIdNumeric).getConflictingRevIDs();
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error getting all revisions of document", e);
             return null;
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
         }
-
-        return result;
     }
 
     /**
@@ -1666,29 +2373,15 @@ public final class Database {
         if (docNumericID <= 0)
             return null;
 
-        int sqlLimit = limit > 0 ? (int)limit : -1;     // SQL uses -1, not 0, to denote 'no limit'
-        String sql = "SELECT revid, sequence FROM revs WHERE doc_id=? and revid < ?" +
-        " and deleted=0 and json not null" +
-        " ORDER BY sequence DESC LIMIT ?";
-        String[] args = {Long.toString(docNumericID),generation+"-",Integer.toString(sqlLimit)};
-
-            Cursor cursor = null;
-            try {
-                cursor = database.rawQuery(sql, args);
-                cursor.moveToNext();
-                if (!cursor.isAfterLast()) {
-                    if (matchingRevs.size() == 0)
-                        hasAttachment.set(sequenceHasAttachments(cursor.getLong(1)));
-                    matchingRevs.add(cursor.getString(0));
-                }
-
-            } catch (SQLException e) {
-                Log.e(Database.TAG, "Error getting all revisions of document", e);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+        try {
+            RevisionInternal ancestor = getRevTree(docNumericID).getPossibleAncestor(rev.getDocId(), generation, this);
+            if (ancestor != null) {
+                hasAttachment.set(sequenceHasAttachments(ancestor.getSequence()));
+                matchingRevs.add(ancestor.getRevId());
             }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error getting all revisions of document", e);
+        }
         return matchingRevs;
     }
 
@@ -1706,26 +2399,10 @@ public final class Database {
         long docNumericID = getDocNumericID(docId);
         if (docNumericID <= 0)
             return null;
-        String quotedRevIds = joinQuoted(revIDs);
-        String sql = "SELECT revid FROM revs " +
-                "WHERE doc_id=? and revid in (" + quotedRevIds + ") and revid <= ? " +
-                "ORDER BY revid DESC LIMIT 1";
-        String[] args = {Long.toString(docNumericID)};
-
-        Cursor cursor = null;
         try {
-            cursor = database.rawQuery(sql, args);
-            cursor.moveToNext();
-            if (!cursor.isAfterLast()) {
-                result = cursor.getString(0);
-            }
-
+            result = getRevTree(docNumericID).findCommonAncestor(rev.getRevId(), revIDs);
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error getting all revisions of document", e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
         }
 
         return result;
@@ -1749,52 +2426,12 @@ public final class Database {
             return new ArrayList<RevisionInternal>();
         }
 
-        String sql = "SELECT sequence, parent, revid, deleted, json isnull FROM revs " +
-                    "WHERE doc_id=? ORDER BY sequence DESC";
-        String[] args = { Long.toString(docNumericId) };
-        Cursor cursor = null;
-
-        List<RevisionInternal> result;
         try {
-            cursor = database.rawQuery(sql, args);
-
-            cursor.moveToNext();
-            long lastSequence = 0;
-            result = new ArrayList<RevisionInternal>();
-            while(!cursor.isAfterLast()) {
-                long sequence = cursor.getLong(0);
-                boolean matches = false;
-                if(lastSequence == 0) {
-                    matches = revId.equals(cursor.getString(2));
-                }
-                else {
-                    matches = (sequence == lastSequence);
-                }
-                if(matches) {
-                    revId = cursor.getString(2);
-                    boolean deleted = (cursor.getInt(3) > 0);
-                    boolean missing = (cursor.getInt(4) > 0);
-                    RevisionInternal aRev = new RevisionInternal(docId, revId, deleted, this);
-                    aRev.setMissing(missing);
-                    aRev.setSequence(cursor.getLong(0));
-                    result.add(aRev);
-                    lastSequence = cursor.getLong(1);
-                    if(lastSequence == 0) {
-                        break;
-                    }
-                }
-                cursor.moveToNext();
-            }
+            return getRevTree(docNumericId).getHistory(docId, revId, this);
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error getting revision history", e);
             return null;
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
         }
-
-        return result;
     }
 
     /**
@@ -1911,65 +2548,86 @@ public final class Database {
      */
     @InterfaceAudience.Private
     public RevisionList changesSince(long lastSeq, ChangesOptions options, ReplicationFilter filter) {
+        // http://wiki.apache.org/couchdb/HTTP_database_API#Changes
+        RevisionList changes = new RevisionList();
+        ChangesIterator iterator;
+        try {
+            iterator = getChanges(lastSeq, options, filter);
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error looking for changes", e);
+            return null;
+        }
+        try {
+            while (iterator.hasNext()) {
+                changes.add(iterator.next());
+            }
+        } catch (SQLException e) {
+            return null;  // already logged by the iterator
+        } finally {
+            iterator.close();
+        }
+        return changes;
+    }
+
+    /**
+     * Returns a cursor-backed iterator over the changes since lastSeq, in sequence order.
+     * Unless options.isIncludeConflicts() is set, only each changed document's winning revision
+     * is returned, even if only a losing branch changed; its sequence is then that of the
+     * document's latest change rather than its own. The limit is applied in SQL when there's no
+     * filter. The caller must close() the iterator if it doesn't read it to the end.
+     * Throws SQLException if the query fails, as does the iterator if reading a row does.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public ChangesIterator getChanges(long lastSeq, ChangesOptions options, ReplicationFilter filter) {
         // http://wiki.apache.org/couchdb/HTTP_database_API#Changes
         if(options == null) {
             options = new ChangesOptions();
         }
 
-        boolean includeDocs = options.isIncludeDocs() || (filter != null);
-        String additionalSelectColumns =  "";
-        if(includeDocs) {
-            additionalSelectColumns = ", json";
+        String sql;
+        // The columns are the change's sequence, doc_id, docid, revid, deleted, and the sequence
+        // of the revision itself:
+        if(options.isIncludeConflicts()) {
+            sql = "SELECT sequence, revs.doc_id, docid, revid, revs.deleted, sequence FROM revs, docs "
+                        + "WHERE current=1 AND sequence > ? "
+                        + "AND revs.doc_id = docs.doc_id "
+                        + "ORDER BY revs.sequence";
+        } else {
+            // Every doc with a new leaf revision (which may be a losing conflict), at its latest
+            // one, reported with its winning rev, found via the docs table:
+            sql = "SELECT changed.sequence, docs.doc_id, docid, revid, revs.deleted, revs.sequence "
+                        + "FROM (SELECT doc_id, MAX(sequence) AS sequence FROM revs "
+                        + "      WHERE current=1 AND sequence > ? GROUP BY doc_id) AS changed, docs, revs "
+                        + "WHERE docs.doc_id = changed.doc_id "
+                        + "AND revs.sequence = docs.winning_seq "
+                        + "ORDER BY changed.sequence";
+        }
+        List<String> args = new ArrayList<String>();
+        args.add(Long.toString(lastSeq));
+        if(filter == null && options.getLimit() != Integer.MAX_VALUE) {
+            // Without a filter every row is returned, so the limit can be pushed down to SQL:
+            sql += " LIMIT ?";
+            args.add(Integer.toString(options.getLimit()));
         }
 
-        String sql = "SELECT sequence, revs.doc_id, docid, revid, deleted" + additionalSelectColumns + " FROM revs, docs "
-                        + "WHERE sequence > ? AND current=1 "
-                        + "AND revs.doc_id = docs.doc_id "
-                        + "ORDER BY revs.doc_id, revid DESC";
-        String[] args = {Long.toString(lastSeq)};
-        Cursor cursor = null;
-        RevisionList changes = null;
+        Cursor cursor = database.rawQuery(sql, args.toArray(new String[args.size()]));
+        return new ChangesIterator(this, cursor, lastSeq, options, filter);
+    }
 
+    /**
+     * Returns the stored JSON of the revision with the given sequence, or null if it's missing.
+     */
+    /* package */ byte[] getRevisionJSON(long sequence) throws SQLException {
+        Cursor cursor = null;
         try {
-            cursor = database.rawQuery(sql, args);
-            cursor.moveToNext();
-            changes = new RevisionList();
-            long lastDocId = 0;
-            while(!cursor.isAfterLast()) {
-                if(!options.isIncludeConflicts()) {
-                    // Only count the first rev for a given doc (the rest will be losing conflicts):
-                    long docNumericId = cursor.getLong(1);
-                    if(docNumericId == lastDocId) {
-                        cursor.moveToNext();
-                        continue;
-                    }
-                    lastDocId = docNumericId;
-                }
-
-                RevisionInternal rev = new RevisionInternal(cursor.getString(2), cursor.getString(3), (cursor.getInt(4) > 0), this);
-                rev.setSequence(cursor.getLong(0));
-                if(includeDocs) {
-                    expandStoredJSONIntoRevisionWithAttachments(cursor.getBlob(5), rev, options.getContentOptions());
-                }
-                Map<String, Object> paramsFixMe = null;  // TODO: these should not be null
-                if (runFilter(filter, paramsFixMe, rev)) {
-                    changes.add(rev);
-                }
-                cursor.moveToNext();
-            }
-        } catch (SQLException e) {
-            Log.e(Database.TAG, "Error looking for changes", e);
+            cursor = statements.query("SELECT json FROM revs WHERE sequence=?", sequence);
+            return cursor.moveToNext() ? cursor.getBlob(0) : null;
         } finally {
-            if(cursor != null) {
+            if (cursor != null) {
                 cursor.close();
             }
         }
-
-        if(options.isSortBySequence()) {
-            changes.sortBySequence();
-        }
-        changes.limit(options.getLimit());
-        return changes;
     }
 
     /**
@@ -2042,26 +2700,8 @@ public final class Database {
             if (view == null) {
                 throw new CouchbaseLiteException(new Status(Status.NOT_FOUND));
             }
-            lastSequence = view.getLastSequenceIndexed();
-            if (options.getStale() == Query.IndexUpdateMode.BEFORE || lastSequence <= 0) {
-                view.updateIndex();
-                lastSequence = view.getLastSequenceIndexed();
-            } else if (options.getStale() == Query.IndexUpdateMode.AFTER && lastSequence < getLastSequenceNumber()) {
-
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            view.updateIndex();
-                        } catch (CouchbaseLiteException e) {
-                            Log.e(Database.TAG, "Error updating view index on background thread", e);
-                        }
-                    }
-                }).start();
-
-            }
-            rows = view.queryWithOptions(options);
-
+            lastSequence = updateIndexForQuery(view, options);
+            rows = queryViewWithCache(view, options, lastSequence);
 
         } else {
             // nil view means query _all_docs
@@ -2081,6 +2721,190 @@ public final class Database {
 
     }
 
+    /**
+     * Runs a view query (see View.queryWithOptions()) given the sequence the view's index is
+     * at, returning the cached rows instead if the query result cache has them.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public List<QueryRow> queryViewWithCache(View view, QueryOptions options, long lastSequence) throws CouchbaseLiteException {
+        if (!queryResultCache.isEnabled()) {
+            return view.queryWithOptions(options);
+        }
+        String key = queryResultCache.keyFor(view, options, lastSequence);
+        List<QueryRow> rows = queryResultCache.get(view.getName(), lastSequence, key);
+        if (rows == null) {
+            rows = view.queryWithOptions(options);
+            queryResultCache.put(key, rows);
+        }
+        return rows;
+    }
+
+    /**
+     * The ETag of a view query's results, given the sequence the view's index is at. It's a
+     * hash of the key the query result cache would store them under.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public String getQueryResultETag(View view, QueryOptions options, long lastSequence) {
+        return QueryResultCache.etagFor(queryResultCache.keyFor(view, options, lastSequence));
+    }
+
+    /**
+     * Sets the most rows that the query result cache may hold, over all the results cached.
+     * Queries of a view whose index hasn't changed since the same query last ran then return
+     * the cached rows. 0 (the default) disables the cache.
+     */
+    @InterfaceAudience.Public
+    public void setQueryResultCacheSize(int maxRows) {
+        queryResultCache.setMaxRows(maxRows);
+    }
+
+    @InterfaceAudience.Public
+    public int getQueryResultCacheSize() {
+        return queryResultCache.getMaxRows();
+    }
+
+    /**
+     * The number of view queries answered from the query result cache.
+     */
+    @InterfaceAudience.Public
+    public long getQueryResultCacheHits() {
+        return queryResultCache.getHits();
+    }
+
+    /**
+     * The number of view queries that looked in the query result cache and had to run.
+     */
+    @InterfaceAudience.Public
+    public long getQueryResultCacheMisses() {
+        return queryResultCache.getMisses();
+    }
+
+    /**
+     * Forgets the cached query results of a view whose index has changed in a way that doesn't
+     * advance its lastSequence.
+     */
+    /* package */ void invalidateQueryResults(String viewName) {
+        queryResultCache.invalidateView(viewName);
+    }
+
+    /**
+     * Like queryViewNamed(), but for a streaming query (see Query.setStreaming()): returns a
+     * QueryEnumerator that reads the rows from the database as they're enumerated, if they can
+     * be; reduced and grouped queries, and _all_docs queries with 'keys', are run as usual.
+     */
+    /* package */ QueryEnumerator streamViewNamed(String viewName, QueryOptions options) throws CouchbaseLiteException {
+        QueryEnumerator enumerator;
+        if (viewName != null && viewName.length() > 0) {
+            View view = getView(viewName);
+            if (view == null) {
+                throw new CouchbaseLiteException(new Status(Status.NOT_FOUND));
+            }
+            long lastSequence = updateIndexForQuery(view, options);
+            enumerator = view.streamWithOptions(options, lastSequence);
+            if (enumerator == null) {
+                enumerator = new QueryEnumerator(this, view.queryWithOptions(options), lastSequence);
+            }
+        } else {
+            enumerator = streamAllDocs(options);
+            if (enumerator == null) {
+                List<Long> outLastSequence = new ArrayList<Long>();
+                List<QueryRow> rows = queryViewNamed(null, options, outLastSequence);
+                enumerator = new QueryEnumerator(this, rows, outLastSequence.get(0));
+            }
+        }
+        return enumerator;
+    }
+
+    /**
+     * Updates a view's index before a query, or not, as the options' 'stale' setting says, and
+     * returns the sequence the index is then up to date with.
+     */
+    private long updateIndexForQuery(View view, QueryOptions options) throws CouchbaseLiteException {
+        long lastSequence = view.getLastSequenceIndexed();
+        if (options.getStale() == Query.IndexUpdateMode.BEFORE || lastSequence <= 0) {
+            view.updateIndex();
+            lastSequence = view.getLastSequenceIndexed();
+        } else if (options.getStale() == Query.IndexUpdateMode.AFTER && lastSequence < getLastSequenceNumber()) {
+            getIndexScheduler().requestUpdate(view);
+        }
+        return lastSequence;
+    }
+
+    /**
+     * Brings the index of every view that has a map function up to date, in a single pass over
+     * the documents changed since the least up-to-date view was last indexed. Cheaper than
+     * calling View.updateIndex() on each view, since each document is only read and parsed once.
+     */
+    @InterfaceAudience.Public
+    public void updateAllIndexes() throws CouchbaseLiteException {
+        List<View> allViews = getAllViews();
+        if (allViews != null) {
+            updateIndexes(allViews);
+        }
+    }
+
+    /**
+     * Like updateAllIndexes(), but only updates the views of one design document, i.e. those
+     * whose names start with the design document's name followed by a '/'.
+     */
+    @InterfaceAudience.Public
+    public void updateDesignDocIndexes(String designDocName) throws CouchbaseLiteException {
+        List<View> allViews = getAllViews();
+        if (allViews == null) {
+            return;
+        }
+        String prefix = designDocName + "/";
+        List<View> groupViews = new ArrayList<View>();
+        for (View view : allViews) {
+            if (view.getName().startsWith(prefix)) {
+                groupViews.add(view);
+            }
+        }
+        updateIndexes(groupViews);
+    }
+
+    private void updateIndexes(List<View> views) throws CouchbaseLiteException {
+        List<View> staleViews = new ArrayList<View>(views.size());
+        for (View view : views) {
+            // Views whose map function hasn't been set up in this session can't be updated:
+            if (view.getMap() != null && view.isStale()) {
+                staleViews.add(view);
+            }
+        }
+        if (!staleViews.isEmpty()) {
+            View.updateIndexes(this, staleViews);
+        }
+    }
+
+    /**
+     * Call before deleting the revisions matching 'revsWhere'. Deleting them also deletes their
+     * view index rows (by cascade), which the views' stored reductions can't keep track of, so
+     * this marks the reductions of the affected views as needing a rebuild. Cached query
+     * results are all dropped, as the views' lastSequence doesn't change either.
+     */
+    private void invalidateReduceIndexes(String revsWhere, String[] args) throws SQLException {
+        queryResultCache.invalidateAll();
+        List<Integer> viewIds = new ArrayList<Integer>();
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT view_id FROM views WHERE reducesequence>=0", null);
+            while (cursor.moveToNext()) {
+                viewIds.add(cursor.getInt(0));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        for (int viewId : viewIds) {
+            database.execSQL(String.format("UPDATE views SET reducesequence=-1 WHERE view_id=%d AND EXISTS ("
+                    + "SELECT 1 FROM %s WHERE sequence IN (SELECT sequence FROM revs WHERE %s))",
+                    viewId, View.mapTableName(viewId), revsWhere), args);
+        }
+    }
+
     /**
      * @exclude
      */
@@ -2131,8 +2955,12 @@ public final class Database {
         Status result = new Status(Status.INTERNAL_SERVER_ERROR);
         try {
             String[] whereArgs = { name };
+            int viewId = (int) statements.longForQuery("SELECT view_id FROM views WHERE name=?", name);
             int rowsAffected = database.delete("views", "name=?", whereArgs);
             if(rowsAffected > 0) {
+                // The view's index rows are in a table of its own (and maybe a shadow table):
+                database.execSQL("DROP TABLE IF EXISTS " + View.mapTableName(viewId));
+                database.execSQL("DROP TABLE IF EXISTS " + View.shadowTableName(viewId));
                 result.setCode(Status.OK);
             }
             else {
@@ -2171,33 +2999,139 @@ public final class Database {
         if(options == null) {
             options = new QueryOptions();
         }
-        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
 
         long updateSeq = 0;
         if(options.isUpdateSeq()) {
             updateSeq = getLastSequenceNumber();  // TODO: needs to be atomic with the following SELECT
         }
 
-        StringBuffer sql = new StringBuffer("SELECT revs.doc_id, docid, revid, sequence");
+        if (options.getKeys() != null && options.getKeys().size() == 0) {
+            return result;
+        }
+        List<String> args = new ArrayList<String>();
+        String sql = allDocsSQL(options, args);
+
+        Cursor cursor = null;
+        Map<String, QueryRow> docs = new HashMap<String, QueryRow>();
+
+
+        try {
+            cursor = database.rawQuery(sql, args.toArray(new String[args.size()]));
+
+            while(cursor.moveToNext()) {
+                QueryRow change = allDocsRow(cursor, options);
+                String docId = change.getSourceDocumentId();
+                if (options.getKeys() != null) {
+                    docs.put(docId, change);
+                } else {
+                    rows.add(change);
+                }
+            }
+
+            if (options.getKeys() != null) {
+                for (Object docIdObject : options.getKeys()) {
+                    if (docIdObject instanceof String) {
+                        String docId = (String) docIdObject;
+                        QueryRow change = docs.get(docId);
+                        if (change == null) {
+                            Map<String, Object> value = new HashMap<String, Object>();
+                            long docNumericID = getDocNumericID(docId);
+                            if (docNumericID > 0) {
+                                boolean deleted;
+                                List<Boolean> outIsDeleted = new ArrayList<Boolean>();
+                                List<Boolean> outIsConflict = new ArrayList<Boolean>();
+                                String revId = winningRevIDOfDoc(docNumericID, outIsDeleted, outIsConflict);
+                                if (outIsDeleted.size() > 0) {
+                                    deleted = true;
+                                }
+                                if (revId != null) {
+                                    value.put("rev", revId);
+                                    value.put("deleted", true);
+                                }
+                            }
+                            change = new QueryRow((value != null ? docId : null), 0, docId, value, null);
+                            change.setDatabase(this);
+                        }
+                        rows.add(change);
+                    }
+                }
+
+            }
+
+
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error getting all docs", e);
+            throw new CouchbaseLiteException("Error getting all docs", e, new Status(Status.INTERNAL_SERVER_ERROR));
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+
+        result.put("rows", rows);
+        result.put("total_rows", rows.size());
+        result.put("offset", options.getSkip());
+        if(updateSeq != 0) {
+            result.put("update_seq", updateSeq);
+        }
+
+        return result;
+    }
+
+    /**
+     * Runs an _all_docs query like getAllDocs(), but returns a streaming QueryEnumerator that
+     * reads the rows from the cursor as they're enumerated. Returns null if the options have
+     * 'keys', whose rows have to be put in order (and missing ones filled in) first.
+     */
+    /* package */ QueryEnumerator streamAllDocs(final QueryOptions options) throws CouchbaseLiteException {
+        if (options.getKeys() != null) {
+            return null;
+        }
+        long lastSequence = getLastSequenceNumber();
+        List<String> args = new ArrayList<String>();
+        String sql = allDocsSQL(options, args);
+        try {
+            Cursor cursor = database.rawQuery(sql, args.toArray(new String[args.size()]));
+            return new QueryEnumerator(this, cursor, new QueryEnumerator.RowReader() {
+                @Override
+                public QueryRow readRow(Cursor cursor) throws SQLException {
+                    return allDocsRow(cursor, options);
+                }
+            }, lastSequence);
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error getting all docs", e);
+            throw new CouchbaseLiteException("Error getting all docs", e, new Status(Status.INTERNAL_SERVER_ERROR));
+        }
+    }
+
+    /**
+     * Builds the query of getAllDocs(), appending its arguments to 'args'. The rows' columns
+     * are read by allDocsRow().
+     */
+    private String allDocsSQL(QueryOptions options, List<String> args) {
+        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+        // Each docs row points straight at its winning revision, so there's exactly one row per
+        // document and LIMIT/OFFSET count documents:
+        StringBuffer sql = new StringBuffer("SELECT docs.doc_id, docid, revid, sequence");
         if (options.isIncludeDocs()) {
             sql.append(", json");
         }
         if (includeDeletedDocs) {
-            sql.append(", deleted");
+            sql.append(", docs.deleted");
         }
-        sql.append(" FROM revs, docs WHERE");
+        sql.append(", docs.conflicted");
+        sql.append(" FROM docs, revs WHERE");
         if (options.getKeys() != null) {
-            if (options.getKeys().size() == 0) {
-                return result;
-            }
             String commaSeperatedIds = joinQuotedObjects(options.getKeys());
-            sql.append(String.format(" revs.doc_id IN (SELECT doc_id FROM docs WHERE docid IN (%s)) AND", commaSeperatedIds));
+            sql.append(String.format(" docid IN (%s) AND", commaSeperatedIds));
         }
-        sql.append(" docs.doc_id = revs.doc_id AND current=1");
+        sql.append(" revs.sequence = docs.winning_seq");
         if (!includeDeletedDocs) {
-            sql.append(" AND deleted=0");
+            sql.append(" AND docs.deleted=0");
+        }
+        if (options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS) {
+            sql.append(" AND docs.conflicted=1");
         }
-        List<String> args = new ArrayList<String>();
         Object minKey = options.getStartKey();
         Object maxKey = options.getEndKey();
         boolean inclusiveMin = true;
@@ -2218,118 +3152,80 @@ public final class Database {
             sql.append((inclusiveMax ? " AND docid <= ?" :  " AND docid < ?"));
             args.add((String)maxKey);
         }
+        // A page token continues after the docID of the last page's last row:
+        if (options.getPageToken() != null && options.getPageToken().getDocId() != null) {
+            sql.append(options.isDescending() ? " AND docid < ?" : " AND docid > ?");
+            args.add(options.getPageToken().getDocId());
+        }
 
         sql.append(
                 String.format(
-                        " ORDER BY docid %s, %s revid DESC LIMIT ? OFFSET ?",
-                        (options.isDescending() ? "DESC" : "ASC"),
-                        (includeDeletedDocs ? "deleted ASC," : "")
+                        " ORDER BY docid %s LIMIT ? OFFSET ?",
+                        (options.isDescending() ? "DESC" : "ASC")
                 )
         );
 
+        // (The query's own skip only applies to the first page.)
         args.add(Integer.toString(options.getLimit()));
-        args.add(Integer.toString(options.getSkip()));
-
-        Cursor cursor = null;
-        Map<String, QueryRow> docs = new HashMap<String, QueryRow>();
-
-
-        try {
-            cursor = database.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
-
-            boolean keepGoing = cursor.moveToNext();
-
-            while(keepGoing) {
-
-                long docNumericID = cursor.getLong(0);
-                String docId = cursor.getString(1);
-                String revId = cursor.getString(2);
-                long sequenceNumber = cursor.getLong(3);
-                boolean deleted = includeDeletedDocs && cursor.getInt(getDeletedColumnIndex(options))>0;
-                Map<String, Object> docContents = null;
-                if (options.isIncludeDocs()) {
-                    byte[] json = cursor.getBlob(4);
-                    docContents = documentPropertiesFromJSON(json, docId, revId, deleted, sequenceNumber, options.getContentOptions());
-                }
-
-                // Iterate over following rows with the same doc_id -- these are conflicts.
-                // Skip them, but collect their revIDs if the 'conflicts' option is set:
-                List<String> conflicts = new ArrayList<String>();
-                while (((keepGoing = cursor.moveToNext()) == true) && cursor.getLong(0) == docNumericID) {
-                    if (options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS || options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS) {
-                        if (conflicts.isEmpty()) {
-                            conflicts.add(revId);
-                        }
-                        conflicts.add(cursor.getString(2));
-                    }
-                }
+        args.add(Integer.toString((options.getPageToken() != null) ? 0 : options.getSkip()));
+        return sql.toString();
+    }
 
-                if (options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS && conflicts.isEmpty()) {
-                    continue;
-                }
+    /**
+     * Makes the QueryRow of a document from the current row of an allDocsSQL() query.
+     */
+    private QueryRow allDocsRow(Cursor cursor, QueryOptions options) throws SQLException {
+        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+        boolean wantConflicts = (options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS ||
+                options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS);
+        int conflictedColumnIndex = includeDeletedDocs ? getDeletedColumnIndex(options) + 1 : getDeletedColumnIndex(options);
+        long docNumericID = cursor.getLong(0);
+        String docId = cursor.getString(1);
+        String revId = cursor.getString(2);
+        long sequenceNumber = cursor.getLong(3);
+        boolean deleted = includeDeletedDocs && cursor.getInt(getDeletedColumnIndex(options))>0;
+        Map<String, Object> docContents = null;
+        if (options.isIncludeDocs()) {
+            byte[] json = cursor.getBlob(4);
+            docContents = documentPropertiesFromJSON(json, docId, revId, deleted, sequenceNumber, options.getContentOptions());
+        }
 
-                Map<String, Object> value = new HashMap<String, Object>();
-                value.put("rev", revId);
-                value.put("_conflicts", conflicts);
-                if (includeDeletedDocs){
-                    value.put("deleted", (deleted ? true : null));
-                }
-                QueryRow change = new QueryRow(docId, sequenceNumber, docId, value, docContents);
-                change.setDatabase(this);
-                if (options.getKeys() != null) {
-                    docs.put(docId, change);
-                } else {
-                    rows.add(change);
-                }
-            }
+        // Collect the revIDs of the doc's live leaves (the winner first) if it's in
+        // conflict and the 'conflicts' option is set:
+        List<String> conflicts = new ArrayList<String>();
+        if (wantConflicts && cursor.getInt(conflictedColumnIndex) > 0) {
+            conflicts = getLiveLeafRevIDs(docNumericID);
+        }
 
-            if (options.getKeys() != null) {
-                for (Object docIdObject : options.getKeys()) {
-                    if (docIdObject instanceof String) {
-                        String docId = (String) docIdObject;
-                        QueryRow change = docs.get(docId);
-                        if (change == null) {
-                            Map<String, Object> value = new HashMap<String, Object>();
-                            long docNumericID = getDocNumericID(docId);
-                            if (docNumericID > 0) {
-                                boolean deleted;
-                                List<Boolean> outIsDeleted = new ArrayList<Boolean>();
-                                List<Boolean> outIsConflict = new ArrayList<Boolean>();
-                                String revId = winningRevIDOfDoc(docNumericID, outIsDeleted, outIsConflict);
-                                if (outIsDeleted.size() > 0) {
-                                    deleted = true;
-                                }
-                                if (revId != null) {
-                                    value.put("rev", revId);
-                                    value.put("deleted", true);
-                                }
-                            }
-                            change = new QueryRow((value != null ? docId : null), 0, docId, value, null);
-                            change.setDatabase(this);
-                        }
-                        rows.add(change);
-                    }
-                }
+        Map<String, Object> value = new HashMap<String, Object>();
+        value.put("rev", revId);
+        value.put("_conflicts", conflicts);
+        if (includeDeletedDocs){
+            value.put("deleted", (deleted ? true : null));
+        }
+        QueryRow change = new QueryRow(docId, sequenceNumber, docId, value, docContents);
+        change.setDatabase(this);
+        return change;
+    }
 
+    /**
+     * Returns the revIDs of a document's current, non-deleted revisions, highest (ie. the
+     * winner) first.
+     */
+    private List<String> getLiveLeafRevIDs(long docNumericID) throws SQLException {
+        List<String> result = new ArrayList<String>();
+        Cursor cursor = null;
+        try {
+            cursor = statements.query("SELECT revid FROM revs WHERE doc_id=? AND current=1 AND deleted=0 " +
+                    "ORDER BY revid DESC", docNumericID);
+            while (cursor.moveToNext()) {
+                result.add(cursor.getString(0));
             }
-
-
-        } catch (SQLException e) {
-            Log.e(Database.TAG, "Error getting all docs", e);
-            throw new CouchbaseLiteException("Error getting all docs", e, new Status(Status.INTERNAL_SERVER_ERROR));
         } finally {
-            if(cursor != null) {
+            if (cursor != null) {
                 cursor.close();
             }
         }
-
-        result.put("rows", rows);
-        result.put("total_rows", rows.size());
-        result.put("offset", options.getSkip());
-        if(updateSeq != 0) {
-            result.put("update_seq", updateSeq);
-        }
-
         return result;
     }
 
@@ -2341,45 +3237,13 @@ public final class Database {
     @InterfaceAudience.Private
     String winningRevIDOfDoc(long docNumericId, List<Boolean> outIsDeleted, List<Boolean> outIsConflict) throws CouchbaseLiteException {
 
-        Cursor cursor = null;
-        String sql = "SELECT revid, deleted FROM revs" +
-                " WHERE doc_id=? and current=1" +
-                " ORDER BY deleted asc, revid desc LIMIT 2";
-
-        String[] args = { Long.toString(docNumericId) };
-        String revId = null;
-
         try {
-            cursor = database.rawQuery(sql, args);
-
-            cursor.moveToNext();
-            if (!cursor.isAfterLast()) {
-                revId = cursor.getString(0);
-                boolean deleted = cursor.getInt(1) > 0;
-                if (deleted) {
-                    outIsDeleted.add(true);
-                }
-                // The document is in conflict if there are two+ result rows that are not deletions.
-                boolean hasNextResult = cursor.moveToNext();
-                if (hasNextResult) {
-                    boolean isNextDeleted = cursor.getInt(1) > 0;
-                    boolean isInConflict = !deleted && hasNextResult && !isNextDeleted;
-                    if (isInConflict) {
-                        outIsConflict.add(true);
-                    }
-                }
-            }
-
+            // The document is in conflict if there are two+ current revisions that are not deletions.
+            return getRevTree(docNumericId).getWinningRevID(outIsDeleted, outIsConflict);
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error", e);
             throw new CouchbaseLiteException("Error", e, new Status(Status.INTERNAL_SERVER_ERROR));
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
         }
-
-        return revId;
     }
 
 
@@ -3055,46 +3919,76 @@ public final class Database {
       */
      @InterfaceAudience.Private
     public Status garbageCollectAttachments() {
-        // First delete attachment rows for already-cleared revisions:
-        // OPT: Could start after last sequence# we GC'd up to
-
+        long markTime = System.currentTimeMillis();
+        BloomFilter keysInUse;
         try {
-            database.execSQL("DELETE FROM attachments WHERE sequence IN " +
-                    "(SELECT sequence from revs WHERE json IS null)");
+            keysInUse = markAttachmentsInUse();
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error finding attachment keys in use", e);
+            return new Status(Status.INTERNAL_SERVER_ERROR);
         }
-        catch(SQLException e) {
-            Log.e(Database.TAG, "Error deleting attachments", e);
+
+        int numDeleted = 0;
+        for (int batch = 0; batch < ATTACHMENT_SWEEP_BATCHES; batch++) {
+            numDeleted += sweepAttachments(keysInUse, batch, markTime);
         }
+        Log.v(Database.TAG, "Deleted %d attachments", numDeleted);
+        return new Status(Status.OK);
+    }
 
-        // Now collect all remaining attachment IDs and tell the store to delete all but these:
-        Cursor cursor = null;
-        try {
-            cursor = database.rawQuery("SELECT DISTINCT key FROM attachments", null);
+    /**
+     * The mark phase of attachment garbage collection. Deletes the attachment rows of
+     * revisions whose bodies have been cleared (only looking at sequences added since the last
+     * time, since compaction removes the rows of the revisions it clears), then streams the
+     * keys still referenced -- plus those of attachments still being written -- into a Bloom
+     * filter of hex digests. A false positive just means a garbage blob survives until the
+     * next collection.
+     */
+    /* package */ BloomFilter markAttachmentsInUse() throws SQLException {
+        String lastValue = statements.stringForQuery("SELECT value FROM info WHERE key='lastAttachmentGCSequence'");
+        long lastSequence = lastValue != null ? Long.parseLong(lastValue) : 0;
+        long maxSequence = getLastSequenceNumber();
+        statements.executeUpdateDelete("DELETE FROM attachments WHERE sequence IN " +
+                "(SELECT sequence FROM revs WHERE sequence>? AND sequence<=? AND json IS null)", lastSequence, maxSequence);
+        statements.execute("INSERT OR REPLACE INTO info (key, value) VALUES ('lastAttachmentGCSequence', ?)",
+                Long.toString(maxSequence));
 
-            cursor.moveToNext();
-            List<BlobKey> allKeys = new ArrayList<BlobKey>();
-            while(!cursor.isAfterLast()) {
-                BlobKey key = new BlobKey(cursor.getBlob(0));
-                allKeys.add(key);
-                cursor.moveToNext();
-            }
+        Map<String, BlobStoreWriter> pending = pendingAttachmentsByDigest;
+        int pendingCount = pending != null ? pending.size() : 0;
+        long count = statements.longForQuery("SELECT COUNT(*) FROM attachments");
+        BloomFilter result = new BloomFilter((int) Math.min(count + pendingCount, Integer.MAX_VALUE),
+                ATTACHMENT_GC_FALSE_POSITIVE_RATE);
 
-            int numDeleted = attachments.deleteBlobsExceptWithKeys(allKeys);
-            if(numDeleted < 0) {
-                return new Status(Status.INTERNAL_SERVER_ERROR);
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT key FROM attachments", null);
+            while(cursor.moveToNext()) {
+                result.add(BlobKey.convertToHex(cursor.getBlob(0)));
             }
-
-            Log.v(Database.TAG, "Deleted %d attachments", numDeleted);
-
-            return new Status(Status.OK);
-        } catch (SQLException e) {
-            Log.e(Database.TAG, "Error finding attachment keys in use", e);
-            return new Status(Status.INTERNAL_SERVER_ERROR);
         } finally {
             if(cursor != null) {
                 cursor.close();
             }
         }
+
+        if (pending != null) {
+            for (BlobStoreWriter writer : new ArrayList<BlobStoreWriter>(pending.values())) {
+                if (writer.getBlobKey() != null) {
+                    result.add(BlobKey.convertToHex(writer.getBlobKey().getBytes()));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The sweep phase of attachment garbage collection: deletes the unreferenced blobs in one
+     * of ATTACHMENT_SWEEP_BATCHES batches (by the first hex digit of their digest). Blobs
+     * stored since just before the mark phase started at markTime are kept.
+     */
+    /* package */ int sweepAttachments(BloomFilter keysInUse, int batch, long markTime) {
+        String prefix = Integer.toHexString(batch);
+        return attachments.deleteBlobsExcept(keysInUse, prefix, markTime - BLOB_MTIME_GRANULARITY);
     }
 
     /*************************************************************************************************/
@@ -3198,9 +4092,14 @@ public final class Database {
     public long insertDocumentID(String docId) {
         long rowId = -1;
         try {
-            ContentValues args = new ContentValues();
-            args.put("docid", docId);
-            rowId = database.insert("docs", null, args);
+            // Hold the lock so the docid can't slip past a concurrent build of the filter
+            synchronized (docIDLock) {
+                rowId = statements.executeInsert("INSERT INTO docs (docid) VALUES (?)", docId);
+                if (rowId > 0) {
+                    addKnownDocID(docId);
+                    cacheDocNumericID(docId, rowId);
+                }
+            }
         } catch (Exception e) {
             Log.e(Database.TAG, "Error inserting document id", e);
         }
@@ -3386,18 +4285,20 @@ public final class Database {
     public long insertRevision(RevisionInternal rev, long docNumericID, long parentSequence, boolean current, boolean hasAttachments, byte[] data) {
         long rowId = 0;
         try {
-            ContentValues args = new ContentValues();
-            args.put("doc_id", docNumericID);
-            args.put("revid", rev.getRevId());
-            if(parentSequence != 0) {
-                args.put("parent", parentSequence);
-            }
-            args.put("current", current);
-            args.put("deleted", rev.isDeleted());
-            args.put("no_attachments",!hasAttachments);
-            args.put("json", data);
-            rowId = database.insert("revs", null, args);
+            String sql = "INSERT INTO revs (doc_id, revid, parent, current, deleted, no_attachments, json)" +
+                    " VALUES (?, ?, ?, ?, ?, ?, ?)";
+            rowId = statements.executeInsert(sql,
+                    docNumericID,
+                    rev.getRevId(),
+                    parentSequence != 0 ? parentSequence : null,
+                    current,
+                    rev.isDeleted(),
+                    !hasAttachments,
+                    data);
             rev.setSequence(rowId);
+            if (rowId > 0) {
+                addToCachedRevTree(docNumericID, rowId, parentSequence, rev.getRevId(), rev.isDeleted(), current, data == null);
+            }
         } catch (Exception e) {
             Log.e(Database.TAG, "Error inserting revision", e);
         }
@@ -3577,74 +4478,486 @@ public final class Database {
                     throw new CouchbaseLiteException(Status.BAD_REQUEST);
                 }
 
-                if(json.length == 2 && json[0] == '{' && json[1] == '}') {
-                    json = null;
+                if(json.length == 2 && json[0] == '{' && json[1] == '}') {
+                    json = null;
+                }
+
+            }
+
+            String newRevId = generateIDForRevision(oldRev, json, attachments, prevRevId);
+            newRev = oldRev.copyWithDocID(docId, newRevId);
+            stubOutAttachmentsInRevision(attachments, newRev);
+
+            // Don't store a SQL null in the 'json' column -- I reserve it to mean that the revision data
+            // is missing due to compaction or replication.
+            // Instead, store an empty zero-length blob.
+            if(json == null)
+                json = new byte[0];
+
+            //// PART III: In which the actual insertion finally takes place:
+
+            int attachmentSize = attachments.size();
+            boolean hasAttachments = attachments.size() > 0;
+
+            // Now insert the rev itself:
+            long newSequence = insertRevision(newRev, docNumericID, parentSequence, true, (attachments.size() > 0), json);
+            if(newSequence == 0) {
+                return null;
+            }
+
+            // Make replaced rev non-current:
+            try {
+                ContentValues args = new ContentValues();
+                args.put("current", 0);
+                database.update("revs", args, "sequence=?", new String[] {String.valueOf(parentSequence)});
+                setCurrentInCachedRevTree(docNumericID, parentSequence, false);
+                updateWinner(docNumericID);
+            } catch (SQLException e) {
+                Log.e(Database.TAG, "Error setting parent rev non-current", e);
+                throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+            }
+
+
+            // Store any attachments:
+            if(attachments != null) {
+                processAttachmentsForRevision(attachments, newRev, parentSequence);
+            }
+
+
+            // Figure out what the new winning rev ID is:
+            winningRev = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion, newRev);
+
+            // Success!
+            if(deleted) {
+                resultStatus.setCode(Status.OK);
+            }
+            else {
+                resultStatus.setCode(Status.CREATED);
+            }
+
+        } catch (SQLException e1) {
+            Log.e(Database.TAG, "Error putting revision", e1);
+            return null;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+            endTransaction(resultStatus.isSuccessful());
+        }
+
+        //// EPILOGUE: A change notification is sent...
+        notifyChange(newRev, winningRev, null, inConflict);
+        return newRev;
+    }
+
+    /**
+     * Stores a batch of new revisions. Each one is handled as by putRevision(), except that the
+     * per-document overhead is amortized over the batch: existing doc IDs and current revisions
+     * are looked up with set-based queries, new docs and revisions are written with compiled
+     * batch statements, and everything happens in one transaction so observers get a single
+     * ChangeEvent.
+     *
+     * A revision that fails its own checks (bad request, conflict, validation, missing parent)
+     * gets an error status and is skipped; the rest are still saved. A database error aborts
+     * the whole batch and is thrown.
+     *
+     * @param revs The revisions to add, with the same requirements as putRevision().
+     * @param prevRevIds The ID of the revision each one replaces, with null entries for new
+     *                   documents. May be null if they're all new.
+     * @param allowConflict If false, a revision that would create a conflict fails with status 409.
+     * @param outStatuses On return, holds one status per revision.
+     * @return The new revisions in the same order as revs, with null entries for failures.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public List<RevisionInternal> putRevisions(List<RevisionInternal> revs, List<String> prevRevIds, boolean allowConflict, List<Status> outStatuses) throws CouchbaseLiteException {
+        List<RevisionInternal> results = new ArrayList<RevisionInternal>(revs.size());
+        List<PendingPut> pending = new ArrayList<PendingPut>();
+        Set<String> pendingDocIds = new HashSet<String>();
+
+        Set<String> docIds = new HashSet<String>();
+        for (RevisionInternal rev : revs) {
+            if (rev != null && rev.getDocId() != null) {
+                docIds.add(rev.getDocId());
+            }
+        }
+
+        boolean success = false;
+        beginTransaction();
+        try {
+            Map<String, DocState> docStates = loadDocStates(docIds, false);
+
+            for (int i = 0; i < revs.size(); i++) {
+                RevisionInternal rev = revs.get(i);
+                String prevRevId = (prevRevIds != null) ? prevRevIds.get(i) : null;
+                Status status = new Status(Status.OK);
+                outStatuses.add(status);
+                results.add(null);
+
+                String docId = (rev != null) ? rev.getDocId() : null;
+                if (docId != null && pendingDocIds.contains(docId)) {
+                    // The same doc appears again; write out what we have so this edit sees it.
+                    flushPendingPuts(pending, results, outStatuses);
+                    for (String flushedDocId : pendingDocIds) {
+                        docStates.remove(flushedDocId);
+                    }
+                    pendingDocIds.clear();
+                }
+
+                DocState state = new DocState();
+                if (docId != null) {
+                    state = docStates.get(docId);
+                    if (state == null) {
+                        state = loadDocStates(Collections.singleton(docId), false).get(docId);
+                    }
+                }
+
+                try {
+                    PendingPut put = preparePut(rev, prevRevId, allowConflict, state);
+                    put.index = i;
+                    pending.add(put);
+                    pendingDocIds.add(put.newRev.getDocId());
+                } catch (CouchbaseLiteException e) {
+                    status.setCode(e.getCBLStatus().getCode());
+                }
+            }
+            flushPendingPuts(pending, results, outStatuses);
+            success = true;
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error putting revisions", e);
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        } finally {
+            endTransaction(success);
+        }
+        return results;
+    }
+
+    /**
+     * What the batch writers know about an existing document: its numeric ID (0 if it doesn't
+     * exist), its winning revision, the sequences of its current revisions and, if requested,
+     * all of its revisions.
+     */
+    private static class DocState {
+        long docNumericID;
+        String winningRevID;
+        boolean winnerDeleted;
+        boolean conflicted;
+        Map<String, Long> currentSequences = new HashMap<String, Long>();
+        Map<String, RevisionInternal> allRevs = new HashMap<String, RevisionInternal>();
+    }
+
+    /**
+     * A revision that has passed validation and is ready to be inserted by flushPendingPuts().
+     */
+    private static class PendingPut {
+        int index;
+        RevisionInternal newRev;
+        long docNumericID;
+        long parentSequence;
+        byte[] json;
+        Map<String, AttachmentInternal> attachments;
+        String oldWinningRevID;
+        boolean oldWinnerWasDeletion;
+        boolean inConflict;
+    }
+
+    /**
+     * Looks up the numeric IDs and current revisions of a set of documents, a chunk at a time.
+     * Every docid passed in gets an entry in the result. If includeAllRevs is set, the
+     * non-current revisions are loaded too.
+     */
+    private Map<String, DocState> loadDocStates(Collection<String> docIds, boolean includeAllRevs) throws SQLException {
+        Map<String, DocState> states = new HashMap<String, DocState>();
+        Map<Long, DocState> statesByNumericID = new HashMap<Long, DocState>();
+        Map<Long, String> docIdsByNumericID = new HashMap<Long, String>();
+        List<String> toLookUp = new ArrayList<String>();
+        for (String docId : docIds) {
+            DocState state = new DocState();
+            states.put(docId, state);
+            Long cached = docNumericIDs.get(docId);
+            if (cached != null) {
+                state.docNumericID = cached;
+                statesByNumericID.put(cached, state);
+                docIdsByNumericID.put(cached, docId);
+            } else if (mightContainDocID(docId)) {
+                toLookUp.add(docId);
+            }
+        }
+
+        for (int start = 0; start < toLookUp.size(); start += MAX_SQL_IN_ARGS) {
+            List<String> chunk = toLookUp.subList(start, Math.min(start + MAX_SQL_IN_ARGS, toLookUp.size()));
+            String sql = "SELECT docid, doc_id FROM docs WHERE docid IN (" + sqlPlaceholders(chunk.size()) + ")";
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery(sql, chunk.toArray(new String[chunk.size()]));
+                while (cursor.moveToNext()) {
+                    String docId = cursor.getString(0);
+                    long docNumericID = cursor.getLong(1);
+                    DocState state = states.get(docId);
+                    state.docNumericID = docNumericID;
+                    statesByNumericID.put(docNumericID, state);
+                    docIdsByNumericID.put(docNumericID, docId);
+                    cacheDocNumericID(docId, docNumericID);
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        List<Long> numericIDs = new ArrayList<Long>(statesByNumericID.keySet());
+        for (int start = 0; start < numericIDs.size(); start += MAX_SQL_IN_ARGS) {
+            List<Long> chunk = numericIDs.subList(start, Math.min(start + MAX_SQL_IN_ARGS, numericIDs.size()));
+            // Current revisions first, in the same order as winningRevIDOfDoc(), so the first
+            // row of each doc is its winner:
+            String sql = "SELECT doc_id, revid, deleted, sequence, current FROM revs" +
+                    " WHERE doc_id IN (" + TextUtils.join(",", chunk) + ")" +
+                    (includeAllRevs ? "" : " AND current=1") +
+                    " ORDER BY doc_id, current desc, deleted asc, revid desc";
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery(sql, null);
+                while (cursor.moveToNext()) {
+                    long docNumericID = cursor.getLong(0);
+                    DocState state = statesByNumericID.get(docNumericID);
+                    String revId = cursor.getString(1);
+                    boolean deleted = cursor.getInt(2) > 0;
+                    long sequence = cursor.getLong(3);
+                    if (cursor.getInt(4) > 0) {
+                        if (state.winningRevID == null) {
+                            state.winningRevID = revId;
+                            state.winnerDeleted = deleted;
+                        } else if (state.currentSequences.size() == 1 && !state.winnerDeleted && !deleted) {
+                            // two+ current revisions that are not deletions
+                            state.conflicted = true;
+                        }
+                        state.currentSequences.put(revId, sequence);
+                    }
+                    RevisionInternal rev = new RevisionInternal(docIdsByNumericID.get(docNumericID), revId, deleted, this);
+                    rev.setSequence(sequence);
+                    state.allRevs.put(revId, rev);
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
                 }
-
             }
+        }
+        return states;
+    }
 
-            String newRevId = generateIDForRevision(oldRev, json, attachments, prevRevId);
-            newRev = oldRev.copyWithDocID(docId, newRevId);
-            stubOutAttachmentsInRevision(attachments, newRev);
+    /**
+     * The lookup and validation half of putRevision(), working from a prefetched DocState
+     * rather than querying. Nothing is written to the database.
+     */
+    private PendingPut preparePut(RevisionInternal oldRev, String prevRevId, boolean allowConflict, DocState state) throws CouchbaseLiteException {
+        if (oldRev == null) {
+            throw new CouchbaseLiteException(Status.BAD_REQUEST);
+        }
+        String docId = oldRev.getDocId();
+        boolean deleted = oldRev.isDeleted();
+        if(((prevRevId != null) && (docId == null)) || (deleted && (docId == null))
+                || ((docId != null) && !isValidDocumentId(docId))) {
+            throw new CouchbaseLiteException(Status.BAD_REQUEST);
+        }
 
-            // Don't store a SQL null in the 'json' column -- I reserve it to mean that the revision data
-            // is missing due to compaction or replication.
-            // Instead, store an empty zero-length blob.
-            if(json == null)
-                json = new byte[0];
+        PendingPut put = new PendingPut();
+        put.docNumericID = state.docNumericID;
+        put.oldWinningRevID = state.winningRevID;
+        put.oldWinnerWasDeletion = state.winnerDeleted;
+        boolean docExists = state.winningRevID != null && !state.winnerDeleted;
 
-            //// PART III: In which the actual insertion finally takes place:
+        if(prevRevId != null) {
+            if(put.docNumericID <= 0) {
+                String msg = String.format("No existing revision found with doc id: %s", docId);
+                throw new CouchbaseLiteException(msg ,Status.NOT_FOUND);
+            }
+            Long currentSequence = state.currentSequences.get(prevRevId);
+            if (currentSequence != null) {
+                put.parentSequence = currentSequence;
+            } else if (allowConflict) {
+                put.parentSequence = getSequenceOfDocument(put.docNumericID, prevRevId, false);
+            }
+            if(put.parentSequence <= 0) {
+                if(!allowConflict && docExists) {
+                    String msg = String.format("Conflicts not allowed and there is already an existing doc with id: %s", docId);
+                    throw new CouchbaseLiteException(msg, Status.CONFLICT);
+                }
+                else {
+                    String msg = String.format("No existing revision found with doc id: %s", docId);
+                    throw new CouchbaseLiteException(msg, Status.NOT_FOUND);
+                }
+            }
+            if(validations != null && validations.size() > 0) {
+                RevisionInternal fakeNewRev = oldRev.copyWithDocID(oldRev.getDocId(), null);
+                RevisionInternal prevRev = new RevisionInternal(docId, prevRevId, false, this);
+                validateRevision(fakeNewRev, prevRev,prevRevId);
+            }
+        }
+        else {
+            if(deleted && (docId != null)) {
+                throw new CouchbaseLiteException(docExists ? Status.CONFLICT : Status.NOT_FOUND);
+            }
+            validateRevision(oldRev, null, null);
+            if(docId != null) {
+                if (put.oldWinnerWasDeletion) {
+                    prevRevId = put.oldWinningRevID;
+                    put.parentSequence = state.currentSequences.get(prevRevId);
+                } else if (put.oldWinningRevID != null) {
+                    throw new CouchbaseLiteException(Status.CONFLICT);
+                }
+            } else {
+                docId = Database.generateDocumentId();
+            }
+        }
 
-            int attachmentSize = attachments.size();
-            boolean hasAttachments = attachments.size() > 0;
+        put.inConflict = state.conflicted ||
+                (!deleted &&
+                        prevRevId != null &&
+                        put.oldWinningRevID != null &&
+                        !prevRevId.equals(put.oldWinningRevID));
 
-            // Now insert the rev itself:
-            long newSequence = insertRevision(newRev, docNumericID, parentSequence, true, (attachments.size() > 0), json);
-            if(newSequence == 0) {
-                return null;
+        put.attachments = getAttachmentsFromRevision(oldRev);
+        byte[] json = null;
+        if(oldRev.getProperties() != null && oldRev.getProperties().size() > 0) {
+            json = encodeDocumentJSON(oldRev);
+            if(json == null) {
+                throw new CouchbaseLiteException(Status.BAD_REQUEST);
             }
-
-            // Make replaced rev non-current:
-            try {
-                ContentValues args = new ContentValues();
-                args.put("current", 0);
-                database.update("revs", args, "sequence=?", new String[] {String.valueOf(parentSequence)});
-            } catch (SQLException e) {
-                Log.e(Database.TAG, "Error setting parent rev non-current", e);
-                throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+            if(json.length == 2 && json[0] == '{' && json[1] == '}') {
+                json = null;
             }
+        }
+        String newRevId = generateIDForRevision(oldRev, json, put.attachments, prevRevId);
+        put.newRev = oldRev.copyWithDocID(docId, newRevId);
+        stubOutAttachmentsInRevision(put.attachments, put.newRev);
+        put.json = (json != null) ? json : new byte[0];
+        return put;
+    }
 
+    /**
+     * The insertion half of putRevisions(): writes out the prepared revisions, which must all
+     * belong to different documents, then fills in their results and queues notifications.
+     */
+    private void flushPendingPuts(List<PendingPut> pending, List<RevisionInternal> results, List<Status> outStatuses) throws SQLException, CouchbaseLiteException {
+        if (pending.isEmpty()) {
+            return;
+        }
 
-            // Store any attachments:
-            if(attachments != null) {
-                processAttachmentsForRevision(attachments, newRev, parentSequence);
+        // Create the docs rows for new documents:
+        List<String> newDocIds = new ArrayList<String>();
+        for (PendingPut put : pending) {
+            if (put.docNumericID <= 0) {
+                newDocIds.add(put.newRev.getDocId());
+            }
+        }
+        if (!newDocIds.isEmpty()) {
+            Map<String, Long> newDocNumericIDs = insertDocumentIDs(newDocIds);
+            for (PendingPut put : pending) {
+                if (put.docNumericID <= 0) {
+                    put.docNumericID = newDocNumericIDs.get(put.newRev.getDocId());
+                }
+            }
+        }
+
+        // Insert the revisions. We hold the write lock, so AUTOINCREMENT hands out consecutive
+        // sequences and they can be recovered from the last one (and are double-checked):
+        List<Object[]> revArgs = new ArrayList<Object[]>(pending.size());
+        List<Object[]> parentArgs = new ArrayList<Object[]>(pending.size());
+        for (PendingPut put : pending) {
+            revArgs.add(new Object[] {
+                    put.docNumericID,
+                    put.newRev.getRevId(),
+                    put.parentSequence != 0 ? put.parentSequence : null,
+                    true,
+                    put.newRev.isDeleted(),
+                    put.attachments.isEmpty(),
+                    put.json });
+            if (put.parentSequence != 0) {
+                parentArgs.add(new Object[] { put.parentSequence });
             }
+        }
+        statements.executeBatch("INSERT INTO revs (doc_id, revid, parent, current, deleted, no_attachments, json)" +
+                " VALUES (?, ?, ?, ?, ?, ?, ?)", revArgs);
+        long lastSequence = statements.longForQuery("SELECT last_insert_rowid()");
+        long firstSequence = lastSequence - pending.size() + 1;
+        long inserted = statements.longForQuery("SELECT COUNT(*) FROM revs WHERE sequence>=? AND sequence<=?",
+                firstSequence, lastSequence);
+        if (inserted != pending.size()) {
+            throw new CouchbaseLiteException("Batch insert of revisions did not get consecutive sequences", Status.DB_ERROR);
+        }
 
+        // Make replaced revs non-current, and record the docs' new winners:
+        statements.executeBatch("UPDATE revs SET current=0 WHERE sequence=?", parentArgs);
+        Set<Long> docNumericIDs = new HashSet<Long>();
+        for (PendingPut put : pending) {
+            docNumericIDs.add(put.docNumericID);
+        }
+        updateWinners(docNumericIDs);
 
-            // Figure out what the new winning rev ID is:
-            winningRev = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion, newRev);
+        for (int i = 0; i < pending.size(); i++) {
+            PendingPut put = pending.get(i);
+            uncacheRevTree(put.docNumericID);
+            RevisionInternal newRev = put.newRev;
+            newRev.setSequence(firstSequence + i);
+            processAttachmentsForRevision(put.attachments, newRev, put.parentSequence);
+            RevisionInternal winningRev = winner(put.docNumericID, put.oldWinningRevID, put.oldWinnerWasDeletion, newRev);
+            outStatuses.get(put.index).setCode(newRev.isDeleted() ? Status.OK : Status.CREATED);
+            results.set(put.index, newRev);
+            notifyChange(newRev, winningRev, null, put.inConflict);
+        }
+        pending.clear();
+    }
 
-            // Success!
-            if(deleted) {
-                resultStatus.setCode(Status.OK);
-            }
-            else {
-                resultStatus.setCode(Status.CREATED);
+    /**
+     * Batch version of insertDocumentID(): adds docs rows for docids known not to exist yet,
+     * and returns their numeric IDs.
+     */
+    private Map<String, Long> insertDocumentIDs(List<String> docIds) throws SQLException, CouchbaseLiteException {
+        List<Object[]> docArgs = new ArrayList<Object[]>(docIds.size());
+        for (String docId : docIds) {
+            docArgs.add(new Object[] { docId });
+        }
+        synchronized (docIDLock) {
+            statements.executeBatch("INSERT INTO docs (docid) VALUES (?)", docArgs);
+            for (String docId : docIds) {
+                addKnownDocID(docId);
             }
+        }
 
-        } catch (SQLException e1) {
-            Log.e(Database.TAG, "Error putting revision", e1);
-            return null;
-        } finally {
-            if(cursor != null) {
-                cursor.close();
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (int start = 0; start < docIds.size(); start += MAX_SQL_IN_ARGS) {
+            List<String> chunk = docIds.subList(start, Math.min(start + MAX_SQL_IN_ARGS, docIds.size()));
+            String sql = "SELECT docid, doc_id FROM docs WHERE docid IN (" + sqlPlaceholders(chunk.size()) + ")";
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery(sql, chunk.toArray(new String[chunk.size()]));
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getString(0), cursor.getLong(1));
+                    cacheDocNumericID(cursor.getString(0), cursor.getLong(1));
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
             }
-            endTransaction(resultStatus.isSuccessful());
         }
+        if (result.size() != docIds.size()) {
+            throw new CouchbaseLiteException("Failed to insert document IDs", Status.DB_ERROR);
+        }
+        return result;
+    }
 
-        //// EPILOGUE: A change notification is sent...
-        notifyChange(newRev, winningRev, null, inConflict);
-        return newRev;
+    private static String sqlPlaceholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('?');
+        }
+        return sb.toString();
     }
 
     /**
@@ -3696,25 +5009,10 @@ public final class Database {
     private long getSequenceOfDocument(long docNumericId, String revId, boolean onlyCurrent) {
 
         long result = -1;
-        Cursor cursor = null;
         try {
-            String extraSql = (onlyCurrent ? "AND current=1" : "");
-            String sql = String.format("SELECT sequence FROM revs WHERE doc_id=? AND revid=? %s LIMIT 1", extraSql);
-            String[] args = { ""+docNumericId, revId };
-            cursor = database.rawQuery(sql, args);
-
-            if(cursor.moveToNext()) {
-                result = cursor.getLong(0);
-            }
-            else {
-                result = 0;
-            }
+            result = getRevTree(docNumericId).getSequence(revId, onlyCurrent);
         } catch (Exception e) {
             Log.e(Database.TAG, "Error getting getSequenceOfDocument", e);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
         }
         return result;
     }
@@ -3933,6 +5231,7 @@ public final class Database {
                 int numRowsChanged = 0;
                 try {
                     numRowsChanged = database.update("revs", args, "sequence=? AND current!=0", whereArgs);
+                    setCurrentInCachedRevTree(docNumericID, localParentSequence, false);
                     if (numRowsChanged == 0) {
                         inConflict = true;  // local parent wasn't a leaf, ergo we just created a branch
                     }
@@ -3941,6 +5240,7 @@ public final class Database {
                 }
             }
 
+            updateWinner(docNumericID);
             winningRev = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion, rev);
 
             success = true;
@@ -3959,6 +5259,286 @@ public final class Database {
 
     }
 
+    /**
+     * Batch version of forceInsert(), used by the puller. All of the revisions' documents and
+     * their known revisions are looked up with set-based queries, and the phantom ancestors and
+     * leaf revisions are written with compiled batch statements, all in one transaction.
+     *
+     * A revision that fails on its own (invalid IDs or history, validation) gets an error
+     * status and is skipped; a database error aborts the whole batch and is thrown.
+     *
+     * @param revs The revisions to insert. Each must have a docID and revID.
+     * @param histories Revision histories (as for forceInsert(), newest first), one per revision
+     *                  in the same order as revs. A null entry means no history.
+     * @param source The URL of the remote database the revisions came from.
+     * @return One status per revision, in the same order as revs.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public List<Status> forceInsertBatch(List<RevisionInternal> revs, List<List<String>> histories, URL source) throws CouchbaseLiteException {
+        List<Status> statuses = new ArrayList<Status>(revs.size());
+        List<PendingForceInsert> pending = new ArrayList<PendingForceInsert>();
+        Set<String> pendingDocIds = new HashSet<String>();
+
+        Set<String> docIds = new HashSet<String>();
+        for (RevisionInternal rev : revs) {
+            if (isValidDocumentId(rev.getDocId())) {
+                docIds.add(rev.getDocId());
+            }
+        }
+
+        boolean success = false;
+        beginTransaction();
+        try {
+            Map<String, DocState> docStates = loadDocStates(docIds, true);
+
+            for (int i = 0; i < revs.size(); i++) {
+                RevisionInternal rev = revs.get(i);
+                Status status = new Status(Status.OK);
+                statuses.add(status);
+
+                String docId = rev.getDocId();
+                if (pendingDocIds.contains(docId)) {
+                    flushPendingForceInserts(pending, statuses, source);
+                    for (String flushedDocId : pendingDocIds) {
+                        docStates.remove(flushedDocId);
+                    }
+                    pendingDocIds.clear();
+                }
+
+                try {
+                    if(!isValidDocumentId(docId) || (rev.getRevId() == null)) {
+                        throw new CouchbaseLiteException(Status.BAD_REQUEST);
+                    }
+                    DocState state = docStates.get(docId);
+                    if (state == null) {
+                        state = loadDocStates(Collections.singleton(docId), true).get(docId);
+                    }
+                    PendingForceInsert insert = prepareForceInsert(rev, histories.get(i), state);
+                    insert.index = i;
+                    pending.add(insert);
+                    pendingDocIds.add(docId);
+                } catch (CouchbaseLiteException e) {
+                    status.setCode(e.getCBLStatus().getCode());
+                }
+            }
+            flushPendingForceInserts(pending, statuses, source);
+            success = true;
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error inserting revisions", e);
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        } finally {
+            endTransaction(success);
+        }
+        return statuses;
+    }
+
+    /**
+     * A revision row to be written by flushPendingForceInserts().
+     */
+    private static class ForceInsertRow {
+        RevisionInternal rev;
+        long parentSequence;         // a known local parent, or 0
+        boolean parentIsPreviousRow; // else the parent is the row just before this one
+        boolean current;
+        boolean hasAttachments;
+        byte[] json;
+    }
+
+    /**
+     * A replicated revision that has been matched against the local revision tree.
+     */
+    private static class PendingForceInsert {
+        int index;
+        RevisionInternal rev;
+        long docNumericID;
+        List<ForceInsertRow> rows = new ArrayList<ForceInsertRow>();
+        boolean leafInserted;
+        long localParentSequence;
+        boolean localParentIsCurrent;
+        String oldWinningRevID;
+        boolean oldWinnerWasDeletion;
+        boolean inConflict;
+        Map<String, AttachmentInternal> attachments;
+    }
+
+    /**
+     * The lookup and validation half of forceInsert(), working from a prefetched DocState.
+     * Works out which of the history's revisions are new, without writing anything.
+     */
+    private PendingForceInsert prepareForceInsert(RevisionInternal rev, List<String> revHistory, DocState state) throws CouchbaseLiteException {
+        String docId = rev.getDocId();
+        int historyCount = (revHistory != null) ? revHistory.size() : 0;
+        if(historyCount == 0) {
+            revHistory = new ArrayList<String>();
+            revHistory.add(rev.getRevId());
+            historyCount = 1;
+        } else if(!revHistory.get(0).equals(rev.getRevId())) {
+            throw new CouchbaseLiteException(Status.BAD_REQUEST);
+        }
+
+        // Validate against the latest common ancestor:
+        if(validations != null && validations.size() > 0) {
+            RevisionInternal oldRev = null;
+            for (int i = 1; i < historyCount; i++) {
+                oldRev = state.allRevs.get(revHistory.get(i));
+                if (oldRev != null) {
+                    break;
+                }
+            }
+            String parentRevId = (historyCount > 1) ? revHistory.get(1) : null;
+            validateRevision(rev, oldRev, parentRevId);
+        }
+
+        PendingForceInsert insert = new PendingForceInsert();
+        insert.rev = rev;
+        insert.docNumericID = state.docNumericID;
+        insert.oldWinningRevID = state.winningRevID;
+        insert.oldWinnerWasDeletion = state.winnerDeleted;
+        insert.inConflict = state.conflicted;
+
+        // Walk through the remote history in chronological order, as forceInsert() does,
+        // noting the revisions that need to be created:
+        long sequence = 0;
+        boolean sequenceIsPreviousRow = false;
+        for(int i = historyCount - 1; i >= 0; --i) {
+            String revId = revHistory.get(i);
+            RevisionInternal localRev = state.allRevs.get(revId);
+            if(localRev != null) {
+                sequence = localRev.getSequence();
+                sequenceIsPreviousRow = false;
+                insert.localParentSequence = sequence;
+                insert.localParentIsCurrent = state.currentSequences.containsKey(revId);
+            }
+            else {
+                ForceInsertRow row = new ForceInsertRow();
+                row.parentSequence = sequenceIsPreviousRow ? 0 : sequence;
+                row.parentIsPreviousRow = sequenceIsPreviousRow;
+                if(i == 0) {
+                    row.rev = rev;
+                    if(!rev.isDeleted()) {
+                        row.json = encodeDocumentJSON(rev);
+                        if(row.json == null) {
+                            throw new CouchbaseLiteException(Status.BAD_REQUEST);
+                        }
+                    }
+                    row.current = true;
+                    insert.leafInserted = true;
+                    insert.attachments = getAttachmentsFromRevision(rev);
+                    row.hasAttachments = insert.attachments.size() > 0;
+                }
+                else {
+                    row.rev = new RevisionInternal(docId, revId, false, this);
+                }
+                insert.rows.add(row);
+                sequenceIsPreviousRow = true;
+            }
+        }
+        return insert;
+    }
+
+    /**
+     * The insertion half of forceInsertBatch(): writes out the prepared revisions, which must
+     * all belong to different documents, then sets their statuses and queues notifications.
+     */
+    private void flushPendingForceInserts(List<PendingForceInsert> pending, List<Status> statuses, URL source) throws SQLException, CouchbaseLiteException {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<String> newDocIds = new ArrayList<String>();
+        List<ForceInsertRow> rows = new ArrayList<ForceInsertRow>();
+        for (PendingForceInsert insert : pending) {
+            if (insert.docNumericID <= 0) {
+                newDocIds.add(insert.rev.getDocId());
+            }
+        }
+        if (!newDocIds.isEmpty()) {
+            Map<String, Long> newDocNumericIDs = insertDocumentIDs(newDocIds);
+            for (PendingForceInsert insert : pending) {
+                if (insert.docNumericID <= 0) {
+                    insert.docNumericID = newDocNumericIDs.get(insert.rev.getDocId());
+                }
+            }
+        }
+
+        // Insert the first row on its own to learn where the sequences start. The rest are
+        // batched: we hold the write lock, so AUTOINCREMENT hands out consecutive sequences and
+        // the parent of a row that follows its parent is simply the previous sequence.
+        List<Object[]> rowArgs = new ArrayList<Object[]>();
+        long firstSequence = 0;
+        for (PendingForceInsert insert : pending) {
+            for (ForceInsertRow row : insert.rows) {
+                long parent = row.parentIsPreviousRow ? firstSequence + rows.size() - 1 : row.parentSequence;
+                Object[] args = new Object[] {
+                        insert.docNumericID,
+                        row.rev.getRevId(),
+                        parent != 0 ? parent : null,
+                        row.current,
+                        row.rev.isDeleted(),
+                        !row.hasAttachments,
+                        row.json };
+                if (rows.isEmpty()) {
+                    firstSequence = statements.executeInsert("INSERT INTO revs (doc_id, revid, parent, current, deleted, no_attachments, json)" +
+                            " VALUES (?, ?, ?, ?, ?, ?, ?)", args);
+                    if (firstSequence <= 0) {
+                        throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+                    }
+                } else {
+                    rowArgs.add(args);
+                }
+                rows.add(row);
+            }
+        }
+        if (!rowArgs.isEmpty()) {
+            statements.executeBatch("INSERT INTO revs (doc_id, revid, parent, current, deleted, no_attachments, json)" +
+                    " VALUES (?, ?, ?, ?, ?, ?, ?)", rowArgs);
+            long lastSequence = statements.longForQuery("SELECT last_insert_rowid()");
+            long inserted = statements.longForQuery("SELECT COUNT(*) FROM revs WHERE sequence>=? AND sequence<=?",
+                    firstSequence, lastSequence);
+            if (lastSequence != firstSequence + rows.size() - 1 || inserted != rows.size()) {
+                throw new CouchbaseLiteException("Batch insert of revisions did not get consecutive sequences", Status.DB_ERROR);
+            }
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            rows.get(i).rev.setSequence(firstSequence + i);
+        }
+
+        // Mark the latest local revs as no longer current. If one wasn't a leaf, we just
+        // created a branch:
+        List<Object[]> parentArgs = new ArrayList<Object[]>();
+        for (PendingForceInsert insert : pending) {
+            long leafSequence = insert.leafInserted ? insert.rev.getSequence() : insert.localParentSequence;
+            if (insert.localParentSequence > 0 && insert.localParentSequence != leafSequence) {
+                if (insert.localParentIsCurrent) {
+                    parentArgs.add(new Object[] { insert.localParentSequence });
+                } else {
+                    insert.inConflict = true;
+                }
+            }
+        }
+        statements.executeBatch("UPDATE revs SET current=0 WHERE sequence=?", parentArgs);
+        Set<Long> docNumericIDs = new HashSet<Long>();
+        for (PendingForceInsert insert : pending) {
+            docNumericIDs.add(insert.docNumericID);
+        }
+        updateWinners(docNumericIDs);
+
+        for (PendingForceInsert insert : pending) {
+            uncacheRevTree(insert.docNumericID);
+            RevisionInternal rev = insert.rev;
+            if (insert.attachments != null) {
+                // As the parent sequence use the latest local revision (this is to copy attachments from):
+                processAttachmentsForRevision(insert.attachments, rev, insert.localParentSequence);
+                stubOutAttachmentsInRevision(insert.attachments, rev);
+            }
+            RevisionInternal winningRev = winner(insert.docNumericID, insert.oldWinningRevID, insert.oldWinnerWasDeletion, rev);
+            statuses.get(insert.index).setCode(insert.leafInserted ? Status.CREATED : Status.OK);
+            notifyChange(rev, winningRev, source, insert.inConflict);
+        }
+        pending.clear();
+    }
+
     /** VALIDATION **/
 
     /**
@@ -4174,36 +5754,63 @@ public final class Database {
             return numRevisionsRemoved;
         }
 
-        String quotedDocIds = joinQuoted(touchRevs.getAllDocIds());
-        String quotedRevIds = joinQuoted(touchRevs.getAllRevIds());
+        Map<String, Set<String>> existing = findExistingRevisions(touchRevs);
 
-        String sql = "SELECT docid, revid FROM revs, docs " +
-                      "WHERE docid IN (" +
-                      quotedDocIds +
-                      ") AND revid in (" +
-                      quotedRevIds + ")" +
-                      " AND revs.doc_id == docs.doc_id";
+        RevisionList missing = new RevisionList();
+        for (RevisionInternal rev : touchRevs) {
+            Set<String> revIDs = existing.get(rev.getDocId());
+            if(revIDs != null && revIDs.contains(rev.getRevId())) {
+                numRevisionsRemoved += 1;
+            } else {
+                missing.add(rev);
+            }
+        }
+        if(numRevisionsRemoved > 0) {
+            touchRevs.clear();
+            touchRevs.addAll(missing);
+        }
+        return numRevisionsRemoved;
+    }
 
-        Cursor cursor = null;
-        try {
-            cursor = database.rawQuery(sql, null);
-            cursor.moveToNext();
-            while(!cursor.isAfterLast()) {
-                RevisionInternal rev = touchRevs.revWithDocIdAndRevId(cursor.getString(0), cursor.getString(1));
+    /**
+     * Looks up which of the given (docID, revID) pairs exist locally, returning their revIDs
+     * keyed by docID. The pairs are matched exactly by joining against a derived table of them,
+     * a chunk at a time to stay within SQLite's bound-parameter and compound-SELECT limits.
+     */
+    private Map<String, Set<String>> findExistingRevisions(List<RevisionInternal> revs) throws SQLException {
+        Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+        int pairsPerChunk = MAX_SQL_IN_ARGS / 2;
+        for (int start = 0; start < revs.size(); start += pairsPerChunk) {
+            List<RevisionInternal> chunk = revs.subList(start, Math.min(start + pairsPerChunk, revs.size()));
+            StringBuilder pairs = new StringBuilder();
+            String[] args = new String[chunk.size() * 2];
+            for (int i = 0; i < chunk.size(); i++) {
+                pairs.append(i == 0 ? "SELECT ? AS docid, ? AS revid" : " UNION ALL SELECT ?, ?");
+                args[2 * i] = chunk.get(i).getDocId();
+                args[2 * i + 1] = chunk.get(i).getRevId();
+            }
+            String sql = "SELECT pairs.docid, pairs.revid FROM (" + pairs + ") AS pairs, docs, revs " +
+                    "WHERE docs.docid=pairs.docid AND revs.doc_id=docs.doc_id AND revs.revid=pairs.revid";
 
-                if(rev != null) {
-                    touchRevs.remove(rev);
-                    numRevisionsRemoved += 1;
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery(sql, args);
+                while(cursor.moveToNext()) {
+                    String docID = cursor.getString(0);
+                    Set<String> revIDs = result.get(docID);
+                    if(revIDs == null) {
+                        revIDs = new HashSet<String>();
+                        result.put(docID, revIDs);
+                    }
+                    revIDs.add(cursor.getString(1));
+                }
+            } finally {
+                if(cursor != null) {
+                    cursor.close();
                 }
-
-                cursor.moveToNext();
-            }
-        } finally {
-            if(cursor != null) {
-                cursor.close();
             }
         }
-        return numRevisionsRemoved;
+        return result;
     }
 
     /*************************************************************************************************/
@@ -4293,14 +5900,13 @@ public final class Database {
         // First get the parent's sequence:
         long seq = rev.getSequence();
         if (seq > 0) {
-            seq = longForQuery("SELECT parent FROM revs WHERE sequence=?", new String[] { Long.toString(seq) });
+            seq = statements.longForQuery("SELECT parent FROM revs WHERE sequence=?", seq);
         } else {
             long docNumericID = getDocNumericID(rev.getDocId());
             if (docNumericID <= 0) {
                 return null;
             }
-            String[] args = new String[] { Long.toString(docNumericID), rev.getRevId() } ;
-            seq = longForQuery("SELECT parent FROM revs WHERE doc_id=? and revid=?", args);
+            seq = statements.longForQuery("SELECT parent FROM revs WHERE doc_id=? and revid=?", docNumericID, rev.getRevId());
         }
 
         if (seq == 0) {
@@ -4310,12 +5916,11 @@ public final class Database {
         // Now get its revID and deletion status:
         RevisionInternal result = null;
 
-        String[] args = { Long.toString(seq) };
         String queryString = "SELECT revid, deleted FROM revs WHERE sequence=?";
         Cursor cursor = null;
 
         try {
-            cursor = database.rawQuery(queryString, args);
+            cursor = statements.query(queryString, seq);
             if (cursor.moveToNext()) {
                 String revId = cursor.getString(0);
                 boolean deleted = (cursor.getInt(1) > 0);
@@ -4377,7 +5982,10 @@ public final class Database {
                         // Delete all revisions if magic "*" revision ID is given:
                         try {
                             String[] args = {Long.toString(docNumericID)};
+                            invalidateReduceIndexes("doc_id=?", args);
                             database.execSQL("DELETE FROM revs WHERE doc_id=?", args);
+                            uncacheRevTree(docNumericID);
+                            updateWinner(docNumericID);
                         } catch (SQLException e) {
                             Log.e(Database.TAG, "Error deleting revisions", e);
                             return false;
@@ -4431,7 +6039,10 @@ public final class Database {
                                 String seqsToPurgeList = TextUtils.join(",", seqsToPurge);
                                 String sql = String.format("DELETE FROM revs WHERE sequence in (%s)", seqsToPurgeList);
                                 try {
+                                    invalidateReduceIndexes(String.format("sequence in (%s)", seqsToPurgeList), new String[0]);
                                     database.execSQL(sql);
+                                    uncacheRevTree(docNumericID);
+                                    updateWinner(docNumericID);
                                 } catch (SQLException e) {
                                     Log.e(Database.TAG, "Error deleting revisions via: " + sql, e);
                                     return false;
@@ -4589,6 +6200,14 @@ public final class Database {
      */
     @InterfaceAudience.Private
     /* package */ int pruneRevsToMaxDepth(int maxDepth) throws CouchbaseLiteException {
+        return pruneRevsInDocRange(0, Long.MAX_VALUE, maxDepth);
+    }
+
+    /**
+     * Prunes the revision trees of the documents with doc_ids in (afterDocID, lastDocID], as
+     * pruneRevsToMaxDepth() does for all of them. Used to compact incrementally.
+     */
+    /* package */ int pruneRevsInDocRange(long afterDocID, long lastDocID, int maxDepth) throws CouchbaseLiteException {
 
         int outPruned = 0;
         boolean shouldCommit = false;
@@ -4601,7 +6220,7 @@ public final class Database {
         // First find which docs need pruning, and by how much:
 
         Cursor cursor = null;
-        String[] args = { };
+        String[] args = { Long.toString(afterDocID), Long.toString(lastDocID) };
 
         long docNumericID = -1;
         int minGen = 0;
@@ -4609,7 +6228,8 @@ public final class Database {
 
         try {
 
-            cursor = database.rawQuery("SELECT doc_id, MIN(revid), MAX(revid) FROM revs GROUP BY doc_id", args);
+            cursor = database.rawQuery("SELECT doc_id, MIN(revid), MAX(revid) FROM revs " +
+                    "WHERE doc_id>? AND doc_id<=? GROUP BY doc_id", args);
 
             while(cursor.moveToNext()) {
                 docNumericID = cursor.getLong(0);
@@ -4626,14 +6246,18 @@ public final class Database {
             beginTransaction();
 
             if (toPrune.size() == 0) {
+                // (Committing the empty transaction, since aborting it would flush the caches.)
+                shouldCommit = true;
                 return 0;
             }
 
             for (Long docNumericIDLong : toPrune.keySet()) {
                 String minIDToKeep = String.format("%d-", toPrune.get(docNumericIDLong).intValue() + 1);
-                String[] deleteArgs = { Long.toString(docNumericID), minIDToKeep};
+                String[] deleteArgs = { Long.toString(docNumericIDLong), minIDToKeep};
+                invalidateReduceIndexes("doc_id=? AND revid < ? AND current=0", deleteArgs);
                 int rowsDeleted = database.delete("revs", "doc_id=? AND revid < ? AND current=0", deleteArgs);
                 outPruned += rowsDeleted;
+                uncacheRevTree(docNumericIDLong);
             }
 
             shouldCommit = true;
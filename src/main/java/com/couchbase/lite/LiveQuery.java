@@ -1,18 +1,31 @@
 package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.support.JsonCollator;
 import com.couchbase.lite.util.Log;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A Query subclass that automatically refreshes the result rows every time the database changes.
  * All you need to do is use add a listener to observe changes.
+ *
+ * Rather than running the whole query again after every change, the live query runs the view's
+ * map function on the changed documents. If the query's rows are just the map rows in a key
+ * range, it patches its current rows with what the documents now emit; otherwise it runs the
+ * query again only if a changed document emits, or used to emit, a key in range. Listeners are
+ * only called when the rows actually differ.
  */
 public final class LiveQuery extends Query implements Database.ChangeListener {
 
@@ -22,6 +35,25 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
     private Throwable lastError;
     private AtomicBoolean runningState; // true == running, false == stopped
 
+    /**
+     * The document changes that haven't been applied to the rows yet.
+     */
+    private final List<DocumentChange> pendingChanges = new ArrayList<DocumentChange>();
+
+    /**
+     * Set when the view's index has been replaced by a rebuilt one, so the rows can't be
+     * patched and the query has to run again.
+     */
+    private volatile boolean indexReplaced;
+
+    private long updateInterval;
+    private long lastUpdateTime;
+
+    /**
+     * A call to update() delayed by the update interval, if one is pending.
+     */
+    private Future<?> delayedUpdateFuture;
+
     /**
      * If a query is running and the user calls stop() on this query, the future
      * will be used in order to cancel the query in progress.
@@ -113,6 +145,9 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
         if (!observing) {
             observing = true;
             getDatabase().addChangeListener(this);
+            if (getView() != null) {
+                getView().addLiveQuery(this);
+            }
             Log.v(Log.TAG_QUERY, "%s: start() is calling update()", this);
             update();
         }
@@ -135,6 +170,9 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
         if (observing) {
             observing = false;
             getDatabase().removeChangeListener(this);
+            if (getView() != null) {
+                getView().removeLiveQuery(this);
+            }
         }
 
         // slight diversion from iOS version -- cancel the queryFuture
@@ -150,6 +188,29 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
             Log.d(Log.TAG_QUERY, "%s: cancelled rerunUpdateFuture %s, returned: %s", this, rerunUpdateFuture, cancelled);
         }
 
+        synchronized (this) {
+            if (delayedUpdateFuture != null) {
+                delayedUpdateFuture.cancel(false);
+                delayedUpdateFuture = null;
+            }
+        }
+
+        // start() runs the whole query again, so changes made until then don't matter:
+        takePendingChanges();
+    }
+
+    /**
+     * The minimum time in milliseconds between updates of the rows. Database changes made
+     * sooner than this after the last update are applied together once it's elapsed. Default 0.
+     */
+    @InterfaceAudience.Public
+    public synchronized long getUpdateInterval() {
+        return updateInterval;
+    }
+
+    @InterfaceAudience.Public
+    public synchronized void setUpdateInterval(long updateInterval) {
+        this.updateInterval = Math.max(0, updateInterval);
     }
 
     /**
@@ -277,35 +338,268 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
             return;
         }
 
-        // No query in flight, so kick one off
-        queryFuture = runAsyncInternal(new QueryCompleteListener() {
-            @Override
-            public void completed(QueryEnumerator rowsParam, Throwable error) {
-                if (error != null) {
-                    for (ChangeListener observer : observers) {
-                        observer.changed(new ChangeEvent(error));
+        synchronized (this) {
+            lastUpdateTime = System.currentTimeMillis();
+        }
+        final List<DocumentChange> changes = takePendingChanges();
+        final QueryEnumerator currentRows = rows;
+        boolean rerun = indexReplaced;
+        indexReplaced = false;
+        if (currentRows == null || changes.isEmpty() || rerun) {
+            // No query in flight, so kick one off
+            queryFuture = runAsyncInternal(new QueryCompleteListener() {
+                @Override
+                public void completed(QueryEnumerator rowsParam, Throwable error) {
+                    queryCompleted(rowsParam, error);
+                }
+            });
+        } else {
+            queryFuture = getDatabase().getManager().runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!updateIncrementally(currentRows, changes)) {
+                            queryCompleted(runMaterialized(), null);
+                        }
+                    } catch (Throwable t) {
+                        Log.e(Log.TAG_QUERY, "Exception caught updating live query", t);
+                        queryCompleted(null, t);
                     }
-                    lastError = error;
-                } else {
+                }
+            });
+        }
+        Log.d(Log.TAG_QUERY, "%s: update() created queryFuture: %s", this, queryFuture);
 
-                    if (runningState.get() == false) {
-                        Log.d(Log.TAG_QUERY, "%s: update() finished query, but running state == false.", this);
-                        return;
-                    }
+    }
+
+    private void queryCompleted(QueryEnumerator rowsParam, Throwable error) {
+        if (error != null) {
+            for (ChangeListener observer : observers) {
+                observer.changed(new ChangeEvent(error));
+            }
+            lastError = error;
+        } else {
+
+            if (runningState.get() == false) {
+                Log.d(Log.TAG_QUERY, "%s: update() finished query, but running state == false.", this);
+                return;
+            }
+
+            if (rowsParam != null && !rowsParam.equals(rows)) {
+                setRows(rowsParam);
+                for (ChangeListener observer : observers) {
+                    Log.d(Log.TAG_QUERY, "%s: update() calling back observer with rows", LiveQuery.this);
+                    observer.changed(new ChangeEvent(LiveQuery.this, rows));
+                }
+            }
+            lastError = null;
+        }
+    }
+
+    /**
+     * Applies document changes to the current rows without running the query, if the query
+     * allows it. Returns false if the query has to be run again instead.
+     *
+     * The changed documents' current revisions are run through the view's map function. If the
+     * rows are simply the map rows in a key range, each changed document's rows are replaced by
+     * what it emits now, in range, which is what the index will have once it's updated. Otherwise
+     * (a reduce, or a skip or limit that shifts rows in and out) the query only needs to run
+     * again if a document emits a key in range, or its rows in the index have one.
+     *
+     * This calls the map function on the work thread, so it's only done if the map function is
+     * thread-safe (see View.setMapperThreadSafe()); else the indexer may be calling it already.
+     */
+    private boolean updateIncrementally(QueryEnumerator currentRows, List<DocumentChange> changes) {
+        View view = getView();
+        Mapper mapper = view.getMap();
+        if (mapper == null || !view.isMapperThreadSafe() || getIndexUpdateMode() != IndexUpdateMode.BEFORE
+                || view.isRebuildingIndex()) {
+            return false;
+        }
+        QueryOptions options = getQueryOptions();
+        boolean patch = canPatchRows(view, options);
+
+        Set<String> docIds = new LinkedHashSet<String>();
+        long minSequence = Long.MAX_VALUE;
+        long maxSequence = currentRows.getSequenceNumber();
+        for (DocumentChange change : changes) {
+            long sequence = change.getAddedRevision().getSequence();
+            minSequence = Math.min(minSequence, sequence);
+            maxSequence = Math.max(maxSequence, sequence);
+            docIds.add(change.getDocumentId());
+        }
 
-                    if (rowsParam != null && !rowsParam.equals(rows)) {
-                        setRows(rowsParam);
-                        for (ChangeListener observer : observers) {
-                            Log.d(Log.TAG_QUERY, "%s: update() calling back observer with rows", LiveQuery.this);
-                            observer.changed(new ChangeEvent(LiveQuery.this, rows));
+        try {
+            if (!patch && view.getLastSequenceIndexed() >= minSequence) {
+                // The index already has the new revisions, so the rows they replaced are gone
+                return false;
+            }
+            JsonCollator.Mode mode = view.collatorMode();
+            List<QueryRow> patchedRows = null;
+            if (patch) {
+                patchedRows = new ArrayList<QueryRow>(currentRows.getCount());
+                for (int i = 0; i < currentRows.getCount(); i++) {
+                    patchedRows.add(currentRows.getRow(i));
+                }
+            }
+            boolean changed = false;
+            for (String docId : docIds) {
+                List<QueryRow> emitted = mapCurrentRevision(docId, mapper, options, mode);
+                if (patch) {
+                    for (int i = patchedRows.size() - 1; i >= 0; i--) {
+                        if (docId.equals(patchedRows.get(i).getSourceDocumentId())) {
+                            patchedRows.remove(i);
+                            changed = true;
                         }
                     }
-                    lastError = null;
+                    for (QueryRow row : emitted) {
+                        insertRow(patchedRows, row, options.isDescending(), mode);
+                        changed = true;
+                    }
+                } else {
+                    if (!emitted.isEmpty()) {
+                        return false;
+                    }
+                    for (byte[] key : view.indexedKeysForDocument(docId)) {
+                        if (isInRange(key, options, mode)) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            Log.v(Log.TAG_QUERY, "%s: applied %d changes incrementally, rows changed: %s", this, changes.size(), changed);
+            if (changed) {
+                queryCompleted(new QueryEnumerator(getDatabase(), patchedRows, maxSequence), null);
+            }
+            return true;
+        } catch (Exception e) {
+            Log.w(Log.TAG_QUERY, "%s: can't apply changes incrementally, running the query", e, this);
+            return false;
+        }
+    }
+
+    /**
+     * Whether the query's rows are exactly the view's map rows in its key range, so a changed
+     * document's rows can be replaced without affecting any others.
+     */
+    private boolean canPatchRows(View view, QueryOptions options) {
+        boolean reduced = view.getReduce() != null && (options.isReduce() || options.getGroupLevel() > 0);
+        return !reduced && options.getSkip() == 0 && options.getLimit() == Integer.MAX_VALUE
+                && !options.isIncludeDocs() && options.getStartKeyDocId() == null
+                && options.getEndKeyDocId() == null && options.getPageToken() == null;
+    }
+
+    /**
+     * Runs the map function on a document's current revision, returning the rows it emits that
+     * are in the query's key range (none if the document is deleted).
+     */
+    private List<QueryRow> mapCurrentRevision(final String docId, Mapper mapper, final QueryOptions options, final JsonCollator.Mode mode) {
+        final List<QueryRow> emitted = new ArrayList<QueryRow>();
+        if (docId.startsWith("_design/")) {  // design docs don't get indexed!
+            return emitted;
+        }
+        RevisionInternal rev = getDatabase().getDocumentWithIDAndRev(docId, null, EnumSet.noneOf(Database.TDContentOptions.class));
+        if (rev == null || rev.getProperties() == null) {
+            return emitted;
+        }
+        final long sequence = rev.getSequence();
+        mapper.map(rev.getProperties(), new Emitter() {
+            @Override
+            public void emit(Object key, Object value) {
+                try {
+                    byte[] keyJson = Manager.getObjectMapper().writeValueAsBytes(key);
+                    if (isInRange(keyJson, options, mode)) {
+                        byte[] valueJson = (value != null) ? Manager.getObjectMapper().writeValueAsBytes(value) : null;
+                        emitted.add(QueryRow.fromJSON(docId, sequence, keyJson, valueJson, null));
+                    }
+                } catch (Exception e) {
+                    Log.e(Log.TAG_VIEW, "Error emitting", e);
                 }
             }
         });
-        Log.d(Log.TAG_QUERY, "%s: update() created queryFuture: %s", this, queryFuture);
+        return emitted;
+    }
 
+    /**
+     * Whether a key (as JSON) is one the query selects: one of its keys, and between its start
+     * and end keys.
+     */
+    private static boolean isInRange(byte[] keyJson, QueryOptions options, JsonCollator.Mode mode) throws Exception {
+        if (options.getKeys() != null) {
+            boolean found = false;
+            for (Object key : options.getKeys()) {
+                if (JsonCollator.compareJSON(keyJson, toJSON(key), mode) == 0) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        Object minKey = options.getStartKey();
+        Object maxKey = options.getEndKey();
+        boolean inclusiveMin = true;
+        boolean inclusiveMax = options.isInclusiveEnd();
+        if (options.isDescending()) {
+            minKey = options.getEndKey();
+            maxKey = options.getStartKey();
+            inclusiveMin = inclusiveMax;
+            inclusiveMax = true;
+        }
+        if (minKey != null) {
+            int cmp = JsonCollator.compareJSON(keyJson, toJSON(minKey), mode);
+            if (cmp < 0 || (cmp == 0 && !inclusiveMin)) {
+                return false;
+            }
+        }
+        if (maxKey != null) {
+            int cmp = JsonCollator.compareJSON(keyJson, toJSON(maxKey), mode);
+            if (cmp > 0 || (cmp == 0 && !inclusiveMax)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Inserts a row where the query would return it: ordered by key and then by sequence
+     * (both reversed if descending), after any rows at the same position.
+     */
+    private static void insertRow(List<QueryRow> rows, QueryRow row, boolean descending, JsonCollator.Mode mode) throws Exception {
+        byte[] keyJson = toJSON(row.getKey());
+        int low = 0;
+        int high = rows.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            QueryRow other = rows.get(middle);
+            int cmp = JsonCollator.compareJSON(toJSON(other.getKey()), keyJson, mode);
+            if (cmp == 0) {
+                cmp = (other.getSequenceNumber() < row.getSequenceNumber()) ? -1
+                        : (other.getSequenceNumber() > row.getSequenceNumber() ? 1 : 0);
+            }
+            if (descending) {
+                cmp = -cmp;
+            }
+            if (cmp <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        rows.add(low, row);
+    }
+
+    private static byte[] toJSON(Object object) throws Exception {
+        return Manager.getObjectMapper().writeValueAsBytes(object);
+    }
+
+    private List<DocumentChange> takePendingChanges() {
+        synchronized (pendingChanges) {
+            List<DocumentChange> changes = new ArrayList<DocumentChange>(pendingChanges);
+            pendingChanges.clear();
+            return changes;
+        }
     }
 
     /**
@@ -352,6 +646,35 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
     @Override
     @InterfaceAudience.Private
     public void changed(Database.ChangeEvent event) {
+        synchronized (pendingChanges) {
+            pendingChanges.addAll(event.getChanges());
+        }
+
+        // Coalesce changes arriving within the update interval into one delayed update:
+        synchronized (this) {
+            long delay = lastUpdateTime + updateInterval - System.currentTimeMillis();
+            if (updateInterval > 0 && delay > 0) {
+                if (delayedUpdateFuture == null || delayedUpdateFuture.isDone()) {
+                    delayedUpdateFuture = getDatabase().getManager().getWorkExecutor().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            update();
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        update();
+    }
+
+    /**
+     * Called by the view when its index has been replaced by a rebuilt one (see
+     * View.setMapReduce()), which no database change notification reports.
+     */
+    /* package */ void indexReplaced() {
+        Log.v(Log.TAG_QUERY, "%s: the view's index was rebuilt, running the query again", this);
+        indexReplaced = true;
         update();
     }
 
@@ -379,6 +379,14 @@ public final class Manager {
 
     }
 
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public ManagerOptions getOptions() {
+        return options;
+    }
+
     /**
      * @exclude
      */
@@ -18,6 +18,11 @@ public class ManagerOptions {
 
     private AuthorizerFactoryManager authorizerFactoryManager; // https://github.com/couchbase/couchbase-lite-java-core/issues/41
 
+    /**
+     *  When to compact databases automatically, or null to never do so.
+     */
+    private CompactionPolicy compactionPolicy;
+
     // https://github.com/couchbase/couchbase-lite-java-core/issues/41
     public ManagerOptions() {
         this(new AuthorizerFactoryManager(new ArrayList<AuthorizerFactory>() {{ add(new BuiltInAuthorizerFactory()); }}));
@@ -41,4 +46,12 @@ public class ManagerOptions {
 
     // https://github.com/couchbase/couchbase-lite-java-core/issues/41
     public void setAuthorizerFactoryManager(AuthorizerFactoryManager authorizerFactoryManager) { this.authorizerFactoryManager = authorizerFactoryManager; }
+
+    public CompactionPolicy getCompactionPolicy() {
+        return compactionPolicy;
+    }
+
+    public void setCompactionPolicy(CompactionPolicy compactionPolicy) {
+        this.compactionPolicy = compactionPolicy;
+    }
 }
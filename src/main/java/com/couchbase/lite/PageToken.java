@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.support.Base64;
+import com.couchbase.lite.util.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The position after the last row of a page of query results, from which the next page
+ * continues (see Query.setPageToken()). Rather than skipping the rows of the earlier pages
+ * with OFFSET, the next page's query seeks straight to this position in the index, so every
+ * page costs the same however deep it is.
+ *
+ * A view query's rows are ordered by key and then by sequence, so the position is the last
+ * row's key and sequence, plus the number of rows so far, on this page and earlier ones, that
+ * had that same key and sequence (a document can emit a key more than once), which are
+ * skipped. An all-docs query's rows are ordered by docID, so only that is used. As a string
+ * the token is the URL-safe base64 of the JSON array [key, docID, sequence, duplicates].
+ * @exclude
+ */
+@InterfaceAudience.Private
+public final class PageToken {
+
+    private final Object key;
+    private final String docId;
+    private final long sequence;
+    private final int duplicates;
+
+    /* package */ PageToken(Object key, String docId, long sequence, int duplicates) {
+        this.key = key;
+        this.docId = docId;
+        this.sequence = sequence;
+        this.duplicates = duplicates;
+    }
+
+    /**
+     * The token continuing after a full page of rows, or null if there are none. 'previous' is
+     * the token the page was queried with, if any.
+     */
+    @InterfaceAudience.Private
+    public static PageToken afterRows(List<QueryRow> rows, PageToken previous) {
+        if (rows == null || rows.isEmpty()) {
+            return null;
+        }
+        QueryRow last = rows.get(rows.size() - 1);
+        int duplicates = 1;
+        for (int i = rows.size() - 2; i >= 0 && isDuplicate(rows.get(i), last); i--) {
+            duplicates++;
+        }
+        return afterRow(last, duplicates, previous);
+    }
+
+    /**
+     * The token continuing after a row that ended a page with 'duplicates' rows at its position.
+     * If the page never got past the previous token's position (a document emitted the same key
+     * more than a page's worth of times), the rows skipped to get there count too, or the next
+     * page would start over at the same rows.
+     */
+    /* package */ static PageToken afterRow(QueryRow last, int duplicates, PageToken previous) {
+        if (previous != null && previous.sequence == last.getSequenceNumber()
+                && Utils.isEqual(previous.key, last.getKey())) {
+            duplicates += previous.duplicates;
+        }
+        return new PageToken(last.getKey(), last.getSourceDocumentId(), last.getSequenceNumber(), duplicates);
+    }
+
+    /**
+     * Whether two consecutive rows are at the same position: the same key and sequence.
+     */
+    /* package */ static boolean isDuplicate(QueryRow row, QueryRow other) {
+        return row.getSequenceNumber() == other.getSequenceNumber() && Utils.isEqual(row.getKey(), other.getKey());
+    }
+
+    /**
+     * Parses a token made by encode(). Throws IllegalArgumentException if it isn't one.
+     */
+    @InterfaceAudience.Private
+    public static PageToken decode(String token) {
+        try {
+            byte[] json = Base64.decode(token, Base64.URL_SAFE);
+            List<?> fields = Manager.getObjectMapper().readValue(json, List.class);
+            if (fields.size() != 4 || !(fields.get(2) instanceof Number) || !(fields.get(3) instanceof Number)
+                    || (fields.get(1) != null && !(fields.get(1) instanceof String))) {
+                throw new IllegalArgumentException("Invalid page token: " + token);
+            }
+            return new PageToken(fields.get(0), (String) fields.get(1),
+                    ((Number) fields.get(2)).longValue(), ((Number) fields.get(3)).intValue());
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid page token: " + token, e);
+        }
+    }
+
+    @InterfaceAudience.Private
+    public String encode() {
+        List<Object> fields = new ArrayList<Object>(4);
+        fields.add(key);
+        fields.add(docId);
+        fields.add(sequence);
+        fields.add(duplicates);
+        try {
+            return Base64.encodeBytes(Manager.getObjectMapper().writeValueAsBytes(fields), Base64.URL_SAFE);
+        } catch (Exception e) {
+            throw new IllegalStateException("Can't encode page token", e);
+        }
+    }
+
+    @InterfaceAudience.Private
+    public Object getKey() {
+        return key;
+    }
+
+    @InterfaceAudience.Private
+    public String getDocId() {
+        return docId;
+    }
+
+    @InterfaceAudience.Private
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * The number of rows at the page's end whose key and sequence are those of the token.
+     */
+    @InterfaceAudience.Private
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
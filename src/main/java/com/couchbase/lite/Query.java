@@ -134,6 +134,17 @@ public class Query {
      */
     private int groupLevel;
 
+    /**
+     * If set to YES, run() returns a streaming QueryEnumerator, which reads the rows from the
+     * database as they're enumerated rather than loading them all first.
+     */
+    private boolean streaming;
+
+    /**
+     * If non-nil, the rows start after the position this token was made for, by a previous
+     * page's QueryEnumerator.getNextPageToken().
+     */
+    private PageToken pageToken;
 
 
     private long lastSequence;
@@ -176,6 +187,8 @@ public class Query {
         keys = query.keys;
         groupLevel = query.groupLevel;
         mapOnly = query.mapOnly;
+        streaming = query.streaming;
+        pageToken = query.pageToken;
         startKeyDocId = query.startKeyDocId;
         endKeyDocId = query.endKeyDocId;
         indexUpdateMode = query.indexUpdateMode;
@@ -321,6 +334,43 @@ public class Query {
         this.prefetch = prefetch;
     }
 
+    @InterfaceAudience.Public
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Makes run() return a streaming QueryEnumerator, which keeps a database cursor open and
+     * makes each QueryRow as next() gets to it, parsing its key and value only when they're
+     * asked for. Showing the first rows of a large result then doesn't cost loading all of
+     * them. The enumerator can only be read once, in order, and should be closed if it isn't
+     * read to the end. Reduced and grouped queries, and all-docs queries with keys, return
+     * their rows as usual. Has no effect on runAsync() or on a LiveQuery, which compares
+     * complete results.
+     */
+    @InterfaceAudience.Public
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    @InterfaceAudience.Public
+    public String getPageToken() {
+        return (pageToken != null) ? pageToken.encode() : null;
+    }
+
+    /**
+     * Continues from a previous page of results: pass the token returned by that page's
+     * QueryEnumerator.getNextPageToken(), with the same options (limit being the page size;
+     * skip only applies to the first page, and is ignored when there's a token).
+     * The query then seeks to the first row after that page in the index, instead of skipping
+     * over all the earlier rows, so deep pages are as fast as the first. Only for queries that
+     * don't reduce or group. Throws IllegalArgumentException if the token isn't valid.
+     */
+    @InterfaceAudience.Public
+    public void setPageToken(String pageToken) {
+        this.pageToken = (pageToken != null) ? PageToken.decode(pageToken) : null;
+    }
+
     @InterfaceAudience.Public
     public boolean shouldIncludeDeleted() {
         return allDocsMode == AllDocsMode.INCLUDE_DELETED;
@@ -337,11 +387,47 @@ public class Query {
      */
     @InterfaceAudience.Public
     public QueryEnumerator run() throws CouchbaseLiteException {
-        List<Long> outSequence = new ArrayList<Long>();
         String viewName = (view != null) ? view.getName() : null;
-        List<QueryRow> rows = database.queryViewNamed(viewName, getQueryOptions(), outSequence);
-        lastSequence = outSequence.get(0);
-        return new QueryEnumerator(database, rows, lastSequence);
+        QueryOptions options = getQueryOptions();
+        QueryEnumerator enumerator;
+        if (streaming) {
+            enumerator = database.streamViewNamed(viewName, options);
+            lastSequence = enumerator.getSequenceNumber();
+            if (isPaged(options)) {
+                enumerator.setPageSize(options.getLimit(), options.getPageToken());
+            }
+        } else {
+            enumerator = runMaterialized(viewName, options);
+            lastSequence = enumerator.getSequenceNumber();
+        }
+        return enumerator;
+    }
+
+    /**
+     * Runs the query and reads all of its rows into the returned enumerator.
+     */
+    private QueryEnumerator runMaterialized(String viewName, QueryOptions options) throws CouchbaseLiteException {
+        List<Long> outSequence = new ArrayList<Long>();
+        List<QueryRow> rows = database.queryViewNamed(viewName, options, outSequence);
+        QueryEnumerator enumerator = new QueryEnumerator(database, rows, outSequence.get(0));
+        if (isPaged(options)) {
+            enumerator.setPageSize(options.getLimit(), options.getPageToken());
+        }
+        if (options.isIncludeDocs()) {
+            database.cacheDocuments(rows);
+        }
+        return enumerator;
+    }
+
+    /**
+     * Runs the query synchronously on the calling thread, reading all of its rows, without
+     * changing the query's lastSequence.
+     */
+    /* package */ QueryEnumerator runMaterialized() throws CouchbaseLiteException {
+        if (!getDatabase().isOpen()) {
+            throw new IllegalStateException("The database has been closed.");
+        }
+        return runMaterialized(view.getName(), getQueryOptions());
     }
 
     /**
@@ -384,18 +470,7 @@ public class Query {
             @Override
             public void run() {
                 try {
-
-                    if (!getDatabase().isOpen()) {
-                        throw new IllegalStateException("The database has been closed.");
-                    }
-
-                    String viewName = view.getName();
-                    QueryOptions options = getQueryOptions();
-                    List<Long> outSequence = new ArrayList<Long>();
-                    List<QueryRow> rows = database.queryViewNamed(viewName, options, outSequence);
-                    long sequenceNumber = outSequence.get(0);
-                    QueryEnumerator enumerator = new QueryEnumerator(database, rows, sequenceNumber);
-                    onComplete.completed(enumerator, null);
+                    onComplete.completed(runMaterialized(), null);
 
                 } catch (Throwable t) {
                     Log.e(Log.TAG_QUERY, "Exception caught in runAsyncInternal", t);
@@ -415,7 +490,7 @@ public class Query {
     }
 
     @InterfaceAudience.Private
-    private QueryOptions getQueryOptions() {
+    /* package */ QueryOptions getQueryOptions() {
         QueryOptions queryOptions = new QueryOptions();
         queryOptions.setStartKey(getStartKey());
         queryOptions.setEndKey(getEndKey());
@@ -434,9 +509,20 @@ public class Query {
         queryOptions.setAllDocsMode(getAllDocsMode());
         queryOptions.setStartKeyDocId(getStartKeyDocId());
         queryOptions.setEndKeyDocId(getEndKeyDocId());
+        queryOptions.setPageToken(pageToken);
         return queryOptions;
     }
 
+    /**
+     * Whether the query's results come in pages that getNextPageToken() can continue: it has a
+     * limit, and its rows are map rows or documents rather than reductions.
+     */
+    private boolean isPaged(QueryOptions options) {
+        boolean reduced = view != null && view.getReduce() != null
+                && (options.isReduce() || options.getGroupLevel() > 0);
+        return options.getLimit() != Integer.MAX_VALUE && !reduced;
+    }
+
     @Override
     @InterfaceAudience.Private
     protected void finalize() throws Throwable {
@@ -1,20 +1,47 @@
 package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.util.Log;
 
 import java.util.Iterator;
 import java.util.List;
 
 /**
  * An enumerator for Couchbase Lite View Query results.
+ *
+ * A streaming enumerator (see Query.setStreaming()) reads its rows from a database cursor as
+ * they're asked for, instead of holding all of them. It can only be iterated once, in order:
+ * getCount(), getRow() and reset() aren't supported. The cursor is closed once the last row
+ * has been read; call close() to stop early.
  */
 public class QueryEnumerator implements Iterator<QueryRow> {
 
+    /**
+     * Makes a QueryRow from the current row of a streaming enumerator's cursor.
+     */
+    /* package */ interface RowReader {
+        QueryRow readRow(Cursor cursor) throws SQLException;
+    }
+
     private Database database;
     private List<QueryRow> rows;
     private int nextRow;
     private long sequenceNumber;
 
+    // Streaming mode:
+    private Cursor cursor;
+    private RowReader rowReader;
+    private QueryRow nextStreamedRow;
+
+    // Paging (see getNextPageToken()):
+    private int pageSize;           // the query's limit, if a full page has a next page
+    private PageToken pageToken;    // the token this page was queried with, if any
+    private int rowsRead;           // rows of a streaming enumerator read so far
+    private QueryRow lastRowRead;
+    private int lastRowDuplicates;  // rows read in a row at lastRowRead's key and sequence
+
     /**
      * Constructor
      */
@@ -30,6 +57,17 @@ public class QueryEnumerator implements Iterator<QueryRow> {
         }
     }
 
+    /**
+     * Constructor of a streaming enumerator, which takes ownership of the cursor.
+     */
+    @InterfaceAudience.Private
+    /* package */ QueryEnumerator(Database database, Cursor cursor, RowReader rowReader, long sequenceNumber) {
+        this.database = database;
+        this.cursor = cursor;
+        this.rowReader = rowReader;
+        this.sequenceNumber = sequenceNumber;
+    }
+
     /**
      * Constructor
      */
@@ -38,6 +76,7 @@ public class QueryEnumerator implements Iterator<QueryRow> {
         this.database = other.database;
         this.rows = other.rows;
         this.sequenceNumber = other.sequenceNumber;
+        this.pageSize = other.pageSize;
     }
 
     /**
@@ -45,6 +84,7 @@ public class QueryEnumerator implements Iterator<QueryRow> {
      */
     @InterfaceAudience.Public
     public int getCount() {
+        assertNotStreaming("getCount");
         return rows.size();
     }
 
@@ -63,6 +103,14 @@ public class QueryEnumerator implements Iterator<QueryRow> {
     @Override
     @InterfaceAudience.Public
     public QueryRow next() {
+        if (rowReader != null) {
+            if (!hasNext()) {
+                return null;
+            }
+            QueryRow row = nextStreamedRow;
+            nextStreamedRow = null;
+            return row;
+        }
         if (nextRow >= rows.size()) {
             return null;
         }
@@ -74,9 +122,80 @@ public class QueryEnumerator implements Iterator<QueryRow> {
      */
     @InterfaceAudience.Public
     public QueryRow getRow(int index) {
+        assertNotStreaming("getRow");
         return rows.get(index);
     }
 
+    /**
+     * Whether the rows are read from the database as they're enumerated (see Query.setStreaming()).
+     */
+    @InterfaceAudience.Public
+    public boolean isStreaming() {
+        return rowReader != null;
+    }
+
+    /**
+     * Releases the database cursor of a streaming enumerator that won't be read to the end;
+     * next() then returns null. Does nothing otherwise.
+     */
+    @InterfaceAudience.Public
+    public void close() {
+        nextStreamedRow = null;
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+    }
+
+    /**
+     * A token for the next page of results (see Query.setPageToken()), if this is a full page of
+     * a paged query (one with a limit); else null. A streaming enumerator's token is only known
+     * once its rows have been read.
+     */
+    @InterfaceAudience.Public
+    public String getNextPageToken() {
+        if (pageSize <= 0) {
+            return null;
+        }
+        PageToken token = null;
+        if (rowReader != null) {
+            if (rowsRead >= pageSize && lastRowRead != null) {
+                token = PageToken.afterRow(lastRowRead, lastRowDuplicates, pageToken);
+            }
+        } else if (rows.size() >= pageSize) {
+            token = PageToken.afterRows(rows, pageToken);
+        }
+        return (token != null) ? token.encode() : null;
+    }
+
+    /**
+     * Enables getNextPageToken(), for the rows of a query with this limit, run with this page
+     * token (or null for the first page).
+     */
+    /* package */ void setPageSize(int pageSize, PageToken pageToken) {
+        this.pageSize = pageSize;
+        this.pageToken = pageToken;
+    }
+
+    private void trackStreamedRow(QueryRow row) {
+        if (pageSize <= 0) {
+            return;
+        }
+        if (lastRowRead != null && PageToken.isDuplicate(row, lastRowRead)) {
+            lastRowDuplicates++;
+        } else {
+            lastRowDuplicates = 1;
+        }
+        lastRowRead = row;
+        rowsRead++;
+    }
+
+    private void assertNotStreaming(String method) {
+        if (rowReader != null) {
+            throw new UnsupportedOperationException("A streaming QueryEnumerator does not support " + method + "()");
+        }
+    }
+
     /**
      * Compare this to given QueryEnumerator to check if equals.
      * This compares the underlying rows of the two QueryEnumerator instances.
@@ -104,6 +223,24 @@ public class QueryEnumerator implements Iterator<QueryRow> {
     @Override
     @InterfaceAudience.Public
     public boolean hasNext() {
+        if (rowReader != null) {
+            if (nextStreamedRow == null && cursor != null) {
+                try {
+                    if (cursor.moveToNext()) {
+                        nextStreamedRow = rowReader.readRow(cursor);
+                        nextStreamedRow.setDatabase(database);
+                        trackStreamedRow(nextStreamedRow);
+                    } else {
+                        close();
+                    }
+                } catch (SQLException e) {
+                    Log.e(Log.TAG_QUERY, "Error reading query rows", e);
+                    close();
+                    throw e;
+                }
+            }
+            return nextStreamedRow != null;
+        }
         return nextRow < rows.size();
     }
 
@@ -129,6 +266,7 @@ public class QueryEnumerator implements Iterator<QueryRow> {
      */
     @InterfaceAudience.Public
     public void reset() {
+        assertNotStreaming("reset");
         nextRow = 0;
     }
 
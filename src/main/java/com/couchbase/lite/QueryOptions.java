@@ -48,6 +48,7 @@ public class QueryOptions {
 
     private String startKeyDocId;
     private String endKeyDocId;
+    private PageToken pageToken;
 
 
     public Object getStartKey() {
@@ -194,4 +195,16 @@ public class QueryOptions {
         this.endKeyDocId = endKeyDocId;
     }
 
+    /**
+     * If set, the rows start right after this position (see PageToken), which is a seek in the
+     * index rather than a scan past the skipped rows. Map and all-docs queries only.
+     */
+    public PageToken getPageToken() {
+        return pageToken;
+    }
+
+    public void setPageToken(PageToken pageToken) {
+        this.pageToken = pageToken;
+    }
+
 }
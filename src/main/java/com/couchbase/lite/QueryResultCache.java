@@ -0,0 +1,261 @@
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.LruCache;
+import com.couchbase.lite.util.Utils;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the rows of view queries (see Database.setQueryResultCacheSize()), keyed by the view,
+ * its state and the query's options, so that a query repeated while the view's index hasn't
+ * changed doesn't run again. The same key, hashed, is the ETag the router gives view results.
+ *
+ * The key includes the index's lastSequence (and the database's, with include_docs, since the
+ * documents can change without the index being updated), so results go out of date by no
+ * longer matching; when a view's index is seen to have moved on, its older entries are dropped
+ * to make room. Changes that don't move lastSequence forward, like a rebuilt index, call
+ * invalidateView(), which bumps the view's generation in the key.
+ *
+ * The cache holds up to maxRows rows in all, least recently used results going first; a
+ * result bigger than that isn't cached. Rows are stored as JSON and every hit gets new
+ * QueryRows made from it, since callers (on any thread) may change the rows' keys, values
+ * and document properties.
+ * @exclude
+ */
+@InterfaceAudience.Private
+class QueryResultCache {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Database database;
+    private LruCache<String, List<CachedRow>> results;
+    private final Map<String, Integer> viewGenerations = new HashMap<String, Integer>();
+    private final Map<String, Long> viewSequences = new HashMap<String, Long>();
+    private int generation;  // of the whole database's views
+    private long hits;
+    private long misses;
+
+    /* package */ QueryResultCache(Database database) {
+        this.database = database;
+    }
+
+    /**
+     * Sets the most rows the cache may hold; 0 disables it and empties it.
+     */
+    /* package */ synchronized void setMaxRows(int maxRows) {
+        if (maxRows <= 0) {
+            if (results != null) {
+                results.evictAll();
+            }
+            results = null;
+        } else if (results == null) {
+            results = new LruCache<String, List<CachedRow>>(maxRows) {
+                @Override
+                protected int sizeOf(String key, List<CachedRow> rows) {
+                    return Math.max(1, rows.size());
+                }
+            };
+        } else {
+            results.resize(maxRows);
+        }
+    }
+
+    /* package */ synchronized int getMaxRows() {
+        return (results != null) ? results.maxSize() : 0;
+    }
+
+    /* package */ synchronized boolean isEnabled() {
+        return results != null;
+    }
+
+    /**
+     * The key of a view query's results, given the sequence the view's index is at: the view's
+     * name and generation, the sequence(s), and the options that affect the rows, as JSON.
+     */
+    /* package */ String keyFor(View view, QueryOptions options, long lastSequence) {
+        boolean group = options.isGroup() || options.getGroupLevel() > 0;
+        boolean reduce = (options.isReduce() || group) && view.getReduce() != null;
+        List<Object> normalized = new ArrayList<Object>(16);
+        normalized.add(options.getStartKey());
+        normalized.add(options.getEndKey());
+        normalized.add(options.getKeys());
+        normalized.add(options.getStartKeyDocId());
+        normalized.add(options.getEndKeyDocId());
+        normalized.add(options.getSkip());
+        normalized.add(options.getLimit());
+        normalized.add(options.isDescending());
+        normalized.add(options.isInclusiveEnd());
+        normalized.add(reduce);
+        normalized.add(group ? options.getGroupLevel() : -1);
+        normalized.add(options.isIncludeDocs());
+        normalized.add(options.isIncludeDocs() ? options.getContentOptions().toString() : null);
+        normalized.add(options.getPageToken() != null ? options.getPageToken().encode() : null);
+
+        String name = view.getName();
+        StringBuilder key = new StringBuilder(name);
+        synchronized (this) {
+            Integer viewGeneration = viewGenerations.get(name);
+            key.append('\n').append(generation).append('.').append((viewGeneration != null) ? viewGeneration : 0);
+        }
+        key.append(':').append(lastSequence);
+        if (options.isIncludeDocs()) {
+            key.append(':').append(database.getLastSequenceNumber());
+        }
+        try {
+            key.append('\n').append(Manager.getObjectMapper().writeValueAsString(normalized));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Can't encode query options as JSON", e);
+        }
+        return key.toString();
+    }
+
+    /**
+     * A short, quotable hash of a key, for use as an HTTP ETag.
+     */
+    /* package */ static String etagFor(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return Utils.bytesToHex(digest.digest(key.getBytes(UTF_8)));
+        } catch (Exception e) {
+            throw new IllegalStateException("Can't compute query ETag", e);
+        }
+    }
+
+    /**
+     * The cached rows for a key, or null. Callers get their own rows.
+     */
+    /* package */ synchronized List<QueryRow> get(String viewName, long lastSequence, String key) {
+        if (results == null) {
+            return null;
+        }
+        Long knownSequence = viewSequences.get(viewName);
+        if (knownSequence == null || knownSequence < lastSequence) {
+            if (knownSequence != null) {
+                removeEntries(viewName);
+            }
+            viewSequences.put(viewName, lastSequence);
+        }
+        List<CachedRow> cachedRows = results.get(key);
+        if (cachedRows == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        List<QueryRow> rows = new ArrayList<QueryRow>(cachedRows.size());
+        for (CachedRow cachedRow : cachedRows) {
+            rows.add(cachedRow.toQueryRow());
+        }
+        return rows;
+    }
+
+    /* package */ void put(String key, List<QueryRow> rows) {
+        if (rows.size() > getMaxRows()) {
+            return;
+        }
+        List<CachedRow> cachedRows = new ArrayList<CachedRow>(rows.size());
+        try {
+            for (QueryRow row : rows) {
+                cachedRows.add(new CachedRow(row));
+            }
+        } catch (IOException e) {
+            Log.w(Log.TAG_QUERY, "Can't cache the results of a query", e);
+            return;
+        }
+        synchronized (this) {
+            if (results != null) {
+                results.put(key, cachedRows);
+            }
+        }
+    }
+
+    /**
+     * Drops a view's cached results and changes its keys (and so its ETags), for changes to
+     * the view's index that don't advance its lastSequence.
+     */
+    /* package */ synchronized void invalidateView(String viewName) {
+        Integer viewGeneration = viewGenerations.get(viewName);
+        viewGenerations.put(viewName, (viewGeneration != null) ? viewGeneration + 1 : 1);
+        viewSequences.remove(viewName);
+        if (results != null) {
+            removeEntries(viewName);
+        }
+    }
+
+    /**
+     * Like invalidateView(), for every view.
+     */
+    /* package */ synchronized void invalidateAll() {
+        generation++;
+        viewSequences.clear();
+        if (results != null) {
+            results.evictAll();
+        }
+    }
+
+    private void removeEntries(String viewName) {
+        String prefix = viewName + "\n";
+        int removed = 0;
+        for (String key : results.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                results.remove(key);
+                removed++;
+            }
+        }
+        Log.v(Log.TAG_QUERY, "Dropped %d cached results of view %s", removed, viewName);
+    }
+
+    /* package */ synchronized long getHits() {
+        return hits;
+    }
+
+    /* package */ synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * A QueryRow as JSON, which no caller can change.
+     */
+    private class CachedRow {
+        private final String documentId;
+        private final long sequence;
+        private final byte[] key;
+        private final byte[] value;
+        private final byte[] documentProperties;
+
+        CachedRow(QueryRow row) throws IOException {
+            ObjectMapper mapper = Manager.getObjectMapper();
+            documentId = row.getSourceDocumentId();
+            sequence = row.getSequenceNumber();
+            key = mapper.writeValueAsBytes(row.getKey());
+            value = (row.getValue() != null) ? mapper.writeValueAsBytes(row.getValue()) : null;
+            Map<String, Object> properties = row.getDocumentProperties();
+            documentProperties = (properties != null) ? mapper.writeValueAsBytes(properties) : null;
+        }
+
+        QueryRow toQueryRow() {
+            Map<String, Object> properties = null;
+            if (documentProperties != null) {
+                try {
+                    properties = Manager.getObjectMapper().readValue(documentProperties,
+                            new TypeReference<Map<String, Object>>() {});
+                } catch (IOException e) {
+                    throw new IllegalStateException("Can't parse cached document properties", e);
+                }
+            }
+            QueryRow row = QueryRow.fromJSON(documentId, sequence, key, value, properties);
+            row.setDatabase(database);
+            return row;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.support.JsonDocument;
 import com.couchbase.lite.util.Utils;
 
 import java.util.ArrayList;
@@ -25,6 +26,12 @@ public class QueryRow {
      */
     private Object value;
 
+    /**
+     * The row's key and value as JSON, if they haven't been parsed yet (see fromJSON()).
+     */
+    private JsonDocument keyJson;
+    private JsonDocument valueJson;
+
     /**
      * The database sequence number of the associated doc/revision.
      */
@@ -68,6 +75,22 @@ public class QueryRow {
         this.documentProperties = documentProperties;
     }
 
+    /* package */ void setDocumentProperties(Map<String, Object> documentProperties) {
+        this.documentProperties = documentProperties;
+    }
+
+    /**
+     * Creates a row whose key and value are only parsed from their JSON when first asked for,
+     * so rows that are skipped over, or only looked at for their docID, cost no parsing.
+     */
+    @InterfaceAudience.Private
+    /* package */ static QueryRow fromJSON(String documentId, long sequence, byte[] keyJson, byte[] valueJson, Map<String, Object> documentProperties) {
+        QueryRow row = new QueryRow(documentId, sequence, null, null, documentProperties);
+        row.keyJson = new JsonDocument(keyJson);
+        row.valueJson = new JsonDocument(valueJson);
+        return row;
+    }
+
     /**
      * Gets the Database that owns the Query's View.
      */
@@ -96,6 +119,10 @@ public class QueryRow {
      */
     @InterfaceAudience.Public
     public Object getKey() {
+        if (keyJson != null) {
+            key = keyJson.jsonObject();
+            keyJson = null;
+        }
         return key;
     }
 
@@ -104,6 +131,10 @@ public class QueryRow {
      */
     @InterfaceAudience.Public
     public Object getValue() {
+        if (valueJson != null) {
+            value = valueJson.jsonObject();
+            valueJson = null;
+        }
         return value;
     }
 
@@ -148,6 +179,7 @@ public class QueryRow {
             rev = (String) documentProperties.get("_rev");
         }
         if (rev == null) {
+            Object value = getValue();
             if (value instanceof Map) {
                 Map<String, Object> mapValue = (Map<String, Object>) value;
                 rev = (String) mapValue.get("_rev");
@@ -188,7 +220,7 @@ public class QueryRow {
     @InterfaceAudience.Public
     public List<SavedRevision> getConflictingRevisions() {
         Document doc = database.getDocument(sourceDocumentId);
-        Map<String, Object> valueTmp = (Map<String, Object>) value;
+        Map<String, Object> valueTmp = (Map<String, Object>) getValue();
         List<String> conflicts = (List<String>) valueTmp.get("_conflicts");
         if (conflicts == null) {
             conflicts = new ArrayList<String>();
@@ -228,13 +260,14 @@ public class QueryRow {
         boolean documentPropertiesEqual = Utils.isEqual(documentProperties, other.getDocumentProperties());
 
         if (database == other.database
-                && Utils.isEqual(key, other.getKey())
+                && Utils.isEqual(getKey(), other.getKey())
                 && Utils.isEqual(sourceDocumentId, other.getSourceDocumentId())
                 && documentPropertiesEqual) {
             // If values were emitted, compare them. Otherwise we have nothing to go on so check
             // if _anything_ about the doc has changed (i.e. the sequences are different.)
+            Object value = getValue();
             if (value != null || other.getValue() != null) {
-                return value.equals(other.getValue());
+                return value != null && value.equals(other.getValue());
             }
             else {
                 return sequence == other.sequence;
@@ -267,6 +300,8 @@ public class QueryRow {
     @InterfaceAudience.Private
     public Map<String, Object> asJSONDictionary() {
         Map<String, Object> result = new HashMap<String, Object>();
+        Object key = getKey();
+        Object value = getValue();
         if (value != null || sourceDocumentId != null) {
             result.put("key", key);
             if (value != null){
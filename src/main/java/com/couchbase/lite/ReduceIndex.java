@@ -0,0 +1,524 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.StatementCache;
+import com.couchbase.lite.support.JsonCollator;
+import com.couchbase.lite.support.JsonDocument;
+import com.couchbase.lite.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stored partial reductions of a view's index, used to answer reduce and group queries without
+ * reducing every row in range (see View.setReduceIndexEnabled()).
+ *
+ * The rows of the view's table, in key order, are split into blocks of about BLOCK_ROWS
+ * consecutive rows. A block spans the positions (key and sequence) of its first and last rows,
+ * and the 'reduces' table stores those and the reduction of its rows. When the index is updated
+ * only the blocks that gained or lost rows are reduced again (and split or merged with the next
+ * one to stay near BLOCK_ROWS). A query re-reduces (rereduce=true) the stored values of the
+ * blocks in its key range; only a block at an end of the range, or one whose keys fall in more
+ * than one group, has its rows read and reduced. So a query's cost depends on the number of
+ * blocks and groups rather than the number of rows.
+ *
+ * The reductions are up to date as of views.reducesequence. If that doesn't match the view's
+ * lastSequence (the option was just turned on, or revisions were purged), queries reduce the
+ * rows as usual and the reductions are rebuilt at the next index update.
+ * @exclude
+ */
+@InterfaceAudience.Private
+class ReduceIndex {
+
+    /* package */ static final int BLOCK_ROWS = 256;
+
+    /** A block left with fewer rows than this is merged with the next one. */
+    private static final int MIN_BLOCK_ROWS = BLOCK_ROWS / 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final View view;
+    private final StatementCache statements;
+    private final int viewId;
+    private final Reducer reducer;
+    private final String mapTable;
+    private final JsonCollator.Mode collatorMode;
+    private final Map<String, Set<Long>> dirtyRows = new HashMap<String, Set<Long>>();
+
+    /* package */ ReduceIndex(View view) {
+        this.view = view;
+        this.statements = view.getDatabase().getStatementCache();
+        this.viewId = view.getViewId();
+        this.reducer = view.getReduce();
+        this.mapTable = view.getMapTableName();
+        this.collatorMode = view.collatorMode();
+    }
+
+    /**
+     * The lastSequence of the view's index when the reductions were last brought up to date,
+     * or -1 if they're known to be invalid.
+     */
+    /* package */ long getValidSequence() throws SQLException {
+        Cursor cursor = null;
+        try {
+            cursor = statements.query("SELECT reducesequence FROM views WHERE view_id=?", viewId);
+            return cursor.moveToNext() ? cursor.getLong(0) : -1;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /* package */ void setValidSequence(long sequence) throws SQLException {
+        statements.executeUpdateDelete("UPDATE views SET reducesequence=? WHERE view_id=?", sequence, viewId);
+    }
+
+    /**
+     * Records that a row with this key and sequence has been added to the index, or is about to
+     * be removed from it.
+     */
+    /* package */ void markDirty(String key, long sequence) {
+        Set<Long> sequences = dirtyRows.get(key);
+        if (sequences == null) {
+            sequences = new HashSet<Long>();
+            dirtyRows.put(key, sequences);
+        }
+        sequences.add(sequence);
+    }
+
+    /**
+     * Marks the blocks of the view's rows that match a condition on the view's table. Call it
+     * before deleting those rows.
+     */
+    /* package */ void markRowsDirty(String where, Object... args) throws SQLException {
+        Cursor cursor = null;
+        try {
+            cursor = statements.query("SELECT key, sequence FROM " + mapTable + " WHERE " + where, args);
+            while (cursor.moveToNext()) {
+                markDirty(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Reduces the blocks holding the dirty rows again from the rows now in the index.
+     */
+    /* package */ void update() throws SQLException {
+        if (dirtyRows.isEmpty()) {
+            return;
+        }
+        List<Block> blocks = loadBlocks();
+        if (blocks.isEmpty()) {
+            rebuild();
+            return;
+        }
+
+        // A row belongs to the last block starting at or before its position (or the first):
+        for (Map.Entry<String, Set<Long>> entry : dirtyRows.entrySet()) {
+            byte[] key = entry.getKey().getBytes(UTF_8);
+            for (long sequence : entry.getValue()) {
+                int low = 1, high = blocks.size() - 1;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    if (comparePositions(blocks.get(mid).key, blocks.get(mid).sequence, key, sequence) <= 0) {
+                        low = mid + 1;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                blocks.get(low - 1).dirty = true;
+            }
+        }
+        dirtyRows.clear();
+
+        // Write each dirty block again, as one or more blocks, merging it with the next one if
+        // it's become too small. The first block has no lower bound, and the last no upper one:
+        int updated = 0;
+        int i = 0;
+        while (i < blocks.size()) {
+            if (!blocks.get(i).dirty) {
+                i++;
+                continue;
+            }
+            int end = i + 1;
+            List<Block> written;
+            while (true) {
+                for (int j = i; j < end; j++) {
+                    if (blocks.get(j).id > 0) {
+                        statements.executeUpdateDelete("DELETE FROM reduces WHERE rowid=?", blocks.get(j).id);
+                        blocks.get(j).id = 0;
+                    }
+                }
+                Block lower = (i > 0) ? blocks.get(i) : null;
+                Block upper = (end < blocks.size()) ? blocks.get(end) : null;
+                written = writeBlocks(lower, upper);
+                if (written.size() == 1 && written.get(0).rowCount < MIN_BLOCK_ROWS && upper != null) {
+                    // Too small; write it again together with the next block:
+                    statements.executeUpdateDelete("DELETE FROM reduces WHERE rowid=?", written.get(0).id);
+                    end++;
+                } else {
+                    break;
+                }
+            }
+            blocks.subList(i, end).clear();
+            blocks.addAll(i, written);
+            i += written.size();
+            updated += written.size();
+        }
+        Log.v(Log.TAG_VIEW, "Updated %d reduce blocks of view %s", updated, view.getName());
+    }
+
+    /**
+     * Discards all the stored reductions and computes them again from the whole index.
+     */
+    /* package */ void rebuild() throws SQLException {
+        statements.executeUpdateDelete("DELETE FROM reduces WHERE view_id=?", viewId);
+        dirtyRows.clear();
+        List<Block> blocks = writeBlocks(null, null);
+        Log.v(Log.TAG_VIEW, "Rebuilt %d reduce blocks of view %s", blocks.size(), view.getName());
+    }
+
+    /**
+     * The view's blocks, in key order.
+     */
+    private List<Block> loadBlocks() throws SQLException {
+        List<Block> blocks = new ArrayList<Block>();
+        Cursor cursor = null;
+        try {
+            cursor = statements.query("SELECT rowid, key, sequence FROM reduces WHERE view_id=? ORDER BY key"
+                    + view.collationSQL() + ", sequence", viewId);
+            while (cursor.moveToNext()) {
+                Block block = new Block();
+                block.id = cursor.getLong(0);
+                block.key = cursor.getBlob(1);
+                block.sequence = cursor.getLong(2);
+                blocks.add(block);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Reads the rows from the start of block 'lower' up to (not including) the start of block
+     * 'upper', and writes them as blocks of BLOCK_ROWS rows (the last one taking in the rest, if
+     * that's fewer than MIN_BLOCK_ROWS). Rows at the same position stay in the same block.
+     * Returns the blocks written, in order.
+     */
+    private List<Block> writeBlocks(Block lower, Block upper) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT key, sequence, value FROM ").append(mapTable).append(" WHERE 1");
+        List<String> argsList = new ArrayList<String>();
+        if (lower != null) {
+            appendPositionSQL(sql, argsList, lower.key, lower.sequence, ">=");
+        }
+        if (upper != null) {
+            appendPositionSQL(sql, argsList, upper.key, upper.sequence, "<");
+        }
+        sql.append(" ORDER BY ").append(view.keyColumn()).append(", sequence");
+
+        List<Block> written = new ArrayList<Block>();
+        Block pending = null;
+        Block block = new Block();
+        Cursor cursor = null;
+        try {
+            cursor = view.getDatabase().getDatabase().rawQuery(sql.toString(),
+                    argsList.toArray(new String[argsList.size()]));
+            while (cursor.moveToNext()) {
+                byte[] key = cursor.getBlob(0);
+                long sequence = cursor.getLong(1);
+                if (block.rowCount >= BLOCK_ROWS
+                        && comparePositions(key, sequence, block.lastKey, block.lastSequence) != 0) {
+                    if (pending != null) {
+                        insertBlock(pending);
+                        written.add(pending);
+                    }
+                    pending = block;
+                    block = new Block();
+                }
+                block.addRow(key, sequence, new JsonDocument(cursor.getBlob(2)).jsonObject());
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (pending != null && block.rowCount < MIN_BLOCK_ROWS) {
+            pending.addRows(block);
+            block = pending;
+        } else if (pending != null) {
+            insertBlock(pending);
+            written.add(pending);
+        }
+        if (block.rowCount > 0) {
+            insertBlock(block);
+            written.add(block);
+        }
+        return written;
+    }
+
+    private void insertBlock(Block block) throws SQLException {
+        Object reduced = reducer.reduce(block.keys, block.values, false);
+        block.id = statements.executeInsert(
+                "INSERT INTO reduces (view_id, key, sequence, last_key, last_sequence, value) VALUES (?, ?, ?, ?, ?, ?)",
+                viewId, new String(block.key, UTF_8), block.sequence,
+                new String(block.lastKey, UTF_8), block.lastSequence, view.toJSONString(reduced));
+        block.keys = null;
+        block.values = null;
+    }
+
+    /**
+     * Appends a condition on the position (key, then sequence) of the view's table's rows.
+     * 'op' is one of "&gt;=", "&lt;" or "&lt;=".
+     */
+    private void appendPositionSQL(StringBuilder sql, List<String> argsList, byte[] keyJson, long sequence, String op) {
+        boolean binaryKeys = view.usesBinaryKeys();
+        String column = view.keyColumn();
+        Object key = new JsonDocument(keyJson).jsonObject();
+        sql.append(" AND (").append(column).append(' ').append(op.charAt(0)).append(' ');
+        view.appendKeySQL(sql, argsList, key, binaryKeys);
+        sql.append(" OR (").append(column).append(" = ");
+        view.appendKeySQL(sql, argsList, key, binaryKeys);
+        sql.append(" AND sequence ").append(op).append(" ?))");
+        argsList.add(Long.toString(sequence));
+    }
+
+    private int comparePositions(byte[] key1, long sequence1, byte[] key2, long sequence2) {
+        int cmp = JsonCollator.compareJSON(key1, key2, collatorMode);
+        if (cmp != 0) {
+            return cmp;
+        }
+        return (sequence1 < sequence2) ? -1 : ((sequence1 == sequence2) ? 0 : 1);
+    }
+
+    /**
+     * Runs a reduced or grouped query by re-reducing the stored block reductions. Returns null if
+     * the query can't be answered this way: the reductions aren't up to date, or the options
+     * select keys by list, part of a key's rows (startkey_docid, endkey_docid) or page through
+     * the map rows (skip, limit); the caller should reduce the rows instead.
+     */
+    /* package */ List<QueryRow> query(QueryOptions options, boolean group, int groupLevel) throws SQLException {
+        if (options.getKeys() != null || options.getStartKeyDocId() != null || options.getEndKeyDocId() != null
+                || options.getSkip() != 0 || options.getLimit() != Integer.MAX_VALUE) {
+            return null;
+        }
+        long validSequence = getValidSequence();
+        if (validSequence < 0 || validSequence != view.getLastSequenceIndexed()) {
+            return null;
+        }
+
+        Object minKey = options.getStartKey();
+        Object maxKey = options.getEndKey();
+        boolean inclusiveMin = true;
+        boolean inclusiveMax = options.isInclusiveEnd();
+        if (options.isDescending()) {
+            Object min = minKey;
+            minKey = maxKey;
+            maxKey = min;
+            inclusiveMin = inclusiveMax;
+            inclusiveMax = true;
+        }
+        byte[] minKeyJson = (minKey != null) ? view.toJSONString(minKey).getBytes(UTF_8) : null;
+        byte[] maxKeyJson = (maxKey != null) ? view.toJSONString(maxKey).getBytes(UTF_8) : null;
+
+        // The blocks that have rows in range:
+        String collationStr = view.collationSQL();
+        String direction = options.isDescending() ? " DESC" : "";
+        StringBuilder sql = new StringBuilder(
+                "SELECT key, sequence, last_key, last_sequence, value FROM reduces WHERE view_id=?");
+        List<String> argsList = new ArrayList<String>();
+        argsList.add(Integer.toString(viewId));
+        if (minKeyJson != null) {
+            sql.append(inclusiveMin ? " AND last_key >= ?" : " AND last_key > ?").append(collationStr);
+            argsList.add(new String(minKeyJson, UTF_8));
+        }
+        if (maxKeyJson != null) {
+            sql.append(inclusiveMax ? " AND key <= ?" : " AND key < ?").append(collationStr);
+            argsList.add(new String(maxKeyJson, UTF_8));
+        }
+        sql.append(" ORDER BY key").append(collationStr).append(direction);
+
+        Grouper grouper = new Grouper(group, groupLevel);
+        Cursor cursor = null;
+        try {
+            cursor = view.getDatabase().getDatabase().rawQuery(sql.toString(),
+                    argsList.toArray(new String[argsList.size()]));
+            while (cursor.moveToNext()) {
+                byte[] firstKeyJson = cursor.getBlob(0);
+                byte[] lastKeyJson = cursor.getBlob(2);
+                Object firstKey = new JsonDocument(firstKeyJson).jsonObject();
+                Object lastKey = new JsonDocument(lastKeyJson).jsonObject();
+                boolean inRange = (minKeyJson == null || compareKeys(firstKeyJson, minKeyJson, inclusiveMin) >= 0)
+                        && (maxKeyJson == null || compareKeys(maxKeyJson, lastKeyJson, inclusiveMax) >= 0);
+                if (inRange && (!group || View.groupTogether(firstKey, lastKey, groupLevel))) {
+                    grouper.add(firstKey, new JsonDocument(cursor.getBlob(4)).jsonObject());
+                } else {
+                    // Part of the block is out of range, or it spans groups: reduce its rows
+                    reduceBlockRows(grouper, options, firstKeyJson, cursor.getLong(1), lastKeyJson, cursor.getLong(3));
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return grouper.finish();
+    }
+
+    /**
+     * Compares two keys, counting them as equal if 'inclusive' (so the result is &gt;= 0 if the
+     * first is above the second, or at it if inclusive).
+     */
+    private int compareKeys(byte[] key1, byte[] key2, boolean inclusive) {
+        int cmp = JsonCollator.compareJSON(key1, key2, collatorMode);
+        return (cmp == 0 && !inclusive) ? -1 : cmp;
+    }
+
+    /**
+     * Reduces the rows of a block that are in the query's range, group by group, and adds the
+     * results to the grouper.
+     */
+    private void reduceBlockRows(Grouper grouper, QueryOptions options, byte[] firstKey, long firstSequence,
+                                 byte[] lastKey, long lastSequence) throws SQLException {
+        String direction = options.isDescending() ? " DESC" : "";
+        StringBuilder sql = new StringBuilder("SELECT key, value FROM ").append(mapTable).append(" WHERE 1");
+        List<String> argsList = new ArrayList<String>();
+        appendPositionSQL(sql, argsList, firstKey, firstSequence, ">=");
+        appendPositionSQL(sql, argsList, lastKey, lastSequence, "<=");
+        view.appendKeyRangeSQL(sql, argsList, options, true);
+        sql.append(" ORDER BY ").append(view.keyColumn()).append(direction).append(", sequence").append(direction);
+
+        List<Object> keys = new ArrayList<Object>();
+        List<Object> values = new ArrayList<Object>();
+        Cursor cursor = null;
+        try {
+            cursor = view.getDatabase().getDatabase().rawQuery(sql.toString(),
+                    argsList.toArray(new String[argsList.size()]));
+            while (cursor.moveToNext()) {
+                Object key = new JsonDocument(cursor.getBlob(0)).jsonObject();
+                if (!keys.isEmpty() && grouper.group && !View.groupTogether(key, keys.get(0), grouper.groupLevel)) {
+                    grouper.add(keys.get(0), reducer.reduce(keys, values, false));
+                    keys.clear();
+                    values.clear();
+                }
+                keys.add(key);
+                values.add(new JsonDocument(cursor.getBlob(1)).jsonObject());
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (!keys.isEmpty()) {
+            grouper.add(keys.get(0), reducer.reduce(keys, values, false));
+        }
+    }
+
+    /**
+     * The rows of a block being written.
+     */
+    private static class Block {
+        long id;            // rowid in 'reduces', or 0
+        byte[] key;         // of the first row
+        long sequence;
+        byte[] lastKey;
+        long lastSequence;
+        int rowCount;
+        List<Object> keys = new ArrayList<Object>();
+        List<Object> values = new ArrayList<Object>();
+        boolean dirty;
+
+        void addRow(byte[] key, long sequence, Object value) {
+            if (rowCount == 0) {
+                this.key = key;
+                this.sequence = sequence;
+            }
+            lastKey = key;
+            lastSequence = sequence;
+            keys.add(new JsonDocument(key).jsonObject());
+            values.add(value);
+            rowCount++;
+        }
+
+        void addRows(Block next) {
+            lastKey = next.lastKey;
+            lastSequence = next.lastSequence;
+            keys.addAll(next.keys);
+            values.addAll(next.values);
+            rowCount += next.rowCount;
+        }
+    }
+
+    /**
+     * Collects partial reductions in key order and re-reduces them, per group if grouping, or
+     * all together.
+     */
+    private class Grouper {
+        final boolean group;
+        final int groupLevel;
+        final List<QueryRow> rows = new ArrayList<QueryRow>();
+        final List<Object> keys = new ArrayList<Object>(View.REDUCE_BATCH_SIZE);
+        final List<Object> values = new ArrayList<Object>(View.REDUCE_BATCH_SIZE);
+
+        Grouper(boolean group, int groupLevel) {
+            this.group = group;
+            this.groupLevel = groupLevel;
+        }
+
+        /**
+         * Adds the reduction of rows whose keys all group together with 'key'.
+         */
+        void add(Object key, Object value) {
+            if (group && !keys.isEmpty() && !View.groupTogether(key, keys.get(0), groupLevel)) {
+                addRow();
+            }
+            keys.add(key);
+            values.add(value);
+        }
+
+        List<QueryRow> finish() {
+            if (!keys.isEmpty()) {
+                // Finish the last group (or the entire range, if no grouping):
+                addRow();
+            }
+            return rows;
+        }
+
+        private void addRow() {
+            Object reduced = reducer.reduce(keys, values, true);
+            QueryRow row = new QueryRow(null, 0, group ? View.groupKey(keys.get(0), groupLevel) : null, reduced, null);
+            row.setDatabase(view.getDatabase());
+            rows.add(row);
+            keys.clear();
+            values.clear();
+        }
+    }
+}
@@ -25,6 +25,9 @@ import com.couchbase.lite.storage.ContentValues;
 import com.couchbase.lite.storage.Cursor;
 import com.couchbase.lite.storage.SQLException;
 import com.couchbase.lite.storage.SQLiteStorageEngine;
+import com.couchbase.lite.storage.StatementCache;
+import com.couchbase.lite.support.CollatableKey;
+import com.couchbase.lite.support.JsonCollator;
 import com.couchbase.lite.support.JsonDocument;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.Utils;
@@ -32,8 +35,11 @@ import com.couchbase.lite.util.Utils;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * Represents a view available in a database.
@@ -45,6 +51,14 @@ public final class View {
      */
     public static final int REDUCE_BATCH_SIZE = 100;
 
+    // views.collation of a table whose keys are compared as binary sort keys:
+    /* package */ static final String BINARY_KEYS_COLLATION = "BINARY";
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // Sequences indexed into a shadow index per transaction, so writers are never held up long:
+    /* package */ static final long SHADOW_STEP_SEQUENCES = 1000;
+
     /**
      * @exclude
      */
@@ -57,7 +71,16 @@ public final class View {
     private int viewId;
     private Mapper mapBlock;
     private Reducer reduceBlock;
-    private TDViewCollation collation;
+    private TDViewCollation collation;  // null until set, or read from views.collation
+    private boolean mapperThreadSafe;
+    private boolean reduceIndexEnabled;
+    private String mapTableCollation;  // collation of the view's table, once it's known to exist
+    private volatile boolean rebuildingIndex;  // building a shadow index for a new map version
+    private Reducer indexReduceBlock;  // while rebuilding, the reducer of the index's version, if known
+    private final Set<LiveQuery> liveQueries = new CopyOnWriteArraySet<LiveQuery>();
+    private long totalRowsEmitted;
+    private long totalRowsDeleted;
+    private long totalBytesIndexed;
     private static ViewCompiler compiler;
 
     /**
@@ -85,7 +108,6 @@ public final class View {
         this.database = database;
         this.name = name;
         this.viewId = -1; // means 'unknown'
-        this.collation = TDViewCollation.TDViewCollationUnicode;
     }
 
     /**
@@ -112,6 +134,46 @@ public final class View {
         return mapBlock;
     }
 
+    /**
+     * Is the map function safe to call from several threads at once? If so, updateIndex()
+     * runs it on a pool of worker threads, and a LiveQuery on the view can apply document
+     * changes to its rows without running the query again. Defaults to false, since a map
+     * function compiled from source (see ViewCompiler) may not be.
+     */
+    @InterfaceAudience.Public
+    public boolean isMapperThreadSafe() {
+        return mapperThreadSafe;
+    }
+
+    /**
+     * Declares whether the map function can be called from several threads at once. It must
+     * not use any state shared between calls, nor call back into the database.
+     */
+    @InterfaceAudience.Public
+    public void setMapperThreadSafe(boolean mapperThreadSafe) {
+        this.mapperThreadSafe = mapperThreadSafe;
+    }
+
+    /**
+     * Does the view keep a reduce index? See setReduceIndexEnabled().
+     */
+    @InterfaceAudience.Public
+    public boolean isReduceIndexEnabled() {
+        return reduceIndexEnabled;
+    }
+
+    /**
+     * Enables storing partial reductions of the view's index, which are kept up to date as the
+     * index is updated. Reduced and grouped queries then combine those (calling the reduce
+     * function with rereduce=true) instead of reducing every row in range. Only worth it for
+     * large indexes that are queried with reduce often; the reduce function must support
+     * rereduce. The stored reductions are built at the next index update.
+     */
+    @InterfaceAudience.Public
+    public void setReduceIndexEnabled(boolean reduceIndexEnabled) {
+        this.reduceIndexEnabled = reduceIndexEnabled;
+    }
+
     /**
      * The optional reduce function, which aggregates together multiple rows.
      */
@@ -134,11 +196,10 @@ public final class View {
     @InterfaceAudience.Public
     public long getLastSequenceIndexed() {
         String sql = "SELECT lastSequence FROM views WHERE name=?";
-        String[] args = { name };
         Cursor cursor = null;
         long result = -1;
         try {
-            cursor = database.getDatabase().rawQuery(sql, args);
+            cursor = database.getStatementCache().query(sql, name);
             if (cursor.moveToNext()) {
                 result = cursor.getLong(0);
             }
@@ -182,6 +243,12 @@ public final class View {
      * multiple threads simultaneously. This won't be a problem if the code is "pure" as
      * described above, since it will as a consequence also be thread-safe.
      *
+     * If the view already has an index and the version changes, the new index is built in the
+     * background, into a shadow table, while queries go on using the old one (which stops
+     * being updated, so it's stale), reduced by the previous reduce function if this view
+     * object had one. Once the shadow index has caught up with the database it replaces the
+     * old one, in a single transaction, and live queries of the view run again. See
+     * isRebuildingIndex().
      */
     @InterfaceAudience.Public
     public boolean setMapReduce(Mapper mapBlock,
@@ -189,6 +256,7 @@ public final class View {
         assert (mapBlock != null);
         assert (version != null);
 
+        Reducer previousReduceBlock = this.reduceBlock;
         this.mapBlock = mapBlock;
         this.reduceBlock = reduceBlock;
 
@@ -206,7 +274,7 @@ public final class View {
         // Older Android doesnt have reliable insert or ignore, will to 2 step
         // FIXME review need for change to execSQL, manual call to changes()
 
-        String sql = "SELECT name, version FROM views WHERE name=?";
+        String sql = "SELECT name, version, lastSequence, shadow_version FROM views WHERE name=?";
         String[] args = { name };
         Cursor cursor = null;
 
@@ -218,8 +286,36 @@ public final class View {
                 insertValues.put("name", name);
                 insertValues.put("version", version);
                 storageEngine.insert("views", null, insertValues);
+                rebuildingIndex = false;
                 return true;
             }
+            String oldVersion = cursor.getString(1);
+            long lastSequence = cursor.getLong(2);
+            String shadowVersion = cursor.getString(3);
+            cursor.close();
+            cursor = null;
+
+            if (version.equals(oldVersion)) {
+                if (shadowVersion != null) {
+                    // Back to the version the index has, so the rebuild isn't needed:
+                    discardShadowIndex();
+                }
+                return false;
+            } else if (version.equals(shadowVersion)) {
+                // Resume the rebuild begun by an earlier launch:
+                rebuildingIndex = true;
+                database.getIndexScheduler().requestUpdate(this);
+                return true;
+            } else if (lastSequence > 0) {
+                if (!rebuildingIndex) {
+                    // Queries go on reducing the current index with its own version's reducer:
+                    indexReduceBlock = previousReduceBlock;
+                }
+                startShadowIndex(version);
+                return true;
+            } else if (shadowVersion != null) {
+                discardShadowIndex();
+            }
 
             ContentValues updateValues = new ContentValues();
             updateValues.put("version", version);
@@ -228,6 +324,9 @@ public final class View {
             String[] whereArgs = { name, version };
             int rowsAffected = storageEngine.update("views", updateValues,
                     "name=? AND version!=?", whereArgs);
+            if (rowsAffected > 0) {
+                database.invalidateQueryResults(name);
+            }
 
             return (rowsAffected > 0);
         } catch (SQLException e) {
@@ -256,12 +355,15 @@ public final class View {
             database.beginTransaction();
 
             String[] whereArgs = { Integer.toString(getViewId()) };
-            database.getDatabase().delete("maps", "view_id=?", whereArgs);
+            ensureMapTable();
+            database.getDatabase().execSQL("DELETE FROM " + getMapTableName());
+            database.getDatabase().delete("reduces", "view_id=?", whereArgs);
 
             ContentValues updateValues = new ContentValues();
             updateValues.put("lastSequence", 0);
             database.getDatabase().update("views", updateValues, "view_id=?",
                     whereArgs);
+            database.invalidateQueryResults(name);
 
             success = true;
         } catch (SQLException e) {
@@ -277,7 +379,169 @@ public final class View {
     @InterfaceAudience.Public
     public void delete() {
         database.deleteViewNamed(name);
+        database.invalidateQueryResults(name);
         viewId = 0;
+        mapTableCollation = null;
+        rebuildingIndex = false;
+        indexReduceBlock = null;
+    }
+
+    /**
+     * Whether a new version of the map function is being indexed in the background (see
+     * setMapReduce()). Meanwhile queries use the index of the previous version, which isn't
+     * updated.
+     */
+    @InterfaceAudience.Public
+    public boolean isRebuildingIndex() {
+        return rebuildingIndex;
+    }
+
+    /**
+     * The table a new version's index is built in, until it replaces the view's table.
+     */
+    /* package */ static String shadowTableName(int viewId) {
+        return mapTableName(viewId) + "_shadow";
+    }
+
+    /**
+     * Creates an empty shadow index for a new version of the map function, and asks the
+     * database's ViewIndexScheduler to build it.
+     */
+    private void startShadowIndex(String version) throws SQLException {
+        int viewId = getViewId();
+        String table = shadowTableName(viewId);
+        Log.v(Log.TAG_VIEW, "Rebuilding the index of view %s for version %s in the background", name, version);
+        boolean success = false;
+        database.beginTransaction();
+        try {
+            SQLiteStorageEngine storageEngine = database.getDatabase();
+            storageEngine.execSQL("DROP TABLE IF EXISTS " + table);
+            // The index names outlive the table's renaming, so make them unique:
+            String indexPrefix = table + "_" + Long.toString(System.currentTimeMillis(), 36);
+            for (String statement : createMapTableSQL(table, indexPrefix, collationName()).split(";")) {
+                storageEngine.execSQL(statement);
+            }
+            database.getStatementCache().executeUpdateDelete(
+                    "UPDATE views SET shadow_version=?, shadow_sequence=0 WHERE view_id=?", version, viewId);
+            success = true;
+        } finally {
+            database.endTransaction(success);
+        }
+        rebuildingIndex = true;
+        database.getIndexScheduler().requestUpdate(this);
+    }
+
+    private void discardShadowIndex() throws SQLException {
+        int viewId = getViewId();
+        database.getDatabase().execSQL("DROP TABLE IF EXISTS " + shadowTableName(viewId));
+        database.getStatementCache().executeUpdateDelete(
+                "UPDATE views SET shadow_version=NULL, shadow_sequence=0 WHERE view_id=?", viewId);
+        rebuildingIndex = false;
+        indexReduceBlock = null;
+    }
+
+    /**
+     * Indexes up to SHADOW_STEP_SEQUENCES more sequences into the shadow index, in one
+     * transaction. If that brings it up to date with the database, it then replaces the view's
+     * index in the same transaction, and the view's version becomes the new one. Returns true
+     * if the rebuild is finished.
+     */
+    /* package */ boolean updateShadowIndex() throws CouchbaseLiteException {
+        if (!rebuildingIndex) {
+            return true;
+        }
+        int viewId = getViewId();
+        String table = shadowTableName(viewId);
+        boolean finished = false;
+        boolean success = false;
+        Cursor cursor = null;
+        database.beginTransaction();
+        try {
+            StatementCache statements = database.getStatementCache();
+            long lastSequence = statements.longForQuery("SELECT shadow_sequence FROM views WHERE view_id=?", viewId);
+            long dbMaxSequence = database.getLastSequenceNumber();
+            long endSequence = Math.min(dbMaxSequence, lastSequence + SHADOW_STEP_SEQUENCES);
+
+            // Remove the rows of revisions replaced in this step, as updateIndexes() does:
+            int deleted = 0;
+            if (lastSequence > 0) {
+                deleted = statements.executeUpdateDelete(
+                        "DELETE FROM " + table + " WHERE sequence IN ("
+                                + "SELECT parent FROM revs WHERE sequence>? AND sequence<=? "
+                                + "AND parent>0 AND parent<=?)",
+                        lastSequence, endSequence, lastSequence);
+            }
+            ViewIndexer indexer = new ViewIndexer(database);
+            indexer.addView(this, table, lastSequence, null);
+            cursor = statements.query(
+                    "SELECT docs.doc_id, sequence, docid, revid, json, no_attachments FROM docs, revs "
+                            + "WHERE docs.winning_seq>? AND docs.winning_seq<=? AND docs.deleted=0 "
+                            + "AND revs.sequence = docs.winning_seq "
+                            + "ORDER BY docs.winning_seq", lastSequence, endSequence);
+            indexer.indexDocuments(cursor);
+            cursor.close();
+            cursor = null;
+            recordIndexStats(indexer.getRowsAdded(0), deleted + indexer.getRowsDeleted(0), indexer.getBytesWritten(0));
+
+            if (endSequence < dbMaxSequence) {
+                statements.executeUpdateDelete("UPDATE views SET shadow_sequence=? WHERE view_id=?",
+                        endSequence, viewId);
+                Log.v(Log.TAG_VIEW, "Shadow index of view %s is at sequence %d of %d", name, endSequence, dbMaxSequence);
+            } else {
+                SQLiteStorageEngine storageEngine = database.getDatabase();
+                String mapTable = mapTableName(viewId);
+                storageEngine.execSQL("DROP TABLE IF EXISTS " + mapTable);
+                storageEngine.execSQL("ALTER TABLE " + table + " RENAME TO " + mapTable);
+                statements.executeUpdateDelete("UPDATE views SET version=shadow_version, lastSequence=?, "
+                        + "collation=?, reducesequence=-1, shadow_version=NULL, shadow_sequence=0 WHERE view_id=?",
+                        dbMaxSequence, collationName(), viewId);
+                statements.executeUpdateDelete("DELETE FROM reduces WHERE view_id=?", viewId);
+                Log.v(Log.TAG_VIEW, "Shadow index of view %s replaced its index at sequence %d", name, dbMaxSequence);
+                finished = true;
+            }
+            success = true;
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException(e, new Status(Status.DB_ERROR));
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (success && finished) {
+                // Queries on other threads see the new table as soon as it's committed:
+                rebuildingIndex = false;
+                indexReduceBlock = null;
+            }
+            database.endTransaction(success);
+        }
+        if (finished) {
+            mapTableCollation = collationName();
+            database.invalidateQueryResults(name);
+            for (LiveQuery liveQuery : liveQueries) {
+                liveQuery.indexReplaced();
+            }
+        }
+        return finished;
+    }
+
+    /**
+     * The reduce function to query the view's index with: while a new version's index is being
+     * built, that of the version the current index was built with, if it's known.
+     */
+    private Reducer queryReducer() {
+        Reducer reducer = indexReduceBlock;
+        return (rebuildingIndex && reducer != null) ? reducer : reduceBlock;
+    }
+
+    /**
+     * Registers a running LiveQuery of this view, to be told when the view's index is replaced
+     * by a rebuilt one (which doesn't change any documents).
+     */
+    /* package */ void addLiveQuery(LiveQuery liveQuery) {
+        liveQueries.add(liveQuery);
+    }
+
+    /* package */ void removeLiveQuery(LiveQuery liveQuery) {
+        liveQueries.remove(liveQuery);
     }
 
     /**
@@ -295,10 +559,9 @@ public final class View {
     public int getViewId() {
         if (viewId < 0) {
             String sql = "SELECT view_id FROM views WHERE name=?";
-            String[] args = { name };
             Cursor cursor = null;
             try {
-                cursor = database.getDatabase().rawQuery(sql, args);
+                cursor = database.getStatementCache().query(sql, name);
                 if (cursor.moveToNext()) {
                     viewId = cursor.getInt(0);
                 } else {
@@ -349,9 +612,42 @@ public final class View {
      */
     @InterfaceAudience.Private
     public TDViewCollation getCollation() {
+        if (collation == null) {
+            // Not set on this instance: use the one the view's table was created with
+            TDViewCollation stored = storedCollation();
+            if (stored == null) {
+                return TDViewCollation.TDViewCollationUnicode;
+            }
+            collation = stored;
+        }
         return collation;
     }
 
+    /**
+     * The collation in views.collation, or null if the view or its table doesn't exist yet.
+     */
+    private TDViewCollation storedCollation() {
+        if (database == null || getViewId() <= 0) {
+            return null;
+        }
+        String collationName;
+        try {
+            collationName = database.getStatementCache().stringForQuery(
+                    "SELECT collation FROM views WHERE view_id=?", viewId);
+        } catch (SQLException e) {
+            Log.e(Log.TAG_VIEW, "Error getting collation of view " + name, e);
+            return null;
+        }
+        if (collationName == null) {
+            return null;
+        } else if (BINARY_KEYS_COLLATION.equals(collationName)) {
+            return TDViewCollation.TDViewCollationASCII;
+        } else if ("JSON_RAW".equals(collationName)) {
+            return TDViewCollation.TDViewCollationRaw;
+        }
+        return TDViewCollation.TDViewCollationUnicode;
+    }
+
     /**
      * @exclude
      */
@@ -360,20 +656,69 @@ public final class View {
         this.collation = collation;
     }
 
+    /**
+     * Number of index rows this view's map function has emitted since it was instantiated.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized long getTotalRowsEmitted() {
+        return totalRowsEmitted;
+    }
+
+    /**
+     * Number of obsolete rows removed from this view's index since it was instantiated.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized long getTotalRowsDeleted() {
+        return totalRowsDeleted;
+    }
+
+    /**
+     * Total length of the JSON keys and values written to this view's index since it was
+     * instantiated.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized long getTotalBytesIndexed() {
+        return totalBytesIndexed;
+    }
+
+    private synchronized void recordIndexStats(int rowsEmitted, int rowsDeleted, long bytesIndexed) {
+        totalRowsEmitted += rowsEmitted;
+        totalRowsDeleted += rowsDeleted;
+        totalBytesIndexed += bytesIndexed;
+    }
+
     /**
      * Updates the view's index (incrementally) if necessary.
      * @return 200 if updated, 304 if already up-to-date, else an error code
      * @exclude
      */
-    @SuppressWarnings("unchecked")
     @InterfaceAudience.Private
     public void updateIndex() throws CouchbaseLiteException {
-        Log.v(Log.TAG_VIEW, "Re-indexing view: %s", name);
-        assert (mapBlock != null);
+        List<View> views = new ArrayList<View>(1);
+        views.add(this);
+        updateIndexes(database, views);
+    }
 
-        if (getViewId() <= 0) {
-            String msg = String.format("getViewId() < 0");
-            throw new CouchbaseLiteException(msg, new Status(Status.NOT_FOUND));
+    /**
+     * Updates the indexes of several views of a database together. The revisions added since
+     * the least up-to-date of them was indexed are read and parsed only once, and passed to the
+     * map function of each view that hasn't indexed them yet. The views' new lastSequence values
+     * are all committed in the same transaction.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    /* package */ static void updateIndexes(Database database, List<View> views) throws CouchbaseLiteException {
+        for (View view : views) {
+            Log.v(Log.TAG_VIEW, "Re-indexing view: %s", view.name);
+            assert (view.mapBlock != null);
+
+            if (view.getViewId() <= 0) {
+                String msg = String.format("getViewId() < 0");
+                throw new CouchbaseLiteException(msg, new Status(Status.NOT_FOUND));
+            }
         }
 
         database.beginTransaction();
@@ -382,185 +727,116 @@ public final class View {
 
         try {
 
-            long lastSequence = getLastSequenceIndexed();
             long dbMaxSequence = database.getLastSequenceNumber();
-            if(lastSequence == dbMaxSequence) {
-                // nothing to do (eg,  kCBLStatusNotModified)
-                Log.v(Log.TAG_VIEW, "lastSequence (%s) == dbMaxSequence (%s), nothing to do",
-                        lastSequence, dbMaxSequence);
-                result.setCode(Status.NOT_MODIFIED);
-                return;
-            }
-
-            // First remove obsolete emitted results from the 'maps' table:
-            long sequence = lastSequence;
-            if (lastSequence < 0) {
-                String msg = String.format("lastSequence < 0 (%s)", lastSequence);
-                throw new CouchbaseLiteException(msg, new Status(Status.INTERNAL_SERVER_ERROR));
-            }
-
-            if (lastSequence == 0) {
-                // If the lastSequence has been reset to 0, make sure to remove
-                // any leftover rows:
-                String[] whereArgs = { Integer.toString(getViewId()) };
-                database.getDatabase().delete("maps", "view_id=?", whereArgs);
-            } else {
-                // Delete all obsolete map results (ones from since-replaced
-                // revisions):
-                String[] args = { Integer.toString(getViewId()),
-                        Long.toString(lastSequence),
-                        Long.toString(lastSequence) };
-                database.getDatabase().execSQL(
-                        "DELETE FROM maps WHERE view_id=? AND sequence IN ("
-                                + "SELECT parent FROM revs WHERE sequence>? "
-                                + "AND parent>0 AND parent<=?)", args);
-            }
-
-            int deleted = 0;
-            cursor = database.getDatabase().rawQuery("SELECT changes()", null);
-            cursor.moveToNext();
-            deleted = cursor.getInt(0);
-            cursor.close();
-
-            // This is the emit() block, which gets called from within the
-            // user-defined map() block
-            // that's called down below.
-            AbstractTouchMapEmitBlock emitBlock = new AbstractTouchMapEmitBlock() {
-
-                @Override
-                public void emit(Object key, Object value) {
-
-                    try {
-                        String valueJson;
-                        String keyJson = Manager.getObjectMapper().writeValueAsString(key);
-                        if (value==null) {
-                            valueJson = null;
-                        } else{
-                            valueJson = Manager.getObjectMapper().writeValueAsString(value);
-                        }
-                        //Log.v(Log.TAG_VIEW, "    emit(" + keyJson + ", "
-                        //        + valueJson + ")");
-
-                        ContentValues insertValues = new ContentValues();
-                        insertValues.put("view_id", getViewId());
-                        insertValues.put("sequence", sequence);
-                        insertValues.put("key", keyJson);
-                        insertValues.put("value", valueJson);
-                        database.getDatabase().insert("maps", null, insertValues);
-                    } catch (Exception e) {
-                        Log.e(Log.TAG_VIEW, "Error emitting", e);
-                        // find a better way to propagate this back
-                    }
+            final StatementCache statements = database.getStatementCache();
+            ViewIndexer indexer = new ViewIndexer(database);
+            List<View> viewsToIndex = new ArrayList<View>(views.size());
+            List<Integer> deletedCounts = new ArrayList<Integer>(views.size());
+            List<ReduceIndex> reduceIndexes = new ArrayList<ReduceIndex>(views.size());
+            List<Boolean> reduceIndexRebuilds = new ArrayList<Boolean>(views.size());
+            long minLastSequence = dbMaxSequence;
+
+            for (View view : views) {
+                if (view.rebuildingIndex) {
+                    // Until the new version's index is built, the old one is left as it is:
+                    database.getIndexScheduler().requestUpdate(view);
+                    continue;
                 }
-            };
-
-            // Now scan every revision added since the last time the view was
-            // indexed:
-            String[] selectArgs = { Long.toString(lastSequence) };
-
-            cursor = database.getDatabase().rawQuery(
-                    "SELECT revs.doc_id, sequence, docid, revid, json, no_attachments FROM revs, docs "
-                            + "WHERE sequence>? AND current!=0 AND deleted=0 "
-                            + "AND revs.doc_id = docs.doc_id "
-                            + "ORDER BY revs.doc_id, revid DESC", selectArgs);
-
-
-            boolean keepGoing = cursor.moveToNext();
-            while (keepGoing) {
-                long docID = cursor.getLong(0);
-
-                // Reconstitute the document as a dictionary:
-                sequence = cursor.getLong(1);
-                String docId = cursor.getString(2);
-                if(docId.startsWith("_design/")) {  // design docs don't get indexed!
-                    keepGoing = cursor.moveToNext();
+                // (Re)creating the view's table, if its collation changed, resets lastSequence:
+                view.ensureMapTable();
+                long lastSequence = view.getLastSequenceIndexed();
+                if(lastSequence == dbMaxSequence) {
+                    // nothing to do (eg,  kCBLStatusNotModified)
+                    Log.v(Log.TAG_VIEW, "lastSequence (%s) == dbMaxSequence (%s), nothing to do",
+                            lastSequence, dbMaxSequence);
                     continue;
                 }
-                String revId = cursor.getString(3);
-                byte[] json = cursor.getBlob(4);
 
-                boolean noAttachments = cursor.getInt(5) > 0;
+                // First remove obsolete emitted results from the view's table:
+                if (lastSequence < 0) {
+                    String msg = String.format("lastSequence < 0 (%s)", lastSequence);
+                    throw new CouchbaseLiteException(msg, new Status(Status.INTERNAL_SERVER_ERROR));
+                }
 
-                while ((keepGoing = cursor.moveToNext()) &&  cursor.getLong(0) == docID) {
-                    // Skip rows with the same doc_id -- these are losing conflicts.
+                // If the view keeps a reduce index, either note the blocks whose rows are about
+                // to change, or (if it's not up to date) rebuild it once the maps are updated:
+                ReduceIndex reduceIndex = null;
+                boolean rebuildReduceIndex = false;
+                if (view.reduceIndexEnabled && view.reduceBlock != null) {
+                    reduceIndex = new ReduceIndex(view);
+                    rebuildReduceIndex = (lastSequence == 0 || reduceIndex.getValidSequence() != lastSequence);
                 }
 
-                if (lastSequence > 0) {
-                    // Find conflicts with documents from previous indexings.
-                    String[] selectArgs2 = { Long.toString(docID), Long.toString(lastSequence) };
-
-                    Cursor cursor2 = null;
-                    try {
-                        cursor2 = database.getDatabase().rawQuery(
-                                "SELECT revid, sequence FROM revs "
-                                        + "WHERE doc_id=? AND sequence<=? AND current!=0 AND deleted=0 "
-                                        + "ORDER BY revID DESC "
-                                        + "LIMIT 1", selectArgs2);
-
-                        if (cursor2.moveToNext()) {
-                            String oldRevId = cursor2.getString(0);
-                            // This is the revision that used to be the 'winner'.
-                            // Remove its emitted rows:
-                            long oldSequence = cursor2.getLong(1);
-                            String[] args = {
-                                    Integer.toString(getViewId()),
-                                    Long.toString(oldSequence)
-                            };
-                            database.getDatabase().execSQL(
-                                    "DELETE FROM maps WHERE view_id=? AND sequence=?", args);
-                            if (RevisionInternal.CBLCompareRevIDs(oldRevId, revId) > 0) {
-                                // It still 'wins' the conflict, so it's the one that
-                                // should be mapped [again], not the current revision!
-                                revId = oldRevId;
-                                sequence = oldSequence;
-
-                                String[] selectArgs3 = { Long.toString(sequence) };
-                                json = Utils.byteArrayResultForQuery(database.getDatabase(), "SELECT json FROM revs WHERE sequence=?", selectArgs3);
-
-                            }
-                        }
-                    } finally {
-                        if (cursor2 != null) {
-                            cursor2.close();
-                        }
+                String table = view.getMapTableName();
+                int deleted = 0;
+                if (lastSequence == 0) {
+                    // If the lastSequence has been reset to 0, make sure to remove
+                    // any leftover rows:
+                    deleted = statements.executeUpdateDelete("DELETE FROM " + table);
+                } else {
+                    // Delete all obsolete map results (ones from since-replaced
+                    // revisions):
+                    if (reduceIndex != null && !rebuildReduceIndex) {
+                        reduceIndex.markRowsDirty("sequence IN (SELECT parent FROM revs WHERE sequence>? "
+                                + "AND parent>0 AND parent<=?)", lastSequence, lastSequence);
                     }
-
-
+                    deleted = statements.executeUpdateDelete(
+                            "DELETE FROM " + table + " WHERE sequence IN ("
+                                    + "SELECT parent FROM revs WHERE sequence>? "
+                                    + "AND parent>0 AND parent<=?)",
+                            lastSequence, lastSequence);
                 }
 
-                // Get the document properties, to pass to the map function:
-                EnumSet<TDContentOptions> contentOptions = EnumSet.noneOf(Database.TDContentOptions.class);
-                if (noAttachments)
-                    contentOptions.add(TDContentOptions.TDNoAttachments);
-                Map<String, Object> properties = database.documentPropertiesFromJSON(
-                        json,
-                        docId,
-                        revId,
-                        false,
-                        sequence,
-                        contentOptions
-                );
-                if (properties != null) {
-                    // Call the user-defined map() to emit new key/value
-                    // pairs from this revision:
-                    emitBlock.setSequence(sequence);
-                    mapBlock.map(properties, emitBlock);
-                }
+                indexer.addView(view, lastSequence, rebuildReduceIndex ? null : reduceIndex);
+                viewsToIndex.add(view);
+                deletedCounts.add(deleted);
+                reduceIndexes.add(reduceIndex);
+                reduceIndexRebuilds.add(rebuildReduceIndex);
+                minLastSequence = Math.min(minLastSequence, lastSequence);
+            }
 
+            if (viewsToIndex.isEmpty()) {
+                result.setCode(Status.NOT_MODIFIED);
+                return;
             }
 
+            // Now scan every document whose winning revision was added since the least
+            // up-to-date view was indexed. The docs table points straight at each doc's winner:
+            cursor = statements.query(
+                    "SELECT docs.doc_id, sequence, docid, revid, json, no_attachments FROM docs, revs "
+                            + "WHERE docs.winning_seq>? AND docs.deleted=0 "
+                            + "AND revs.sequence = docs.winning_seq "
+                            + "ORDER BY docs.winning_seq", minLastSequence);
+
+            // Run the map functions over them (in parallel, if they're thread-safe) and write
+            // the emitted rows:
+            indexer.indexDocuments(cursor);
+
             // Finally, record the last revision sequence number that was
             // indexed:
-            ContentValues updateValues = new ContentValues();
-            updateValues.put("lastSequence", dbMaxSequence);
-            String[] whereArgs = { Integer.toString(getViewId()) };
-            database.getDatabase().update("views", updateValues, "view_id=?",
-                    whereArgs);
+            for (int i = 0; i < viewsToIndex.size(); i++) {
+                View view = viewsToIndex.get(i);
+                statements.executeUpdateDelete("UPDATE views SET lastSequence=? WHERE view_id=?",
+                        dbMaxSequence, view.getViewId());
+
+                ReduceIndex reduceIndex = reduceIndexes.get(i);
+                if (reduceIndex != null) {
+                    if (reduceIndexRebuilds.get(i)) {
+                        reduceIndex.rebuild();
+                    } else {
+                        reduceIndex.update();
+                    }
+                    reduceIndex.setValidSequence(dbMaxSequence);
+                }
 
-            // FIXME actually count number added :)
-            Log.v(Log.TAG_VIEW, "Finished re-indexing view: %s "
-                    + " up to sequence %s"
-                    + " (deleted %s added ?)", name, dbMaxSequence, deleted);
+                int deleted = deletedCounts.get(i) + indexer.getRowsDeleted(i);
+                int added = indexer.getRowsAdded(i);
+                long bytes = indexer.getBytesWritten(i);
+                view.recordIndexStats(added, deleted, bytes);
+                Log.v(Log.TAG_VIEW, "Finished re-indexing view: %s "
+                        + " up to sequence %s"
+                        + " (deleted %s added %s, %s bytes)", view.name, dbMaxSequence, deleted, added, bytes);
+            }
             result.setCode(Status.OK);
 
         } catch (SQLException e) {
@@ -570,7 +846,9 @@ public final class View {
                 cursor.close();
             }
             if (!result.isSuccessful()) {
-                Log.w(Log.TAG_VIEW, "Failed to rebuild view %s.  Result code: %d", name, result.getCode());
+                for (View view : views) {
+                    Log.w(Log.TAG_VIEW, "Failed to rebuild view %s.  Result code: %d", view.name, result.getCode());
+                }
             }
             if(database != null) {
                 database.endTransaction(result.isSuccessful());
@@ -588,103 +866,383 @@ public final class View {
             options = new QueryOptions();
         }
 
-        // OPT: It would be faster to use separate tables for raw-or ascii-collated views so that
-        // they could be indexed with the right collation, instead of having to specify it here.
-        String collationStr = "";
-        if(collation == TDViewCollation.TDViewCollationASCII) {
-            collationStr += " COLLATE JSON_ASCII";
-        }
-        else if(collation == TDViewCollation.TDViewCollationRaw) {
-            collationStr += " COLLATE JSON_RAW";
-        }
-
-        String sql = "SELECT key, value, docid, revs.sequence";
+        // The view's table has its docids, and its keys are indexed with the view's collation,
+        // so an ordinary query is a scan of that index; only include_docs needs a join:
+        ensureMapTable();
+        String table = getMapTableName();
+        String sql = String.format("SELECT key, value, docid, %s.sequence", table);
         if (options.isIncludeDocs()) {
             sql = sql + ", revid, json";
+            sql = sql + String.format(" FROM %s, revs WHERE revs.sequence = %s.sequence", table, table);
+        } else {
+            sql = sql + String.format(" FROM %s WHERE 1", table);
         }
-        sql = sql + " FROM maps, revs, docs WHERE maps.view_id=?";
 
+        StringBuilder sqlBuilder = new StringBuilder(sql);
         List<String> argsList = new ArrayList<String>();
-        argsList.add(Integer.toString(getViewId()));
+        appendKeyRangeSQL(sqlBuilder, argsList, options, true);
 
-        if(options.getKeys() != null) {
-            sql += " AND key in (";
-            String item = "?";
-            for (Object key : options.getKeys()) {
-                sql += item;
-                item = ", ?";
-                argsList.add(toJSONString(key));
-            }
-            sql += ")";
-        }
-
-        String startKey = toJSONString(options.getStartKey());
-        String endKey = toJSONString(options.getEndKey());
-        String minKey = startKey;
-        String maxKey = endKey;
+        // startKeyDocId and endKeyDocId narrow down the rows of the first and last key:
+        String column = keyColumn();
+        boolean binaryKeys = usesBinaryKeys();
+        Object minKey = options.getStartKey();
+        Object maxKey = options.getEndKey();
         String minKeyDocId = options.getStartKeyDocId();
         String maxKeyDocId = options.getEndKeyDocId();
-
         boolean inclusiveMin = true;
         boolean inclusiveMax = options.isInclusiveEnd();
         if (options.isDescending()) {
-            String min = minKey;
-            minKey = maxKey;
-            maxKey = min;
+            minKey = options.getEndKey();
+            maxKey = options.getStartKey();
             inclusiveMin = inclusiveMax;
             inclusiveMax = true;
             minKeyDocId = options.getEndKeyDocId();
             maxKeyDocId = options.getStartKeyDocId();
         }
+        // (With binary keys these are plain byte comparisons; otherwise they call the JSON
+        // collator a 2nd time.)
+        if (minKey != null && minKeyDocId != null && inclusiveMin) {
+            sqlBuilder.append(" AND (").append(column).append(" > ");
+            appendKeySQL(sqlBuilder, argsList, minKey, binaryKeys);
+            sqlBuilder.append(" OR docid >= ?)");
+            argsList.add(minKeyDocId);
+        }
+        if (maxKey != null && maxKeyDocId != null && inclusiveMax) {
+            sqlBuilder.append(" AND (").append(column).append(" < ");
+            appendKeySQL(sqlBuilder, argsList, maxKey, binaryKeys);
+            sqlBuilder.append(" OR docid <= ?)");
+            argsList.add(maxKeyDocId);
+        }
 
-        if (minKey != null) {
-            if (inclusiveMin) {
-                sql += " AND key >= ?";
-            } else {
-                sql += " AND key > ?";
+        // A page token continues from the row it was made from, in (key, sequence) order; the
+        // rows at that same position that the last page already had are skipped with OFFSET.
+        // (The query's own skip only applies to the first page.)
+        PageToken pageToken = options.getPageToken();
+        int skip = options.getSkip();
+        if (pageToken != null) {
+            skip = 0;
+            String op = options.isDescending() ? " < " : " > ";
+            sqlBuilder.append(" AND (").append(column).append(op);
+            appendKeySQL(sqlBuilder, argsList, pageToken.getKey(), binaryKeys);
+            sqlBuilder.append(" OR (").append(column).append(" = ");
+            appendKeySQL(sqlBuilder, argsList, pageToken.getKey(), binaryKeys);
+            sqlBuilder.append(String.format(" AND %s.sequence %s= ?))", table, op.trim()));
+            argsList.add(Long.toString(pageToken.getSequence()));
+            skip += pageToken.getDuplicates();
+        }
+
+        // Order by sequence within a key too (it's in the index), so that pages are stable:
+        String direction = options.isDescending() ? " DESC" : "";
+        sqlBuilder.append(" ORDER BY ").append(column).append(direction);
+        sqlBuilder.append(String.format(", %s.sequence", table)).append(direction);
+        sql = sqlBuilder.toString();
+
+        sql = sql + " LIMIT ? OFFSET ?";
+        argsList.add(Integer.toString(options.getLimit()));
+        argsList.add(Integer.toString(skip));
+
+        Log.v(Log.TAG_VIEW, "Query %s: %s | args: %s", name, sql, argsList);
+
+        Cursor cursor = database.getDatabase().rawQuery(sql,
+                argsList.toArray(new String[argsList.size()]));
+        return cursor;
+    }
+
+    /**
+     * The name of the table holding this view's index rows.
+     */
+    /* package */ String getMapTableName() {
+        return mapTableName(getViewId());
+    }
+
+    /* package */ static String mapTableName(int viewId) {
+        return "maps_" + viewId;
+    }
+
+    /**
+     * The keys (as JSON) of the index rows emitted by a document's revisions, as of the
+     * index's lastSequence.
+     */
+    /* package */ List<byte[]> indexedKeysForDocument(String docId) throws SQLException {
+        List<byte[]> keys = new ArrayList<byte[]>();
+        Cursor cursor = null;
+        try {
+            cursor = database.getStatementCache().query(String.format(
+                    "SELECT key FROM %s WHERE sequence IN (SELECT sequence FROM revs " +
+                    "WHERE doc_id=(SELECT doc_id FROM docs WHERE docid=?))", getMapTableName()), docId);
+            while (cursor.moveToNext()) {
+                keys.add(cursor.getBlob(0));
             }
-            sql += collationStr;
-            argsList.add(minKey);
-            if (minKeyDocId != null && inclusiveMin) {
-                //OPT: This calls the JSON collator a 2nd time unnecessarily.
-                sql += String.format(" AND (key > ? %s OR docid >= ?)", collationStr);
-                argsList.add(minKey);
-                argsList.add(minKeyDocId);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
             }
         }
+        return keys;
+    }
+
+    /**
+     * The JsonCollator mode that orders keys the way this view's index does.
+     */
+    /* package */ JsonCollator.Mode collatorMode() {
+        switch (getCollation()) {
+            case TDViewCollationRaw:
+                return JsonCollator.Mode.RAW;
+            case TDViewCollationASCII:
+                return JsonCollator.Mode.ASCII;
+            default:
+                return JsonCollator.Mode.UNICODE;
+        }
+    }
 
-        if (maxKey != null) {
-            if (inclusiveMax) {
-                sql += " AND key <= ?";
-            } else {
-                sql += " AND key < ?";
-            }
-            sql += collationStr;
-            argsList.add(maxKey);
-            if (maxKeyDocId != null && inclusiveMax) {
-                sql += String.format(" AND (key < ? %s OR docid <= ?)", collationStr);
-                argsList.add(maxKey);
-                argsList.add(maxKeyDocId);
+    /**
+     * The collation of the view's table, as stored in views.collation. ASCII collation is done
+     * by memcmp of binary-encoded keys (see usesBinaryKeys()), hence "BINARY".
+     */
+    private String collationName() {
+        TDViewCollation collation = getCollation();
+        if(collation == TDViewCollation.TDViewCollationASCII) {
+            return BINARY_KEYS_COLLATION;
+        }
+        else if(collation == TDViewCollation.TDViewCollationRaw) {
+            return "JSON_RAW";
+        }
+        return "JSON";
+    }
+
+    /**
+     * Makes sure the view's index table exists and that its keys use the view's current
+     * collation, (re)creating it otherwise. Recreating it empties the index. A view whose
+     * collation hasn't been set uses the table's (see getCollation()), so it's never recreated.
+     */
+    /* package */ void ensureMapTable() throws SQLException {
+        String collationName = collationName();
+        int viewId = getViewId();
+        if (collationName.equals(mapTableCollation) || viewId <= 0) {
+            return;
+        }
+        StatementCache statements = database.getStatementCache();
+        if (!collationName.equals(statements.stringForQuery("SELECT collation FROM views WHERE view_id=?", viewId))) {
+            Log.v(Log.TAG_VIEW, "Creating index table of view %s with collation %s", name, collationName);
+            String table = mapTableName(viewId);
+            SQLiteStorageEngine storageEngine = database.getDatabase();
+            storageEngine.execSQL("DROP TABLE IF EXISTS " + table);
+            for (String statement : createMapTableSQL(viewId, collationName).split(";")) {
+                storageEngine.execSQL(statement);
             }
+            statements.executeUpdateDelete(
+                    "UPDATE views SET collation=?, lastSequence=0, reducesequence=-1 WHERE view_id=?",
+                    collationName, viewId);
+            statements.executeUpdateDelete("DELETE FROM reduces WHERE view_id=?", viewId);
+            database.invalidateQueryResults(name);
+        }
+        mapTableCollation = collationName;
+    }
+
+    /**
+     * SQL creating the table of a view's index rows (several statements, separated by ';').
+     * Each row has the docid of its revision, so queries don't need to join revs and docs,
+     * and the keys are indexed with the view's collation, so key ranges are index scans.
+     * With BINARY_KEYS_COLLATION the index is on sort_key, the CollatableKey encoding of the
+     * key, which SQLite compares with memcmp instead of calling back into the JSON collator;
+     * the key's JSON is still stored for the query results and reduce functions.
+     */
+    /* package */ static String createMapTableSQL(int viewId, String collationName) {
+        String table = mapTableName(viewId);
+        return createMapTableSQL(table, table, collationName);
+    }
+
+    private static String createMapTableSQL(String table, String indexPrefix, String collationName) {
+        if (BINARY_KEYS_COLLATION.equals(collationName)) {
+            return String.format("CREATE TABLE %s ( " +
+                    "    sequence INTEGER NOT NULL REFERENCES revs(sequence) ON DELETE CASCADE, " +
+                    "    key TEXT NOT NULL, " +
+                    "    sort_key BLOB NOT NULL, " +
+                    "    value TEXT, " +
+                    "    numeric_value REAL, " +
+                    "    docid TEXT NOT NULL); " +
+                    "CREATE INDEX %s_keys ON %s(sort_key, sequence); " +
+                    "CREATE INDEX %s_sequence ON %s(sequence)",
+                    table, indexPrefix, table, indexPrefix, table);
+        }
+        return String.format("CREATE TABLE %s ( " +
+                "    sequence INTEGER NOT NULL REFERENCES revs(sequence) ON DELETE CASCADE, " +
+                "    key TEXT NOT NULL COLLATE %s, " +
+                "    value TEXT, " +
+                "    numeric_value REAL, " +
+                "    docid TEXT NOT NULL); " +
+                "CREATE INDEX %s_keys ON %s(key, sequence); " +
+                "CREATE INDEX %s_sequence ON %s(sequence)",
+                table, collationName, indexPrefix, table, indexPrefix, table);
+    }
+
+    /**
+     * Whether the view's table stores its keys binary-encoded (see CollatableKey) in a sort_key
+     * column, which is compared bytewise. That's the case for ASCII collation, whose ordering
+     * (strings by code point) is exactly the byte order of the encoding.
+     */
+    /* package */ boolean usesBinaryKeys() {
+        return getCollation() == TDViewCollation.TDViewCollationASCII;
+    }
+
+    /**
+     * The column of the view's table to compare and sort keys by.
+     */
+    /* package */ String keyColumn() {
+        return usesBinaryKeys() ? "sort_key" : "key";
+    }
+
+    /**
+     * Appends a key to compare the view's table's keyColumn() with: a parameter bound to the
+     * key's JSON, or for binary keys a blob literal (rawQuery() can only bind strings).
+     */
+    /* package */ void appendKeySQL(StringBuilder sql, List<String> argsList, Object key, boolean binaryKey) {
+        if (!binaryKey) {
+            sql.append('?');
+            argsList.add(toJSONString(key));
+            return;
+        }
+        byte[] bytes = CollatableKey.encode(key);
+        sql.append("X'");
+        for (byte b : bytes) {
+            sql.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+        }
+        sql.append('\'');
+    }
+
+    /**
+     * The COLLATE clause to use when comparing or sorting this view's keys.
+     */
+    /* package */ String collationSQL() {
+        TDViewCollation collation = getCollation();
+        if(collation == TDViewCollation.TDViewCollationASCII) {
+            return " COLLATE JSON_ASCII";
         }
+        else if(collation == TDViewCollation.TDViewCollationRaw) {
+            return " COLLATE JSON_RAW";
+        }
+        return "";
+    }
 
-        sql = sql
-                + " AND revs.sequence = maps.sequence AND docs.doc_id = revs.doc_id ORDER BY key";
-        sql += collationStr;
+    /**
+     * Appends the conditions selecting the keys in range of the options (keys, startKey, endKey,
+     * descending, inclusiveEnd) to a query on the view's table, or if mapTable is false on
+     * another table with a 'key' column. Doesn't handle startKeyDocId or endKeyDocId.
+     */
+    /* package */ void appendKeyRangeSQL(StringBuilder sql, List<String> argsList, QueryOptions options, boolean mapTable) {
+        boolean binaryKeys = mapTable && usesBinaryKeys();
+        String column = binaryKeys ? "sort_key" : "key";
+        String collationStr = binaryKeys ? "" : collationSQL();
+        if (options.getKeys() != null) {
+            sql.append(" AND ").append(column).append(" in (");
+            String separator = "";
+            for (Object key : options.getKeys()) {
+                sql.append(separator);
+                appendKeySQL(sql, argsList, key, binaryKeys);
+                separator = ", ";
+            }
+            sql.append(")");
+        }
 
+        Object minKey = options.getStartKey();
+        Object maxKey = options.getEndKey();
+        boolean inclusiveMin = true;
+        boolean inclusiveMax = options.isInclusiveEnd();
         if (options.isDescending()) {
-            sql = sql + " DESC";
+            Object min = minKey;
+            minKey = maxKey;
+            maxKey = min;
+            inclusiveMin = inclusiveMax;
+            inclusiveMax = true;
+        }
+        if (minKey != null) {
+            sql.append(" AND ").append(column).append(inclusiveMin ? " >= " : " > ");
+            appendKeySQL(sql, argsList, minKey, binaryKeys);
+            sql.append(collationStr);
+        }
+        if (maxKey != null) {
+            sql.append(" AND ").append(column).append(inclusiveMax ? " <= " : " < ");
+            appendKeySQL(sql, argsList, maxKey, binaryKeys);
+            sql.append(collationStr);
         }
+    }
 
-        sql = sql + " LIMIT ? OFFSET ?";
-        argsList.add(Integer.toString(options.getLimit()));
-        argsList.add(Integer.toString(options.getSkip()));
+    /**
+     * Runs a reduced or grouped query of a view whose reduce function is built in, by having
+     * SQLite aggregate the numeric values of the rows (per key, if grouping); keys that group
+     * together at groupLevel are then merged. Returns null if the options select part of a
+     * key's rows (startKeyDocId, endKeyDocId) or page through the map rows (skip, limit),
+     * which only reducedQuery() supports.
+     */
+    private List<QueryRow> builtinReducedQuery(QueryOptions options, boolean group, int groupLevel, BuiltinReducer reducer) throws SQLException {
+        if (options.getStartKeyDocId() != null || options.getEndKeyDocId() != null
+                || options.getSkip() != 0 || options.getLimit() != Integer.MAX_VALUE) {
+            return null;
+        }
 
-        Log.v(Log.TAG_VIEW, "Query %s: %s | args: %s", name, sql, argsList);
+        ensureMapTable();
+        StringBuilder sql = new StringBuilder("SELECT key, COUNT(*), COUNT(numeric_value), TOTAL(numeric_value), "
+                + "MIN(numeric_value), MAX(numeric_value), TOTAL(numeric_value * numeric_value) FROM ");
+        sql.append(getMapTableName()).append(" WHERE 1");
+        List<String> argsList = new ArrayList<String>();
+        appendKeyRangeSQL(sql, argsList, options, true);
+        if (group) {
+            sql.append(" GROUP BY ").append(keyColumn());
+            sql.append(" ORDER BY ").append(keyColumn());
+            if (options.isDescending()) {
+                sql.append(" DESC");
+            }
+        }
 
-        Cursor cursor = database.getDatabase().rawQuery(sql,
-                argsList.toArray(new String[argsList.size()]));
-        return cursor;
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        BuiltinReducer.Aggregate aggregate = null;
+        Object lastKey = null;
+        Cursor cursor = null;
+        try {
+            cursor = database.getDatabase().rawQuery(sql.toString(), argsList.toArray(new String[argsList.size()]));
+            while (cursor.moveToNext()) {
+                long rowCount = cursor.getLong(1);
+                if (rowCount == 0) {
+                    continue;  // an ungrouped aggregate of no rows
+                }
+                if (group) {
+                    Object keyObject = new JsonDocument(cursor.getBlob(0)).jsonObject();
+                    if (!groupTogether(keyObject, lastKey, groupLevel)) {
+                        if (aggregate != null) {
+                            // This key starts a new group, so record the last one:
+                            addBuiltinReducedRow(rows, groupKey(lastKey, groupLevel), reducer, aggregate);
+                        }
+                        aggregate = null;
+                        lastKey = keyObject;
+                    }
+                }
+                if (aggregate == null) {
+                    aggregate = new BuiltinReducer.Aggregate();
+                }
+                aggregate.add(rowCount, cursor.getLong(2), doubleForColumn(cursor, 3),
+                        doubleForColumn(cursor, 4), doubleForColumn(cursor, 5), doubleForColumn(cursor, 6));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (aggregate != null) {
+            // Finish the last group (or the entire range, if no grouping):
+            addBuiltinReducedRow(rows, group ? groupKey(lastKey, groupLevel) : null, reducer, aggregate);
+        }
+        return rows;
+    }
+
+    private void addBuiltinReducedRow(List<QueryRow> rows, Object key, BuiltinReducer reducer, BuiltinReducer.Aggregate aggregate) {
+        QueryRow row = new QueryRow(null, 0, key, reducer.valueOf(aggregate), null);
+        row.setDatabase(database);
+        rows.add(row);
+    }
+
+    private static double doubleForColumn(Cursor cursor, int columnIndex) {
+        String value = cursor.getString(columnIndex);
+        return (value != null) ? Double.parseDouble(value) : 0.0;
     }
 
     /**
@@ -742,16 +1300,16 @@ public final class View {
             return null;
         }
 
-        String[] selectArgs = { Integer.toString(getViewId()) };
         Cursor cursor = null;
         List<Map<String, Object>> result = null;
 
         try {
+            ensureMapTable();
             cursor = database
                     .getDatabase()
                     .rawQuery(
-                            "SELECT sequence, key, value FROM maps WHERE view_id=? ORDER BY key",
-                            selectArgs);
+                            String.format("SELECT sequence, key, value FROM %s ORDER BY %s", getMapTableName(), keyColumn()),
+                            null);
 
             cursor.moveToNext();
             result = new ArrayList<Map<String, Object>>();
@@ -781,10 +1339,11 @@ public final class View {
     @InterfaceAudience.Private
     List<QueryRow> reducedQuery(Cursor cursor, boolean group, int groupLevel) throws CouchbaseLiteException {
 
+        Reducer reduceBlock = queryReducer();
         List<Object> keysToReduce = null;
         List<Object> valuesToReduce = null;
         Object lastKey = null;
-        if(getReduce() != null) {
+        if(reduceBlock != null) {
             keysToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
             valuesToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
         }
@@ -849,55 +1408,49 @@ public final class View {
         List<QueryRow> rows = new ArrayList<QueryRow>();
 
         try {
-            cursor = resultSetWithOptions(options);
             int groupLevel = options.getGroupLevel();
             boolean group = options.isGroup() || (groupLevel > 0);
             boolean reduce = options.isReduce() || group;
+            Reducer reduceBlock = queryReducer();
 
             if (reduce && (reduceBlock == null) && !group) {
                 Log.w(Log.TAG_VIEW, "Cannot use reduce option in view %s which has no reduce block defined", name);
                 throw new CouchbaseLiteException(new Status(Status.BAD_REQUEST));
             }
 
+            if ((reduce || group) && options.getPageToken() != null) {
+                Log.w(Log.TAG_VIEW, "Page tokens can't be used in a reduced or grouped query of view %s", name);
+                throw new CouchbaseLiteException(new Status(Status.BAD_REQUEST));
+            }
+
             if (reduce || group) {
-                // Reduced or grouped query:
-                rows = reducedQuery(cursor, group, groupLevel);
+                // Reduced or grouped query. Let SQLite do a built-in reduce, or else use the
+                // stored partial reductions, if possible (not while they may be the previous
+                // version's):
+                List<QueryRow> indexedRows = null;
+                if (reduceBlock instanceof BuiltinReducer) {
+                    indexedRows = builtinReducedQuery(options, group, groupLevel, (BuiltinReducer) reduceBlock);
+                }
+                if (indexedRows == null && reduceIndexEnabled && reduceBlock != null && !rebuildingIndex) {
+                    indexedRows = new ReduceIndex(this).query(options, group, groupLevel);
+                }
+                if (indexedRows != null) {
+                    rows = indexedRows;
+                } else {
+                    cursor = resultSetWithOptions(options);
+                    rows = reducedQuery(cursor, group, groupLevel);
+                }
             } else {
                 // regular query
-                cursor.moveToNext();
-                while (!cursor.isAfterLast()) {
-                    JsonDocument keyDoc = new JsonDocument(cursor.getBlob(0));
-                    JsonDocument valueDoc = new JsonDocument(cursor.getBlob(1));
-                    String docId = cursor.getString(2);
-                    int sequence =  Integer.valueOf(cursor.getString(3));
-                    Map<String, Object> docContents = null;
-                    if (options.isIncludeDocs()) {
-                        Object valueObject = valueDoc.jsonObject();
-                        // http://wiki.apache.org/couchdb/Introduction_to_CouchDB_views#Linked_documents
-                        if (valueObject instanceof Map && ((Map) valueObject).containsKey("_id")) {
-                            String linkedDocId = (String) ((Map) valueObject).get("_id");
-                            RevisionInternal linkedDoc = database.getDocumentWithIDAndRev(
-                                    linkedDocId,
-                                    null,
-                                    EnumSet.noneOf(TDContentOptions.class)
-                            );
-                            docContents = linkedDoc.getProperties();
-                        } else {
-                            docContents = database.documentPropertiesFromJSON(
-                                    cursor.getBlob(5),
-                                    docId,
-                                    cursor.getString(4),
-                                    false,
-                                    cursor.getLong(3),
-                                    options.getContentOptions()
-                            );
-                        }
-                    }
-                    QueryRow row = new QueryRow(docId, sequence, keyDoc.jsonObject(), valueDoc.jsonObject(), docContents);
+                cursor = resultSetWithOptions(options);
+                List<String> linkedDocIds = options.isIncludeDocs() ? new ArrayList<String>() : null;
+                while (cursor.moveToNext()) {
+                    QueryRow row = rowFromCursor(cursor, options, linkedDocIds);
                     row.setDatabase(database);
                     rows.add(row);
-                    cursor.moveToNext();
-
+                }
+                if (linkedDocIds != null) {
+                    loadLinkedDocuments(rows, linkedDocIds);
                 }
             }
 
@@ -916,6 +1469,103 @@ public final class View {
     }
 
 
+    /**
+     * Makes a QueryRow from the current row of a resultSetWithOptions() cursor. The key and
+     * value are parsed when first used, unless include_docs needs to look at the value.
+     *
+     * With include_docs, a row whose value links to another document (has an "_id") gets that
+     * document's properties. If linkedDocIds isn't null, the linked docID (or null, if there's
+     * none) is added to it instead, for loadLinkedDocuments() to fetch them all at once.
+     */
+    private QueryRow rowFromCursor(Cursor cursor, QueryOptions options, List<String> linkedDocIds) {
+        String docId = cursor.getString(2);
+        long sequence = cursor.getLong(3);
+        Map<String, Object> docContents = null;
+        if (options.isIncludeDocs()) {
+            Object valueObject = new JsonDocument(cursor.getBlob(1)).jsonObject();
+            String linkedDocId = null;
+            // http://wiki.apache.org/couchdb/Introduction_to_CouchDB_views#Linked_documents
+            if (valueObject instanceof Map && ((Map) valueObject).get("_id") instanceof String) {
+                linkedDocId = (String) ((Map) valueObject).get("_id");
+            }
+            if (linkedDocIds != null) {
+                linkedDocIds.add(linkedDocId);
+            }
+            if (linkedDocId != null) {
+                if (linkedDocIds == null) {
+                    RevisionInternal linkedDoc = database.getDocumentWithIDAndRev(
+                            linkedDocId,
+                            null,
+                            EnumSet.noneOf(TDContentOptions.class)
+                    );
+                    docContents = (linkedDoc != null) ? linkedDoc.getProperties() : null;
+                }
+            } else {
+                docContents = database.documentPropertiesFromJSON(
+                        cursor.getBlob(5),
+                        docId,
+                        cursor.getString(4),
+                        false,
+                        sequence,
+                        options.getContentOptions()
+                );
+            }
+        }
+        return QueryRow.fromJSON(docId, sequence, cursor.getBlob(0), cursor.getBlob(1), docContents);
+    }
+
+    /**
+     * Fills in the properties of the documents that include_docs rows link to, given each
+     * row's linked docID (or null) as collected by rowFromCursor(). The documents are read
+     * with a few set-based queries rather than one query per row.
+     */
+    private void loadLinkedDocuments(List<QueryRow> rows, List<String> linkedDocIds) throws SQLException {
+        Set<String> docIds = new HashSet<String>();
+        for (String linkedDocId : linkedDocIds) {
+            if (linkedDocId != null) {
+                docIds.add(linkedDocId);
+            }
+        }
+        if (docIds.isEmpty()) {
+            return;
+        }
+        Map<String, Map<String, Object>> docs = database.getDocumentsPropertiesWithIDs(docIds);
+        for (int i = 0; i < rows.size(); i++) {
+            String linkedDocId = linkedDocIds.get(i);
+            if (linkedDocId != null) {
+                rows.get(i).setDocumentProperties(docs.get(linkedDocId));
+            }
+        }
+        Log.v(Log.TAG_VIEW, "Query %s: loaded %d of %d linked documents", name, docs.size(), docIds.size());
+    }
+
+    /**
+     * Queries the view like queryWithOptions(), but returns a streaming QueryEnumerator that
+     * reads the rows from the cursor as they're enumerated. Returns null if the query reduces
+     * or groups, whose rows can't be streamed. Does NOT first update the index.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public QueryEnumerator streamWithOptions(final QueryOptions options, long sequenceNumber) throws CouchbaseLiteException {
+        boolean group = options.isGroup() || (options.getGroupLevel() > 0);
+        if (options.isReduce() || group) {
+            return null;
+        }
+        try {
+            Cursor cursor = resultSetWithOptions(options);
+            return new QueryEnumerator(database, cursor, new QueryEnumerator.RowReader() {
+                @Override
+                public QueryRow readRow(Cursor cursor) {
+                    return rowFromCursor(cursor, options, null);
+                }
+            }, sequenceNumber);
+        } catch (SQLException e) {
+            String errMsg = String.format("Error querying view: %s", this);
+            Log.e(Log.TAG_VIEW, errMsg, e);
+            throw new CouchbaseLiteException(errMsg, e, new Status(Status.DB_ERROR));
+        }
+    }
+
     /**
      * Utility function to use in reduce blocks. Totals an array of Numbers.
      * @exclude
@@ -0,0 +1,272 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updates a Database's view indexes in the background, on a single thread of its own (index
+ * updates are write transactions, so more threads wouldn't make them go faster). Get it from
+ * Database.getIndexScheduler(). It also builds the shadow index of a view whose map function
+ * has a new version (see View.setMapReduce()), a step at a time, queueing the next step after
+ * each one so other views' updates can run in between.
+ *
+ * Requests are single-flight per view: while an update of a view is waiting to run, further
+ * requests for that view join it rather than queueing another, since it will index everything
+ * committed before it starts. A request made while an update is already running queues one
+ * more, as the running one may have started before the latest changes.
+ *
+ * Views can also be kept warm: they're then updated shortly after each change to the database,
+ * so that queries find their indexes (nearly) up to date and don't have to wait for them.
+ */
+public final class ViewIndexScheduler implements Database.ChangeListener {
+
+    /**
+     * How long after a database change the warm views are updated, so that changes made close
+     * together are indexed together.
+     */
+    /* package */ static final long WARM_DELAY_MS = 100;
+
+    private final Database database;
+    private final ScheduledExecutorService executor;
+    private final Map<String, UpdateTask> queuedUpdates = new HashMap<String, UpdateTask>();
+    private final Set<String> warmViews = new LinkedHashSet<String>();
+    private boolean warmUpdateScheduled;
+    private boolean observing;
+    private long updatesRun;
+
+    /* package */ ViewIndexScheduler(final Database database) {
+        this.database = database;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CBLIndexer-" + database.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Asks for a view's index to be brought up to date in the background. Returns a Future
+     * whose value is the view's lastSequenceIndexed after the update; it's shared with any
+     * other request that joined the same update.
+     */
+    @InterfaceAudience.Public
+    public synchronized Future<Long> requestUpdate(View view) {
+        String name = view.getName();
+        UpdateTask task = queuedUpdates.get(name);
+        if (task != null) {
+            Log.v(Log.TAG_VIEW, "%s: joining the queued update of view %s", this, name);
+            return task.future;
+        }
+        task = new UpdateTask(view);
+        if (executor.isShutdown()) {
+            // The database is closing
+            task.future.cancel(false);
+            return task.future;
+        }
+        queuedUpdates.put(name, task);
+        executor.execute(task.future);
+        return task.future;
+    }
+
+    /**
+     * Keeps a view's index updated shortly after every change to the database, or stops
+     * doing so.
+     */
+    @InterfaceAudience.Public
+    public synchronized void setKeptWarm(View view, boolean keepWarm) {
+        if (keepWarm) {
+            warmViews.add(view.getName());
+            if (!observing) {
+                observing = true;
+                database.addChangeListener(this);
+            }
+            requestUpdate(view);
+        } else {
+            warmViews.remove(view.getName());
+            if (observing && warmViews.isEmpty()) {
+                observing = false;
+                database.removeChangeListener(this);
+            }
+        }
+    }
+
+    @InterfaceAudience.Public
+    public synchronized boolean isKeptWarm(View view) {
+        return warmViews.contains(view.getName());
+    }
+
+    /**
+     * The number of view updates waiting to run (not counting the one running, if any).
+     */
+    @InterfaceAudience.Public
+    public synchronized int getQueueDepth() {
+        return queuedUpdates.size();
+    }
+
+    /**
+     * The number of view updates run so far.
+     */
+    @InterfaceAudience.Public
+    public synchronized long getUpdatesRun() {
+        return updatesRun;
+    }
+
+    /**
+     * How many sequences a view's index is behind the database.
+     */
+    @InterfaceAudience.Public
+    public long getLag(View view) {
+        return Math.max(0, database.getLastSequenceNumber() - view.getLastSequenceIndexed());
+    }
+
+    /**
+     * The largest lag (see getLag()) of the views kept warm, or 0 if there are none.
+     */
+    @InterfaceAudience.Public
+    public long getMaxWarmLag() {
+        long maxLag = 0;
+        for (View view : getWarmViews()) {
+            maxLag = Math.max(maxLag, getLag(view));
+        }
+        return maxLag;
+    }
+
+    /**
+     * @exclude
+     */
+    @Override
+    @InterfaceAudience.Private
+    public void changed(Database.ChangeEvent event) {
+        synchronized (this) {
+            if (warmUpdateScheduled || warmViews.isEmpty()) {
+                return;
+            }
+            warmUpdateScheduled = true;
+        }
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ViewIndexScheduler.this) {
+                    warmUpdateScheduled = false;
+                }
+                for (View view : getWarmViews()) {
+                    requestUpdate(view);
+                }
+            }
+        }, WARM_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops observing the database and drops the queued updates, letting the one running (if
+     * any) finish. Called when the database closes.
+     */
+    /* package */ void shutdown() {
+        synchronized (this) {
+            if (observing) {
+                observing = false;
+                database.removeChangeListener(this);
+            }
+            warmViews.clear();
+            for (UpdateTask task : queuedUpdates.values()) {
+                task.future.cancel(false);
+            }
+            queuedUpdates.clear();
+            executor.shutdown();
+        }
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<View> getWarmViews() {
+        List<String> names;
+        synchronized (this) {
+            names = new ArrayList<String>(warmViews);
+        }
+        List<View> views = new ArrayList<View>(names.size());
+        if (database.isOpen()) {
+            for (String name : names) {
+                View view = database.getExistingView(name);
+                if (view != null) {
+                    views.add(view);
+                }
+            }
+        }
+        return views;
+    }
+
+    @Override
+    public String toString() {
+        return "ViewIndexScheduler[" + database.getName() + "]";
+    }
+
+    private class UpdateTask implements Callable<Long> {
+
+        private final View view;
+        private final FutureTask<Long> future;
+
+        UpdateTask(View view) {
+            this.view = view;
+            this.future = new FutureTask<Long>(this);
+        }
+
+        @Override
+        public Long call() throws Exception {
+            synchronized (ViewIndexScheduler.this) {
+                // From now on, requests queue a new update rather than joining this one:
+                if (queuedUpdates.get(view.getName()) == this) {
+                    queuedUpdates.remove(view.getName());
+                }
+                updatesRun++;
+            }
+            if (!database.isOpen()) {
+                throw new IllegalStateException("The database has been closed.");
+            }
+            try {
+                if (view.isRebuildingIndex()) {
+                    if (!view.updateShadowIndex()) {
+                        requestUpdate(view);
+                    }
+                } else {
+                    view.updateIndex();
+                }
+            } catch (CouchbaseLiteException e) {
+                Log.e(Database.TAG, "Error updating index of view " + view.getName() + " in the background", e);
+                throw e;
+            }
+            return view.getLastSequenceIndexed();
+        }
+    }
+}
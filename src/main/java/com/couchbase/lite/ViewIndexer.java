@@ -0,0 +1,545 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.Database.TDContentOptions;
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.StatementCache;
+import com.couchbase.lite.support.CollatableKey;
+import com.couchbase.lite.util.Log;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.type.TypeReference;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs one or more views' map functions over the documents returned by View.updateIndexes()'s
+ * query and writes the emitted rows to the views' tables. Each document is parsed once and
+ * passed to the map function of every view that hasn't indexed it yet.
+ *
+ * Documents are processed in batches, as a pipeline: the calling thread (which owns the
+ * transaction) reads a batch of rows from the cursor, along with any attachment metadata that
+ * needs the database; a pool of workers parses the JSON and calls the map function, buffering
+ * the emitted rows; and the calling thread then writes each batch's rows in sequence order.
+ * If any view's mapper isn't marked thread-safe (see View.setMapperThreadSafe()), the same
+ * steps run serially on the calling thread, so the results are identical either way.
+ *
+ * Emitted rows are collected in a columnar buffer that's reused from batch to batch, their
+ * keys and values are encoded by a per-thread reused JSON generator, and they're inserted
+ * INSERT_CHUNK_SIZE rows per statement execution. Views with binary keys (see
+ * View.usesBinaryKeys()) also get each key's CollatableKey encoding, computed by the worker.
+ * @exclude
+ */
+@InterfaceAudience.Private
+class ViewIndexer {
+
+    /* package */ static final int BATCH_SIZE = 100;
+
+    // Rows inserted by each execution of the multi-row INSERT. Up to six parameters per row,
+    // kept well below SQLite's limits on host parameters (999) and compound SELECT terms (500).
+    private static final int INSERT_CHUNK_SIZE = 50;
+
+
+    private static final ThreadLocal<JsonEncoder> jsonEncoders = new ThreadLocal<JsonEncoder>() {
+        @Override
+        protected JsonEncoder initialValue() {
+            return new JsonEncoder();
+        }
+    };
+
+    private static ExecutorService mapExecutor;
+
+    private final Database database;
+    private final StatementCache statements;
+    private final List<IndexTarget> targets = new ArrayList<IndexTarget>();
+    private final LinkedList<MapBatch> freeBatches = new LinkedList<MapBatch>();
+    private int numWorkers;
+
+    /**
+     * A view being updated, and the sequence it had been indexed up to.
+     */
+    private static class IndexTarget {
+        final int viewId;
+        final Mapper mapper;
+        final long lastSequence;
+        final ReduceIndex reduceIndex;
+        final boolean binaryKeys;
+        final int insertColumns;
+        final String insertRowSQL;
+        final String insertChunkSQL;
+        final Object[] chunkArgs;
+        final String deleteOldLeavesSQL;
+        int rowsAdded;
+        int rowsDeleted;
+        long bytesWritten;
+
+        IndexTarget(View view, String table, long lastSequence, ReduceIndex reduceIndex) {
+            this.viewId = view.getViewId();
+            this.mapper = view.getMap();
+            this.lastSequence = lastSequence;
+            this.reduceIndex = reduceIndex;
+            this.binaryKeys = view.usesBinaryKeys();
+            this.insertColumns = binaryKeys ? 6 : 5;
+            this.insertRowSQL = buildInsertChunkSQL(table, binaryKeys, 1);
+            this.insertChunkSQL = buildInsertChunkSQL(table, binaryKeys, INSERT_CHUNK_SIZE);
+            this.chunkArgs = new Object[insertColumns * INSERT_CHUNK_SIZE];
+            this.deleteOldLeavesSQL = "DELETE FROM " + table + " WHERE sequence IN ("
+                    + "SELECT sequence FROM revs WHERE doc_id=? AND sequence<=? AND current!=0)";
+        }
+    }
+
+    /**
+     * One document to map: the columns read from the cursor, plus the extra properties
+     * (_id, _rev, _attachments...) that have to be looked up on the transaction's thread.
+     */
+    private static class MapInput {
+        long docNumericID;
+        long sequence;
+        String docID;
+        String revID;
+        byte[] json;
+        Map<String, Object> extra;
+    }
+
+    /**
+     * The rows emitted while mapping a batch, stored column by column so that the arrays can be
+     * reused by the next batch instead of allocating an object per row.
+     */
+    private static class EmitBuffer {
+        int size;
+        int[] viewIds = new int[BATCH_SIZE];
+        long[] sequences = new long[BATCH_SIZE];
+        String[] keys = new String[BATCH_SIZE];
+        byte[][] sortKeys = new byte[BATCH_SIZE][];
+        String[] values = new String[BATCH_SIZE];
+        Double[] numericValues = new Double[BATCH_SIZE];
+        String[] docIDs = new String[BATCH_SIZE];
+
+        void add(int viewId, long sequence, String key, byte[] sortKey, String value, Double numericValue, String docID) {
+            if (size == viewIds.length) {
+                int capacity = 2 * size;
+                viewIds = Arrays.copyOf(viewIds, capacity);
+                sequences = Arrays.copyOf(sequences, capacity);
+                keys = Arrays.copyOf(keys, capacity);
+                sortKeys = Arrays.copyOf(sortKeys, capacity);
+                values = Arrays.copyOf(values, capacity);
+                numericValues = Arrays.copyOf(numericValues, capacity);
+                docIDs = Arrays.copyOf(docIDs, capacity);
+            }
+            viewIds[size] = viewId;
+            sequences[size] = sequence;
+            keys[size] = key;
+            sortKeys[size] = sortKey;
+            values[size] = value;
+            numericValues[size] = numericValue;
+            docIDs[size] = docID;
+            size++;
+        }
+
+        void clear() {
+            Arrays.fill(keys, 0, size, null);
+            Arrays.fill(sortKeys, 0, size, null);
+            Arrays.fill(values, 0, size, null);
+            Arrays.fill(numericValues, 0, size, null);
+            Arrays.fill(docIDs, 0, size, null);
+            size = 0;
+        }
+    }
+
+    private static class MapBatch {
+        final List<MapInput> inputs = new ArrayList<MapInput>(BATCH_SIZE);
+        final EmitBuffer rows = new EmitBuffer();
+
+        void clear() {
+            inputs.clear();
+            rows.clear();
+        }
+    }
+
+    /**
+     * Encodes keys and values as JSON strings with a single generator, rather than setting up a
+     * new generator and writer for every value as ObjectMapper.writeValueAsString() does.
+     * Not thread-safe; there's one per thread.
+     */
+    private static class JsonEncoder {
+        private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+        private StringWriter writer;
+        private JsonGenerator generator;
+
+        String encode(Object object) throws IOException {
+            if (generator == null) {
+                writer = new StringWriter(256);
+                generator = Manager.getObjectMapper().getJsonFactory().createJsonGenerator(writer);
+            }
+            StringBuffer buffer = writer.getBuffer();
+            buffer.setLength(0);
+            try {
+                Manager.getObjectMapper().writeValue(generator, object);
+                generator.flush();
+            } catch (IOException e) {
+                // The generator may be in a bad state; start over with a new one next time
+                generator = null;
+                throw e;
+            }
+            // The generator separates consecutive root-level values with a space:
+            int start = (buffer.length() > 0 && buffer.charAt(0) == ' ') ? 1 : 0;
+            String json = buffer.substring(start);
+            if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+                generator = null;  // don't hang on to the buffer of an unusually large value
+            }
+            return json;
+        }
+    }
+
+    /**
+     * Buffers the rows emitted by a map function, tagged with the view and sequence they're for.
+     * Doesn't touch the database, so it can run on any thread.
+     */
+    private static class BufferingEmitBlock extends AbstractTouchMapEmitBlock {
+        private final EmitBuffer rows;
+        private final JsonEncoder encoder = jsonEncoders.get();
+        private int viewId;
+        private boolean binaryKeys;
+        private String docID;
+
+        BufferingEmitBlock(EmitBuffer rows) {
+            this.rows = rows;
+        }
+
+        void setViewId(int viewId, boolean binaryKeys) {
+            this.viewId = viewId;
+            this.binaryKeys = binaryKeys;
+        }
+
+        void setDocID(String docID) {
+            this.docID = docID;
+        }
+
+        @Override
+        public void emit(Object key, Object value) {
+            try {
+                String keyJson = encoder.encode(key);
+                byte[] sortKey = binaryKeys ? encodeSortKey(key, keyJson) : null;
+                String valueJson = null;
+                if (value != null) {
+                    valueJson = encoder.encode(value);
+                }
+                // Numbers are also stored as such, for the built-in reducers to aggregate:
+                Double numericValue = (value instanceof Number) ? ((Number) value).doubleValue() : null;
+                rows.add(viewId, sequence, keyJson, sortKey, valueJson, numericValue, docID);
+            } catch (Exception e) {
+                Log.e(Log.TAG_VIEW, "Error emitting", e);
+                // find a better way to propagate this back
+            }
+        }
+    }
+
+    /**
+     * The binary sort key of an emitted key. Keys that aren't plain JSON types (beans, say) are
+     * encoded from their JSON instead.
+     */
+    private static byte[] encodeSortKey(Object key, String keyJson) throws IOException {
+        try {
+            return CollatableKey.encode(key);
+        } catch (IllegalArgumentException e) {
+            return CollatableKey.encode(Manager.getObjectMapper().readValue(keyJson, Object.class));
+        }
+    }
+
+    /* package */ ViewIndexer(Database database) {
+        this.database = database;
+        this.statements = database.getStatementCache();
+        this.numWorkers = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Adds a view to update, which has been indexed up to 'lastSequence'. Documents whose
+     * winning revision is at or before that sequence won't be passed to its map function.
+     * If reduceIndex isn't null, it's told about every row added to or deleted from the view.
+     */
+    /* package */ void addView(View view, long lastSequence, ReduceIndex reduceIndex) {
+        addView(view, view.getMapTableName(), lastSequence, reduceIndex);
+    }
+
+    /**
+     * Adds a view whose rows go to another table than its own, such as its shadow index.
+     */
+    /* package */ void addView(View view, String table, long lastSequence, ReduceIndex reduceIndex) {
+        targets.add(new IndexTarget(view, table, lastSequence, reduceIndex));
+        if (!view.isMapperThreadSafe()) {
+            numWorkers = 1;
+        }
+    }
+
+    /** Number of rows inserted into the index of the i'th view added. */
+    /* package */ int getRowsAdded(int i) {
+        return targets.get(i).rowsAdded;
+    }
+
+    /** Number of rows of the i'th view's index deleted because their doc had a new winner. */
+    /* package */ int getRowsDeleted(int i) {
+        return targets.get(i).rowsDeleted;
+    }
+
+    /** Total length of the JSON keys and values written to the i'th view's index. */
+    /* package */ long getBytesWritten(int i) {
+        return targets.get(i).bytesWritten;
+    }
+
+    /**
+     * Maps every document from the cursor, whose columns are (doc_id, sequence, docid, revid,
+     * json, no_attachments), and writes the emitted rows.
+     */
+    /* package */ void indexDocuments(Cursor cursor) throws SQLException {
+        if (numWorkers <= 1) {
+            MapBatch batch;
+            while ((batch = readBatch(cursor)) != null) {
+                map(batch);
+                write(batch);
+            }
+            return;
+        }
+
+        // Keep a couple of batches per worker in flight, and write them in the order read:
+        ExecutorService executor = getMapExecutor();
+        LinkedList<MapBatch> batches = new LinkedList<MapBatch>();
+        LinkedList<Future<MapBatch>> futures = new LinkedList<Future<MapBatch>>();
+        try {
+            MapBatch batch;
+            while ((batch = readBatch(cursor)) != null) {
+                final MapBatch toMap = batch;
+                batches.add(batch);
+                futures.add(executor.submit(new Callable<MapBatch>() {
+                    @Override
+                    public MapBatch call() {
+                        map(toMap);
+                        return toMap;
+                    }
+                }));
+                if (futures.size() >= 2 * numWorkers) {
+                    waitFor(futures.removeFirst());
+                    write(batches.removeFirst());
+                }
+            }
+            while (!futures.isEmpty()) {
+                waitFor(futures.removeFirst());
+                write(batches.removeFirst());
+            }
+        } finally {
+            for (Future<MapBatch> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private MapBatch readBatch(Cursor cursor) {
+        MapBatch batch = freeBatches.isEmpty() ? new MapBatch() : freeBatches.removeFirst();
+        while (batch.inputs.size() < BATCH_SIZE && cursor.moveToNext()) {
+            String docID = cursor.getString(2);
+            if (docID.startsWith("_design/")) {  // design docs don't get indexed!
+                continue;
+            }
+            MapInput input = new MapInput();
+            input.docNumericID = cursor.getLong(0);
+            input.sequence = cursor.getLong(1);
+            input.docID = docID;
+            input.revID = cursor.getString(3);
+            input.json = cursor.getBlob(4);
+
+            EnumSet<TDContentOptions> contentOptions = EnumSet.noneOf(Database.TDContentOptions.class);
+            if (cursor.getInt(5) > 0) {
+                contentOptions.add(TDContentOptions.TDNoAttachments);
+            }
+            RevisionInternal rev = new RevisionInternal(input.docID, input.revID, false, database);
+            rev.setSequence(input.sequence);
+            input.extra = database.extraPropertiesForRevision(rev, contentOptions);
+            batch.inputs.add(input);
+        }
+        if (batch.inputs.isEmpty()) {
+            freeBatches.add(batch);
+            return null;
+        }
+        return batch;
+    }
+
+    /**
+     * Parses each document and calls the map functions of the views that haven't indexed it
+     * yet, buffering the emitted rows. Doesn't touch the database, so it can run on any thread.
+     */
+    private void map(MapBatch batch) {
+        BufferingEmitBlock emitBlock = new BufferingEmitBlock(batch.rows);
+        for (MapInput input : batch.inputs) {
+            Map<String, Object> properties = input.extra;
+            if (input.json != null) {
+                try {
+                    properties = Manager.getObjectMapper().readValue(input.json,
+                            new TypeReference<Map<String, Object>>() {});
+                    properties.putAll(input.extra);
+                } catch (Exception e) {
+                    Log.e(Database.TAG, "Error serializing properties to JSON", e);
+                    properties = null;
+                }
+            }
+            input.json = null;
+            if (properties == null) {
+                continue;
+            }
+            // Call the user-defined map() of each view to emit new key/value pairs from this
+            // revision. They all see the same properties, so map functions mustn't modify them.
+            emitBlock.setSequence(input.sequence);
+            emitBlock.setDocID(input.docID);
+            for (IndexTarget target : targets) {
+                if (input.sequence > target.lastSequence) {
+                    emitBlock.setViewId(target.viewId, target.binaryKeys);
+                    target.mapper.map(properties, emitBlock);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a mapped batch: removes the rows of each doc's older leaves (a conflict that has
+     * now lost may have been the winner last time), then inserts the new rows. The batch is
+     * then recycled.
+     */
+    private void write(MapBatch batch) throws SQLException {
+        for (IndexTarget target : targets) {
+            if (target.lastSequence <= 0) {
+                continue;
+            }
+            List<Object[]> deleteArgs = new ArrayList<Object[]>(batch.inputs.size());
+            for (MapInput input : batch.inputs) {
+                if (input.sequence > target.lastSequence) {
+                    deleteArgs.add(new Object[] { input.docNumericID, target.lastSequence });
+                    if (target.reduceIndex != null) {
+                        target.reduceIndex.markRowsDirty(
+                                "sequence IN (SELECT sequence FROM revs WHERE doc_id=? AND sequence<=? AND current!=0)",
+                                input.docNumericID, target.lastSequence);
+                    }
+                }
+            }
+            target.rowsDeleted += statements.executeBatch(target.deleteOldLeavesSQL, deleteArgs);
+        }
+
+        // Insert each view's rows into its table, INSERT_CHUNK_SIZE at a time:
+        EmitBuffer rows = batch.rows;
+        for (IndexTarget target : targets) {
+            Object[] chunkArgs = target.chunkArgs;
+            int inChunk = 0;
+            for (int i = 0; i < rows.size; i++) {
+                if (rows.viewIds[i] != target.viewId) {
+                    continue;
+                }
+                int column = target.insertColumns * inChunk;
+                chunkArgs[column++] = rows.sequences[i];
+                chunkArgs[column++] = rows.keys[i];
+                if (target.binaryKeys) {
+                    chunkArgs[column++] = rows.sortKeys[i];
+                }
+                chunkArgs[column++] = rows.values[i];
+                chunkArgs[column++] = rows.numericValues[i];
+                chunkArgs[column] = rows.docIDs[i];
+                if (++inChunk == INSERT_CHUNK_SIZE) {
+                    statements.execute(target.insertChunkSQL, chunkArgs);
+                    inChunk = 0;
+                }
+
+                if (target.reduceIndex != null) {
+                    target.reduceIndex.markDirty(rows.keys[i], rows.sequences[i]);
+                }
+                target.rowsAdded++;
+                target.bytesWritten += rows.keys[i].length() + (rows.values[i] != null ? rows.values[i].length() : 0);
+            }
+            if (inChunk > 0) {
+                List<Object[]> rowArgs = new ArrayList<Object[]>(inChunk);
+                for (int j = 0; j < inChunk; j++) {
+                    rowArgs.add(Arrays.copyOfRange(chunkArgs, target.insertColumns * j, target.insertColumns * (j + 1)));
+                }
+                statements.executeBatch(target.insertRowSQL, rowArgs);
+            }
+            Arrays.fill(chunkArgs, null);
+        }
+
+        batch.clear();
+        freeBatches.add(batch);
+    }
+
+    /**
+     * Builds an INSERT of 'rows' rows into a view's table. It's a compound SELECT rather than a
+     * multi-row VALUES clause, which older SQLite versions don't support.
+     */
+    private static String buildInsertChunkSQL(String table, boolean binaryKeys, int rows) {
+        StringBuilder sql = new StringBuilder("INSERT INTO " + table);
+        sql.append(binaryKeys ? " (sequence, key, sort_key, value, numeric_value, docid) "
+                : " (sequence, key, value, numeric_value, docid) ");
+        String params = binaryKeys ? "?, ?, ?, ?, ?, ?" : "?, ?, ?, ?, ?";
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "SELECT " : " UNION ALL SELECT ").append(params);
+        }
+        return sql.toString();
+    }
+
+    private static void waitFor(Future<MapBatch> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // Rethrow whatever the map function threw, as the serial path would have:
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static synchronized ExecutorService getMapExecutor() {
+        if (mapExecutor == null) {
+            mapExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private int count;
+
+                @Override
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CBLViewMapper-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mapExecutor;
+    }
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.internal;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.RevisionList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In-memory copy of one document's revision tree: the sequence, parent, revID and flags of each
+ * of its rows in the 'revs' table (but no bodies). The Database keeps recently used trees
+ * cached so that the history lookups made while updating a document don't each hit SQLite.
+ *
+ * Nodes are kept in parallel arrays, in ascending sequence order.
+ * @exclude
+ */
+@InterfaceAudience.Private
+public class RevTree {
+
+    private static final byte FLAG_DELETED = 1;
+    private static final byte FLAG_CURRENT = 2;
+    private static final byte FLAG_MISSING = 4;     // json is null (compacted or phantom)
+
+    private int count;
+    private long[] sequences;
+    private long[] parents;
+    private String[] revIDs;
+    private byte[] flags;
+
+    public RevTree() {
+        this(4);
+    }
+
+    public RevTree(int capacity) {
+        capacity = Math.max(capacity, 1);
+        sequences = new long[capacity];
+        parents = new long[capacity];
+        revIDs = new String[capacity];
+        flags = new byte[capacity];
+    }
+
+    /**
+     * Adds a node. Nodes are normally added in increasing sequence order, as they are inserted.
+     * Adding a sequence that's already in the tree does nothing.
+     */
+    public synchronized void add(long sequence, long parent, String revID, boolean deleted, boolean current, boolean missing) {
+        if (count > 0 && sequence <= sequences[count - 1] && indexOfSequence(sequence) >= 0) {
+            return;
+        }
+        if (count == sequences.length) {
+            int capacity = count * 2;
+            long[] newSequences = new long[capacity];
+            long[] newParents = new long[capacity];
+            String[] newRevIDs = new String[capacity];
+            byte[] newFlags = new byte[capacity];
+            System.arraycopy(sequences, 0, newSequences, 0, count);
+            System.arraycopy(parents, 0, newParents, 0, count);
+            System.arraycopy(revIDs, 0, newRevIDs, 0, count);
+            System.arraycopy(flags, 0, newFlags, 0, count);
+            sequences = newSequences;
+            parents = newParents;
+            revIDs = newRevIDs;
+            flags = newFlags;
+        }
+        int i = count;
+        while (i > 0 && sequences[i - 1] > sequence) {
+            sequences[i] = sequences[i - 1];
+            parents[i] = parents[i - 1];
+            revIDs[i] = revIDs[i - 1];
+            flags[i] = flags[i - 1];
+            i--;
+        }
+        sequences[i] = sequence;
+        parents[i] = parent;
+        revIDs[i] = revID;
+        flags[i] = (byte) ((deleted ? FLAG_DELETED : 0) | (current ? FLAG_CURRENT : 0) | (missing ? FLAG_MISSING : 0));
+        count++;
+    }
+
+    /**
+     * Sets or clears the 'current' flag of the node with the given sequence.
+     * Returns false if there is no such node or the flag already had that value.
+     */
+    public synchronized boolean setCurrent(long sequence, boolean current) {
+        int i = indexOfSequence(sequence);
+        if (i < 0 || isCurrent(i) == current) {
+            return false;
+        }
+        if (current) {
+            flags[i] |= FLAG_CURRENT;
+        } else {
+            flags[i] &= ~FLAG_CURRENT;
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Returns the sequence of the given revision, or 0 if it's not in the tree (or isn't
+     * current, when onlyCurrent is set).
+     */
+    public synchronized long getSequence(String revID, boolean onlyCurrent) {
+        int i = indexOfRevID(revID);
+        if (i < 0 || (onlyCurrent && !isCurrent(i))) {
+            return 0;
+        }
+        return sequences[i];
+    }
+
+    /**
+     * Returns the winning revision ID, or null if there are no revisions: the highest current
+     * non-deleted revision, else the highest deletion. Adds true to outIsDeleted if the winner
+     * is a deletion, and to outIsConflict if there is more than one live leaf.
+     */
+    public synchronized String getWinningRevID(List<Boolean> outIsDeleted, List<Boolean> outIsConflict) {
+        int winner = -1;
+        int liveLeaves = 0;
+        for (int i = 0; i < count; i++) {
+            if (!isCurrent(i)) {
+                continue;
+            }
+            if (!isDeleted(i)) {
+                liveLeaves++;
+            }
+            if (winner < 0 || beats(i, winner)) {
+                winner = i;
+            }
+        }
+        if (winner < 0) {
+            return null;
+        }
+        if (isDeleted(winner)) {
+            outIsDeleted.add(true);
+        } else if (liveLeaves > 1) {
+            outIsConflict.add(true);
+        }
+        return revIDs[winner];
+    }
+
+    /**
+     * Returns the IDs of the current revisions other than the one with the highest revID.
+     */
+    public synchronized List<String> getConflictingRevIDs() {
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            if (isCurrent(i)) {
+                result.add(revIDs[i]);
+            }
+        }
+        Collections.sort(result, Collections.reverseOrder(REVID_COMPARATOR));
+        if (!result.isEmpty()) {
+            result.remove(0);
+        }
+        return result;
+    }
+
+    /**
+     * Returns all revisions (or just the current ones), newest sequence first.
+     */
+    public synchronized RevisionList getAllRevisions(String docID, boolean onlyCurrent, Database database) {
+        RevisionList result = new RevisionList();
+        for (int i = count - 1; i >= 0; i--) {
+            if (!onlyCurrent || isCurrent(i)) {
+                result.add(makeRevision(i, docID, database));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the given revision and its ancestors, newest first, or an empty list if it's not
+     * in the tree.
+     */
+    public synchronized List<RevisionInternal> getHistory(String docID, String revID, Database database) {
+        List<RevisionInternal> result = new ArrayList<RevisionInternal>();
+        int i = indexOfRevID(revID);
+        while (i >= 0) {
+            RevisionInternal rev = makeRevision(i, docID, database);
+            rev.setMissing(isMissing(i));
+            result.add(rev);
+            if (parents[i] == 0) {
+                break;
+            }
+            i = indexOfSequence(parents[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the newest revision with a generation lower than the given one that still has a
+     * body and isn't a deletion, or null.
+     */
+    public synchronized RevisionInternal getPossibleAncestor(String docID, int generation, Database database) {
+        String limit = generation + "-";
+        for (int i = count - 1; i >= 0; i--) {
+            if (!isDeleted(i) && !isMissing(i) && RevisionInternal.CBLCollateRevIDs(revIDs[i], limit) < 0) {
+                return makeRevision(i, docID, database);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the highest of the given revision IDs that is in the tree and is no higher than
+     * revID, or null.
+     */
+    public synchronized String findCommonAncestor(String revID, List<String> candidateRevIDs) {
+        Set<String> candidates = new HashSet<String>(candidateRevIDs);
+        String result = null;
+        for (int i = 0; i < count; i++) {
+            String candidate = revIDs[i];
+            if (candidates.contains(candidate) && RevisionInternal.CBLCollateRevIDs(candidate, revID) <= 0
+                    && (result == null || RevisionInternal.CBLCollateRevIDs(candidate, result) > 0)) {
+                result = candidate;
+            }
+        }
+        return result;
+    }
+
+    private static final Comparator<String> REVID_COMPARATOR = new Comparator<String>() {
+        public int compare(String revID1, String revID2) {
+            return RevisionInternal.CBLCollateRevIDs(revID1, revID2);
+        }
+    };
+
+    // Same ordering as "ORDER BY deleted asc, revid desc"
+    private boolean beats(int i, int j) {
+        if (isDeleted(i) != isDeleted(j)) {
+            return !isDeleted(i);
+        }
+        return RevisionInternal.CBLCollateRevIDs(revIDs[i], revIDs[j]) > 0;
+    }
+
+    private RevisionInternal makeRevision(int i, String docID, Database database) {
+        RevisionInternal rev = new RevisionInternal(docID, revIDs[i], isDeleted(i), database);
+        rev.setSequence(sequences[i]);
+        return rev;
+    }
+
+    private boolean isDeleted(int i) {
+        return (flags[i] & FLAG_DELETED) != 0;
+    }
+
+    private boolean isCurrent(int i) {
+        return (flags[i] & FLAG_CURRENT) != 0;
+    }
+
+    private boolean isMissing(int i) {
+        return (flags[i] & FLAG_MISSING) != 0;
+    }
+
+    private int indexOfSequence(long sequence) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (sequences[mid] < sequence) {
+                low = mid + 1;
+            } else if (sequences[mid] > sequence) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // Searches newest first, since recent revisions are the ones usually asked about
+    private int indexOfRevID(String revID) {
+        for (int i = count - 1; i >= 0; i--) {
+            if (revIDs[i].equals(revID)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -696,8 +696,10 @@ public final class Puller extends Replication implements ChangeTrackerClient {
         db.beginTransaction();
         boolean success = false;
         try {
+            List<RevisionInternal> revsToInsert = new ArrayList<RevisionInternal>(downloads.size());
+            List<Long> fakeSequences = new ArrayList<Long>(downloads.size());
+            List<List<String>> histories = new ArrayList<List<String>>(downloads.size());
             for (RevisionInternal rev : downloads) {
-                long fakeSequence = rev.getSequence();
                 List<String> history = db.parseCouchDBRevisionHistory(rev.getProperties());
                 if (history.isEmpty() && rev.getGeneration() > 1) {
                     Log.w(Log.TAG_SYNC, "%s: Missing revision history in response for: %s", this, rev);
@@ -707,29 +709,36 @@ public final class Puller extends Replication implements ChangeTrackerClient {
                 }
 
                 Log.v(Log.TAG_SYNC, "%s: inserting %s %s", this, rev.getDocId(), history);
+                revsToInsert.add(rev);
+                fakeSequences.add(rev.getSequence());
+                histories.add(history);
+            }
 
-                // Insert the revision
-                try {
-                    db.forceInsert(rev, history, remote);
-                } catch (CouchbaseLiteException e) {
-                    if (e.getCBLStatus().getCode() == Status.FORBIDDEN) {
-                        Log.i(Log.TAG_SYNC, "%s: Remote rev failed validation: %s", this, rev);
-                    } else {
-                        Log.w(Log.TAG_SYNC, "%s: failed to write %s: status=%s", this, rev, e.getCBLStatus().getCode());
-                        revisionFailed();
-                        setError(new HttpResponseException(e.getCBLStatus().getCode(), null));
-                        continue;
-                    }
+            // Insert the revisions
+            List<Status> statuses = db.forceInsertBatch(revsToInsert, histories, remote);
+
+            for (int i = 0; i < revsToInsert.size(); i++) {
+                RevisionInternal rev = revsToInsert.get(i);
+                Status status = statuses.get(i);
+                if (status.getCode() == Status.FORBIDDEN) {
+                    Log.i(Log.TAG_SYNC, "%s: Remote rev failed validation: %s", this, rev);
+                } else if (!status.isSuccessful()) {
+                    Log.w(Log.TAG_SYNC, "%s: failed to write %s: status=%s", this, rev, status.getCode());
+                    revisionFailed();
+                    setError(new HttpResponseException(status.getCode(), null));
+                    continue;
                 }
 
                 // Mark this revision's fake sequence as processed:
-                pendingSequences.removeSequence(fakeSequence);
-
+                pendingSequences.removeSequence(fakeSequences.get(i));
             }
 
             Log.v(Log.TAG_SYNC, "%s: finished inserting %d revisions", this, downloads.size());
             success = true;
 
+        } catch (CouchbaseLiteException e) {
+            Log.e(Log.TAG_SYNC, this + ": Exception inserting revisions", e);
+            setError(e);
         } catch (SQLException e) {
             Log.e(Log.TAG_SYNC, this + ": Exception inserting revisions", e);
         } finally {
@@ -2,6 +2,7 @@ package com.couchbase.lite.replicator;
 
 import com.couchbase.lite.BlobKey;
 import com.couchbase.lite.BlobStore;
+import com.couchbase.lite.ChangesIterator;
 import com.couchbase.lite.ChangesOptions;
 import com.couchbase.lite.CouchbaseLiteException;
 import com.couchbase.lite.Database;
@@ -12,6 +13,7 @@ import com.couchbase.lite.RevisionList;
 import com.couchbase.lite.Status;
 import com.couchbase.lite.internal.RevisionInternal;
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.storage.SQLException;
 import com.couchbase.lite.support.RemoteRequestCompletionBlock;
 import com.couchbase.lite.support.HttpClientFactory;
 import com.couchbase.lite.util.Log;
@@ -210,9 +212,35 @@ public final class Pusher extends Replication implements Database.ChangeListener
         }
         ChangesOptions options = new ChangesOptions();
         options.setIncludeConflicts(true);
-        RevisionList changes = db.changesSince(lastSequenceLong, options, filter);
-        if(changes.size() > 0) {
-            batcher.queueObjects(changes);
+        boolean queued = false;
+        ChangesIterator changes = null;
+        try {
+            changes = db.getChanges(lastSequenceLong, options, filter);
+            // Feed the batcher a chunk at a time rather than loading the whole backlog first:
+            RevisionList chunk = new RevisionList();
+            while (changes.hasNext()) {
+                chunk.add(changes.next());
+                if (chunk.size() >= INBOX_CAPACITY) {
+                    batcher.queueObjects(chunk);
+                    queued = true;
+                    chunk = new RevisionList();
+                }
+            }
+            if (chunk.size() > 0) {
+                batcher.queueObjects(chunk);
+                queued = true;
+            }
+        } catch (SQLException e) {
+            Log.e(Log.TAG_SYNC, this + ": Error reading changes to push", e);
+            setError(e);
+            stop();
+            return;
+        } finally {
+            if (changes != null) {
+                changes.close();
+            }
+        }
+        if (queued) {
             batcher.flush();
         }
 
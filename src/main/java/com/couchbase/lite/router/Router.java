@@ -224,9 +224,32 @@ public class Router implements Database.ChangeListener {
 
         }
 
+        String pageToken = getQuery("page_token");
+        if (pageToken != null) {
+            try {
+                options.setPageToken(PageToken.decode(pageToken));
+            } catch (IllegalArgumentException e) {
+                Log.w(Log.TAG_ROUTER, "Invalid page_token: %s", pageToken);
+                return false;
+            }
+        }
+
         return true;
     }
 
+    /**
+     * Adds "next_page_token" to a query's response if its rows are a full page (as many as the
+     * limit), to pass as "page_token" to get the next page.
+     */
+    private static void addNextPageToken(Map<String, Object> responseBody, List<QueryRow> rows, QueryOptions options) {
+        if (rows != null && options.getLimit() != Integer.MAX_VALUE && rows.size() >= options.getLimit()) {
+            PageToken token = PageToken.afterRows(rows, options.getPageToken());
+            if (token != null) {
+                responseBody.put("next_page_token", token.encode());
+            }
+        }
+    }
+
     public String getMultipartRequestType() {
         String accept = connection.getRequestProperty("Accept");
 
@@ -734,8 +757,9 @@ public class Router implements Database.ChangeListener {
     /**
      * This is a hack to deal with the fact that there is currently no custom
      * serializer for QueryRow.  Instead, just convert everything to generic Maps.
+     * Returns the QueryRows that were replaced.
      */
-    private void convertCBLQueryRowsToMaps(Map<String,Object> allDocsResult) {
+    private List<QueryRow> convertCBLQueryRowsToMaps(Map<String,Object> allDocsResult) {
         List<Map<String, Object>> rowsAsMaps = new ArrayList<Map<String, Object>>();
         List<QueryRow> rows = (List<QueryRow>) allDocsResult.get("rows");
         if (rows != null) {
@@ -744,6 +768,7 @@ public class Router implements Database.ChangeListener {
             }
         }
         allDocsResult.put("rows", rowsAsMaps);
+        return rows;
     }
 
     public Status do_POST_Database(Database _db, String _docID, String _attachmentName) {
@@ -764,10 +789,11 @@ public class Router implements Database.ChangeListener {
             return new Status(Status.BAD_REQUEST);
         }
         Map<String,Object> result = db.getAllDocs(options);
-        convertCBLQueryRowsToMaps(result);
         if(result == null) {
             return new Status(Status.INTERNAL_SERVER_ERROR);
         }
+        List<QueryRow> rows = convertCBLQueryRowsToMaps(result);
+        addNextPageToken(result, rows, options);
         connection.setResponseBody(new Body(result));
         return new Status(Status.OK);
     }
@@ -788,11 +814,11 @@ public class Router implements Database.ChangeListener {
 
         Map<String, Object> result = null;
         result = db.getAllDocs(options);
-        convertCBLQueryRowsToMaps(result);
-
         if (result == null) {
             return new Status(Status.INTERNAL_SERVER_ERROR);
         }
+        List<QueryRow> rows = convertCBLQueryRowsToMaps(result);
+        addNextPageToken(result, rows, options);
         connection.setResponseBody(new Body(result));
         return new Status(Status.OK);
     }
@@ -889,6 +915,28 @@ public class Router implements Database.ChangeListener {
         db.beginTransaction();
         List<Map<String,Object>> results = new ArrayList<Map<String,Object>>();
         try {
+            // Regular (non-local) edits are saved together in one batch up front:
+            List<RevisionInternal> batchedRevs = null;
+            List<Status> batchedStatuses = null;
+            if (!noNewEdits) {
+                List<RevisionInternal> revsToPut = new ArrayList<RevisionInternal>();
+                List<String> prevRevIDs = new ArrayList<String>();
+                for (Map<String, Object> doc : docs) {
+                    String docID = (String) doc.get("_id");
+                    if (docID != null && docID.startsWith("_local")) {
+                        continue;
+                    }
+                    boolean deleting = Boolean.TRUE.equals(doc.get("_deleted"));
+                    RevisionInternal rev = new RevisionInternal(docID, null, deleting, db);
+                    rev.setBody(new Body(doc));
+                    revsToPut.add(rev);
+                    prevRevIDs.add((String) doc.get("_rev"));
+                }
+                batchedStatuses = new ArrayList<Status>(revsToPut.size());
+                batchedRevs = db.putRevisions(revsToPut, prevRevIDs, allOrNothing, batchedStatuses);
+            }
+
+            int batchIndex = 0;
             for (Map<String, Object> doc : docs) {
                 String docID = (String) doc.get("_id");
                 RevisionInternal rev = null;
@@ -902,10 +950,17 @@ public class Router implements Database.ChangeListener {
                         List<String> history = Database.parseCouchDBRevisionHistory(doc);
                         db.forceInsert(rev, history, null);
                     }
-                } else {
+                } else if (docID != null && docID.startsWith("_local")) {
                     Status outStatus = new Status();
                     rev = update(db, docID, docBody, false, allOrNothing, outStatus);
                     status.setCode(outStatus.getCode());
+                } else {
+                    rev = batchedRevs.get(batchIndex);
+                    status = batchedStatuses.get(batchIndex);
+                    batchIndex++;
+                    if (rev != null) {
+                        docID = rev.getDocId();
+                    }
                 }
                 Map<String, Object> result = null;
                 if(status.isSuccessful()) {
@@ -1104,21 +1159,24 @@ public class Router implements Database.ChangeListener {
     }
 
     public Map<String, Object> responseBodyForChangesWithConflicts(List<RevisionInternal> changes, long since) {
-        // Assumes the changes are grouped by docID so that conflicts will be adjacent.
+        // Collect each doc's revisions into one entry, which gets the doc's latest sequence:
         List<Map<String,Object>> entries = new ArrayList<Map<String, Object>>();
-        String lastDocID = null;
-        Map<String, Object> lastEntry = null;
+        Map<String, Map<String, Object>> entriesByDocID = new HashMap<String, Map<String, Object>>();
         for (RevisionInternal rev : changes) {
             String docID = rev.getDocId();
-            if(docID.equals(lastDocID)) {
+            Map<String, Object> entry = entriesByDocID.get(docID);
+            if(entry != null) {
                 Map<String,Object> changesDict = new HashMap<String, Object>();
                 changesDict.put("rev", rev.getRevId());
-                List<Map<String,Object>> inchanges = (List<Map<String,Object>>)lastEntry.get("changes");
+                List<Map<String,Object>> inchanges = (List<Map<String,Object>>)entry.get("changes");
                 inchanges.add(changesDict);
+                if(rev.getSequence() > (Long) entry.get("seq")) {
+                    entry.put("seq", rev.getSequence());
+                }
             } else {
-                lastEntry = changesDictForRevision(rev);
-                entries.add(lastEntry);
-                lastDocID = docID;
+                entry = changesDictForRevision(rev);
+                entries.add(entry);
+                entriesByDocID.put(docID, entry);
             }
         }
         // After collecting revisions, sort by sequence:
@@ -1230,35 +1288,60 @@ public class Router implements Database.ChangeListener {
             }
         }
 
-        RevisionList changes = db.changesSince(since, options, changesFilter);
-
-        if(changes == null) {
-            return new Status(Status.INTERNAL_SERVER_ERROR);
-        }
-
         String feed = getQuery("feed");
         longpoll = "longpoll".equals(feed);
         boolean continuous = !longpoll && "continuous".equals(feed);
 
-        if(continuous || (longpoll && changes.size() == 0)) {
-            connection.setChunked(true);
-            connection.setResponseCode(Status.OK);
-            sendResponse();
-            if(continuous) {
-                for (RevisionInternal rev : changes) {
-                    sendContinuousChange(rev);
+        ChangesIterator changes;
+        try {
+            changes = db.getChanges(since, options, changesFilter);
+        } catch (SQLException e) {
+            Log.e(Log.TAG_ROUTER, "Error looking for changes", e);
+            return new Status(Status.INTERNAL_SERVER_ERROR);
+        }
+        boolean responseSent = false;
+        try {
+            // Read the first change before responding, so that a failed query is still a 500:
+            boolean hasChanges = changes.hasNext();
+            if(continuous || (longpoll && !hasChanges)) {
+                connection.setChunked(true);
+                connection.setResponseCode(Status.OK);
+                sendResponse();
+                responseSent = true;
+                if(continuous) {
+                    while (changes.hasNext()) {
+                        sendContinuousChange(changes.next());
+                    }
                 }
-            }
-            db.addChangeListener(this);
-         // Don't close connection; more data to come
-            return new Status(0);
-        } else {
-            if(options.isIncludeConflicts()) {
-                connection.setResponseBody(new Body(responseBodyForChangesWithConflicts(changes, since)));
+                db.addChangeListener(this);
+             // Don't close connection; more data to come
+                return new Status(0);
             } else {
-                connection.setResponseBody(new Body(responseBodyForChanges(changes, since)));
+                List<RevisionInternal> revs = new ArrayList<RevisionInternal>();
+                while (changes.hasNext()) {
+                    revs.add(changes.next());
+                }
+                if(options.isIncludeConflicts()) {
+                    connection.setResponseBody(new Body(responseBodyForChangesWithConflicts(revs, since)));
+                } else {
+                    connection.setResponseBody(new Body(responseBodyForChanges(revs, since)));
+                }
+                return new Status(Status.OK);
             }
-            return new Status(Status.OK);
+        } catch (SQLException e) {
+            Log.e(Log.TAG_ROUTER, "Error reading changes", e);
+            if(!responseSent) {
+                return new Status(Status.INTERNAL_SERVER_ERROR);
+            }
+            // Too late for an error status; end the feed instead
+            try {
+                connection.getResponseOutputStream().close();
+            } catch (IOException ioe) {
+                Log.e(Log.TAG_ROUTER, "Error closing changes feed", ioe);
+            }
+            return new Status(0);
+        } finally {
+            changes.close();
         }
     }
 
@@ -1611,6 +1694,10 @@ public class Router implements Database.ChangeListener {
         String reduceSource = (String)viewProps.get("reduce");
         Reducer reduceBlock = null;
         if(reduceSource != null) {
+            // "_count", "_sum" and "_stats" are built in:
+            reduceBlock = BuiltinReducer.forName(reduceSource);
+        }
+        if(reduceSource != null && reduceBlock == null) {
             reduceBlock = View.getCompiler().compileReduce(reduceSource, language);
             if(reduceBlock == null) {
                 Log.w(Log.TAG_ROUTER, "View %s has unknown reduce function: %s", viewName, reduceBlock);
@@ -1663,20 +1750,23 @@ public class Router implements Database.ChangeListener {
             options.setKeys(keys);
         }
 
-        view.updateIndex();
+        // Like CouchDB, bring all of the design doc's views up to date at once; they share a
+        // single pass over the changed documents:
+        db.updateDesignDocIndexes(designDoc);
 
         long lastSequenceIndexed = view.getLastSequenceIndexed();
 
-        // Check for conditional GET and set response Etag header:
+        // Check for conditional GET and set response Etag header. The ETag identifies the
+        // result as the query result cache does: the view's state and the query's options.
         if(keys == null) {
-            long eTag = options.isIncludeDocs() ? db.getLastSequenceNumber() : lastSequenceIndexed;
-            if(cacheWithEtag(String.format("%d", eTag))) {
+            if(cacheWithEtag(db.getQueryResultETag(view, options, lastSequenceIndexed))) {
                 return new Status(Status.NOT_MODIFIED);
             }
         }
 
         // convert from QueryRow -> Map
-        List<QueryRow> queryRows = view.queryWithOptions(options);
+        List<QueryRow> queryRows = db.queryViewWithCache(view, options, lastSequenceIndexed);
+        boolean reduced = options.isReduce() || options.isGroup() || options.getGroupLevel() > 0;
         List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
         for (QueryRow queryRow : queryRows) {
             rows.add(queryRow.asJSONDictionary());
@@ -1689,6 +1779,9 @@ public class Router implements Database.ChangeListener {
         if(options.isUpdateSeq()) {
             responseBody.put("update_seq", lastSequenceIndexed);
         }
+        if (!reduced) {
+            addNextPageToken(responseBody, queryRows, options);
+        }
         connection.setResponseBody(new Body(responseBody));
         return new Status(Status.OK);
     }
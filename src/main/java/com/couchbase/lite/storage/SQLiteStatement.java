@@ -0,0 +1,70 @@
+/**
+ * Created by Wayne Carter.
+ *
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+/**
+ * A pre-compiled SQL statement that can be bound and executed many times.
+ *
+ * Modelled on android.database.sqlite.SQLiteStatement. Bind indexes are 1-based. Bindings
+ * stay in place until they are overwritten or clearBindings() is called.
+ *
+ * A statement is not thread-safe; callers that share one must serialize access to it.
+ */
+public interface SQLiteStatement {
+    void bindNull(int index);
+    void bindLong(int index, long value);
+    void bindDouble(int index, double value);
+    void bindString(int index, String value);
+    void bindBlob(int index, byte[] value);
+    void clearBindings();
+
+    /**
+     * Executes a statement that returns no rows (eg, CREATE / DROP).
+     */
+    void execute() throws SQLException;
+
+    /**
+     * Executes an INSERT and returns the new row ID, or -1 on failure.
+     */
+    long executeInsert() throws SQLException;
+
+    /**
+     * Executes an UPDATE or DELETE and returns the number of rows affected.
+     */
+    int executeUpdateDelete() throws SQLException;
+
+    /**
+     * Executes a query that returns a 1x1 table and returns its value as a long.
+     * Returns 0 if the query produced no rows.
+     */
+    long simpleQueryForLong() throws SQLException;
+
+    /**
+     * Executes a query that returns a 1x1 table and returns its value as a String.
+     * Returns null if the query produced no rows.
+     */
+    String simpleQueryForString() throws SQLException;
+
+    /**
+     * Executes a query with the current bindings and returns a cursor over the results.
+     * The bindings are captured when this is called, so the statement may be re-bound
+     * while the cursor is still open.
+     */
+    Cursor query() throws SQLException;
+
+    void close();
+}
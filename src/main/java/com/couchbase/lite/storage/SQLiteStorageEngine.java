@@ -16,6 +16,8 @@
 
 package com.couchbase.lite.storage;
 
+import java.util.List;
+
 public interface SQLiteStorageEngine {
     public static final int CONFLICT_NONE = 0;
     public static final int CONFLICT_IGNORE = 4;
@@ -35,5 +37,7 @@ public interface SQLiteStorageEngine {
     long insertWithOnConflict(String table, String nullColumnHack, ContentValues initialValues, int conflictAlgorithm);
     int update(String table, ContentValues values, String whereClause, String[] whereArgs);
     int delete(String table, String whereClause, String[] whereArgs);
+    SQLiteStatement compileStatement(String sql) throws SQLException;
+    int executeBatch(SQLiteStatement statement, List<Object[]> bindArgsList) throws SQLException;
     void close();
 }
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+import com.couchbase.lite.util.LruCache;
+
+import java.util.List;
+
+/**
+ * Per-connection cache of compiled statements, keyed by SQL text.
+ *
+ * Hot paths that run the same SQL over and over (doc ID lookups, revision inserts, index
+ * updates) go through here instead of rawQuery() so the statement is only parsed and planned
+ * once, and so parameters are bound with their real types rather than as strings.
+ *
+ * All binding and execution happens while holding the cache's lock, which also guarantees
+ * that a statement evicted from the LRU is never closed while another thread is using it.
+ */
+public class StatementCache {
+
+    public static final int DEFAULT_MAX_STATEMENTS = 50;
+
+    private final SQLiteStorageEngine database;
+    private final LruCache<String, SQLiteStatement> statements;
+
+    public StatementCache(SQLiteStorageEngine database) {
+        this(database, DEFAULT_MAX_STATEMENTS);
+    }
+
+    public StatementCache(SQLiteStorageEngine database, int maxStatements) {
+        this.database = database;
+        this.statements = new LruCache<String, SQLiteStatement>(maxStatements) {
+            @Override
+            protected void entryRemoved(boolean evicted, String sql, SQLiteStatement oldValue, SQLiteStatement newValue) {
+                if (oldValue != newValue) {
+                    oldValue.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Runs a query returning a single number, eg. "SELECT doc_id FROM docs WHERE docid=?".
+     * Returns 0 if there were no rows.
+     */
+    public synchronized long longForQuery(String sql, Object... args) throws SQLException {
+        return bind(sql, args).simpleQueryForLong();
+    }
+
+    /**
+     * Runs a query returning a single string. Returns null if there were no rows.
+     */
+    public synchronized String stringForQuery(String sql, Object... args) throws SQLException {
+        return bind(sql, args).simpleQueryForString();
+    }
+
+    /**
+     * Runs a query and returns a cursor over its results. The caller must close the cursor.
+     */
+    public synchronized Cursor query(String sql, Object... args) throws SQLException {
+        return bind(sql, args).query();
+    }
+
+    public synchronized void execute(String sql, Object... args) throws SQLException {
+        bind(sql, args).execute();
+    }
+
+    /**
+     * Runs an INSERT and returns the new rowid, or -1 on failure.
+     */
+    public synchronized long executeInsert(String sql, Object... args) throws SQLException {
+        return bind(sql, args).executeInsert();
+    }
+
+    /**
+     * Runs an UPDATE or DELETE and returns the number of rows changed.
+     */
+    public synchronized int executeUpdateDelete(String sql, Object... args) throws SQLException {
+        return bind(sql, args).executeUpdateDelete();
+    }
+
+    /**
+     * Executes the same statement once per element of bindArgsList, letting the storage
+     * engine step through all of them without re-preparing. Should be called inside a
+     * transaction. Returns the total number of rows changed.
+     */
+    public synchronized int executeBatch(String sql, List<Object[]> bindArgsList) throws SQLException {
+        if (bindArgsList.isEmpty()) {
+            return 0;
+        }
+        return database.executeBatch(statement(sql), bindArgsList);
+    }
+
+    /**
+     * Closes all cached statements. Must be called before the underlying connection is closed.
+     */
+    public synchronized void close() {
+        statements.evictAll();
+    }
+
+    public int hitCount() {
+        return statements.hitCount();
+    }
+
+    public int missCount() {
+        return statements.missCount();
+    }
+
+    private SQLiteStatement statement(String sql) throws SQLException {
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = database.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private SQLiteStatement bind(String sql, Object[] args) throws SQLException {
+        SQLiteStatement statement = statement(sql);
+        statement.clearBindings();
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                bindArg(statement, i + 1, args[i]);
+            }
+        }
+        return statement;
+    }
+
+    /**
+     * Binds a Java value with its natural SQLite type. Used by storage engines implementing
+     * executeBatch() as well as by this class.
+     */
+    public static void bindArg(SQLiteStatement statement, int index, Object arg) {
+        if (arg == null) {
+            statement.bindNull(index);
+        } else if (arg instanceof Long || arg instanceof Integer || arg instanceof Short || arg instanceof Byte) {
+            statement.bindLong(index, ((Number) arg).longValue());
+        } else if (arg instanceof Double || arg instanceof Float) {
+            statement.bindDouble(index, ((Number) arg).doubleValue());
+        } else if (arg instanceof Boolean) {
+            statement.bindLong(index, ((Boolean) arg) ? 1 : 0);
+        } else if (arg instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) arg);
+        } else {
+            statement.bindString(index, arg.toString());
+        }
+    }
+}
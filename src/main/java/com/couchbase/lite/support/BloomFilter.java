@@ -0,0 +1,70 @@
+package com.couchbase.lite.support;
+
+/**
+ * A simple Bloom filter over strings, used to answer "definitely not present" without a
+ * database lookup. False positives are possible (at roughly the requested rate while no more
+ * than expectedInsertions items have been added); false negatives are not.
+ */
+public class BloomFilter {
+
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashes;
+    private final int capacity;
+    private int count;
+
+    public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+        capacity = Math.max(expectedInsertions, 1);
+        double ln2 = Math.log(2);
+        int m = (int) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        numBits = Math.max(m, 64);
+        numHashes = Math.max(1, (int) Math.round((double) numBits / capacity * ln2));
+        bits = new long[(numBits + 63) / 64];
+    }
+
+    public synchronized void add(String item) {
+        int h1 = item.hashCode();
+        int h2 = secondaryHash(item);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            bits[bit >>> 6] |= (1L << (bit & 63));
+        }
+        count++;
+    }
+
+    public synchronized boolean mightContain(String item) {
+        int h1 = item.hashCode();
+        int h2 = secondaryHash(item);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits[bit >>> 6] & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true once more items have been added than the filter was sized for, meaning
+     * the false positive rate is climbing and the filter should be rebuilt larger.
+     */
+    public synchronized boolean isSaturated() {
+        return count > capacity;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * FNV-1a, forced odd so that successive probes never collapse onto the same bit.
+     */
+    private static int secondaryHash(String item) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < item.length(); i++) {
+            hash ^= item.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash | 1;
+    }
+}
@@ -0,0 +1,237 @@
+package com.couchbase.lite.support;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binary encoding of JSON values that sorts the same way as the values do, when the
+ * encodings are compared as unsigned bytes (memcmp, SQLite's BINARY collation):
+ * null &lt; false &lt; true &lt; numbers &lt; strings &lt; arrays &lt; objects. Numbers compare by
+ * exact value (as JsonCollator compares them), strings by Unicode code point (like the
+ * JSON_ASCII collation), and arrays and objects item by item, a shorter one coming before a
+ * longer one that it's a prefix of.
+ *
+ * Each value starts with a type tag. Numbers are the 8 bytes of a double, big-endian, with the
+ * sign bit flipped (and every bit flipped, for negative numbers), then 2 bytes holding the
+ * difference between an integer and that double, offset by 0x8000: integral Longs beyond 2^53
+ * can't all be held exactly by a double, and this keeps them apart and in order (see
+ * roundingRemainder()). Other numbers have a difference of 0. Strings are UTF-8 with 0x00
+ * and 0x01 escaped as 0x01 0x01 and 0x01 0x02, terminated by 0x00. Arrays and objects are their
+ * items (an object's keys being tagged strings) followed by 0x00, which is below every tag.
+ */
+public class CollatableKey {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte END = 0x00;
+    private static final byte ESCAPE = 0x01;
+    private static final byte NULL = 0x10;
+    private static final byte FALSE = 0x20;
+    private static final byte TRUE = 0x30;
+    private static final byte NUMBER = 0x40;
+    private static final byte STRING = 0x50;
+    private static final byte ARRAY = 0x60;
+    private static final byte OBJECT = 0x70;
+
+    // Doubles with no fractional part in [-2^63, 2^63) decode as Longs:
+    private static final double TWO_TO_THE_63 = 9223372036854775808.0;
+
+    // Added to the remainder of an encoded number to make it unsigned:
+    private static final int REMAINDER_OFFSET = 0x8000;
+
+    /**
+     * Encodes a value parsed from JSON: null, a Boolean, Number, String, List, array or Map
+     * (with String keys). Throws IllegalArgumentException for anything else.
+     */
+    public static byte[] encode(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        write(out, value);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes the output of encode(). Numbers with no fractional part that fit in a long come
+     * back as Longs (so an emitted 2.0 decodes as 2) and others as Doubles; maps keep their
+     * order.
+     */
+    public static Object decode(byte[] bytes) {
+        int[] position = new int[] { 0 };
+        Object value = read(bytes, position);
+        if (position[0] != bytes.length) {
+            throw new IllegalArgumentException("Trailing bytes after collatable key");
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void write(ByteArrayOutputStream out, Object value) {
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof Boolean) {
+            out.write(((Boolean) value) ? TRUE : FALSE);
+        } else if (value instanceof Number) {
+            out.write(NUMBER);
+            writeNumber(out, (Number) value);
+        } else if (value instanceof String) {
+            out.write(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof List) {
+            out.write(ARRAY);
+            for (Object item : (List<Object>) value) {
+                write(out, item);
+            }
+            out.write(END);
+        } else if (value instanceof Object[]) {
+            out.write(ARRAY);
+            for (Object item : (Object[]) value) {
+                write(out, item);
+            }
+            out.write(END);
+        } else if (value instanceof Map) {
+            out.write(OBJECT);
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+                if (!(entry.getKey() instanceof String)) {
+                    throw new IllegalArgumentException("Map key is not a string: " + entry.getKey());
+                }
+                out.write(STRING);
+                writeString(out, (String) entry.getKey());
+                write(out, entry.getValue());
+            }
+            out.write(END);
+        } else {
+            throw new IllegalArgumentException("Can't encode a " + value.getClass().getName() + " as a key");
+        }
+    }
+
+    private static void writeNumber(ByteArrayOutputStream out, Number value) {
+        double number = value.doubleValue();
+        if (number == 0.0) {
+            number = 0.0;  // -0.0 is equal to 0.0
+        }
+        long bits = Double.doubleToLongBits(number);
+        bits = (bits < 0) ? ~bits : (bits ^ Long.MIN_VALUE);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift));
+        }
+        int remainder = 0;
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            remainder = roundingRemainder(value.longValue(), number);
+        }
+        out.write((remainder + REMAINDER_OFFSET) >>> 8);
+        out.write(remainder + REMAINDER_OFFSET);
+    }
+
+    /**
+     * The difference between a long and the double it rounds to, 'rounded'. It's 0 unless the
+     * long's magnitude is over 2^53, and never more than 1024 (half the spacing of doubles near
+     * 2^63). Since rounding keeps order, numbers sort exactly by (rounded, remainder).
+     */
+    /* package */ static int roundingRemainder(long value, double rounded) {
+        if (rounded >= TWO_TO_THE_63) {
+            return (int) (value - Long.MAX_VALUE) - 1;  // (long) rounded would overflow
+        }
+        return (int) (value - (long) rounded);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String string) {
+        for (byte b : string.getBytes(UTF_8)) {
+            if (b == END || b == ESCAPE) {
+                out.write(ESCAPE);
+                out.write(b + 1);
+            } else {
+                out.write(b);
+            }
+        }
+        out.write(END);
+    }
+
+    private static Object read(byte[] bytes, int[] position) {
+        if (position[0] >= bytes.length) {
+            throw new IllegalArgumentException("Truncated collatable key");
+        }
+        byte tag = bytes[position[0]++];
+        switch (tag) {
+            case NULL:
+                return null;
+            case FALSE:
+                return Boolean.FALSE;
+            case TRUE:
+                return Boolean.TRUE;
+            case NUMBER:
+                return readNumber(bytes, position);
+            case STRING:
+                return readString(bytes, position);
+            case ARRAY: {
+                List<Object> list = new ArrayList<Object>();
+                while (peek(bytes, position) != END) {
+                    list.add(read(bytes, position));
+                }
+                position[0]++;
+                return list;
+            }
+            case OBJECT: {
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                while (peek(bytes, position) != END) {
+                    if (bytes[position[0]++] != STRING) {
+                        throw new IllegalArgumentException("Object key is not a string");
+                    }
+                    String key = readString(bytes, position);
+                    map.put(key, read(bytes, position));
+                }
+                position[0]++;
+                return map;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown tag in collatable key: " + tag);
+        }
+    }
+
+    private static byte peek(byte[] bytes, int[] position) {
+        if (position[0] >= bytes.length) {
+            throw new IllegalArgumentException("Truncated collatable key");
+        }
+        return bytes[position[0]];
+    }
+
+    private static Object readNumber(byte[] bytes, int[] position) {
+        if (position[0] + 10 > bytes.length) {
+            throw new IllegalArgumentException("Truncated collatable key");
+        }
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (bytes[position[0]++] & 0xFF);
+        }
+        bits = (bits < 0) ? (bits ^ Long.MIN_VALUE) : ~bits;
+        double number = Double.longBitsToDouble(bits);
+        int remainder = ((bytes[position[0]] & 0xFF) << 8 | (bytes[position[0] + 1] & 0xFF)) - REMAINDER_OFFSET;
+        position[0] += 2;
+        if (remainder != 0) {
+            return (number >= TWO_TO_THE_63) ? Long.MAX_VALUE + (remainder + 1) : (long) number + remainder;
+        }
+        if (number == Math.rint(number) && number >= -TWO_TO_THE_63 && number < TWO_TO_THE_63) {
+            return (long) number;
+        }
+        return number;
+    }
+
+    private static String readString(byte[] bytes, int[] position) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (true) {
+            byte b = peek(bytes, position);
+            position[0]++;
+            if (b == END) {
+                break;
+            } else if (b == ESCAPE) {
+                out.write(peek(bytes, position) - 1);
+                position[0]++;
+            } else {
+                out.write(b);
+            }
+        }
+        return new String(out.toByteArray(), UTF_8);
+    }
+}
@@ -0,0 +1,424 @@
+package com.couchbase.lite.support;
+
+import java.nio.charset.Charset;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compares two JSON values in their UTF-8 encoded form, implementing the JSON, JSON_ASCII and
+ * JSON_RAW collations that view indexes are sorted by (see View.TDViewCollation).
+ *
+ * The values are walked token by token, side by side, and the comparison stops at the first
+ * difference, so neither is parsed into objects. Only numbers that aren't small integers, and
+ * strings with non-ASCII characters under Unicode collation, allocate anything.
+ *
+ * Unicode collation: null &lt; false &lt; true &lt; numbers &lt; strings &lt; arrays &lt; objects.
+ * Numbers compare by value: exactly for integers that fit in a long, even beyond 2^53, and as
+ * doubles otherwise, the way CollatableKey orders them; ASCII characters of strings by a table approximating ICU's root
+ * collation (punctuation, then digits, then letters, with "a" &lt; "A" &lt; "b"), and the rest of
+ * a string by java.text.Collator once a non-ASCII character is reached. Arrays and objects
+ * compare item by item (an object's keys being items too), a shorter one first.
+ * ASCII collation is the same except that strings compare by code point.
+ * Raw collation orders types as numbers &lt; false &lt; null &lt; true &lt; objects &lt; arrays &lt;
+ * strings, and compares strings by code point.
+ *
+ * Instances keep state between calls and aren't thread-safe; use one per thread (a SQLite
+ * collation callback only runs on its connection's thread).
+ */
+public class JsonCollator {
+
+    public enum Mode { UNICODE, ASCII, RAW }
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    // Token types, in Unicode/ASCII collation order:
+    private static final int END = 0;          // ']', '}' or the end of the input
+    private static final int NULL = 1;
+    private static final int FALSE = 2;
+    private static final int TRUE = 3;
+    private static final int NUMBER = 4;
+    private static final int STRING = 5;
+    private static final int ARRAY = 6;
+    private static final int OBJECT = 7;
+
+    // Rank of each token type in raw collation, indexed by type:
+    private static final int[] RAW_ORDER = { 0, 3, 2, 4, 1, 7, 6, 5 };
+
+    // Integers with up to this many characters always fit in a long:
+    private static final int MAX_LONG_DIGITS = 18;
+
+    // Sort priority of each ASCII character under Unicode collation; higher is later.
+    private static final int[] CHAR_PRIORITY = new int[128];
+    static {
+        String order = "\t\n\r `^_-,;:!?.'\"()[]{}@*/\\&#%+<=>|~$0123456789"
+                + "aAbBcCdDeEfFgGhHiIjJkKlLmMnNoOpPqQrRsStTuUvVwWxXyYzZ";
+        Arrays.fill(CHAR_PRIORITY, -1);
+        // Control characters come first, in code order, then the listed ones, then DEL:
+        int priority = 0;
+        for (int c = 0; c < ' '; c++) {
+            if (order.indexOf(c) < 0) {
+                CHAR_PRIORITY[c] = priority++;
+            }
+        }
+        for (int i = 0; i < order.length(); i++) {
+            CHAR_PRIORITY[order.charAt(i)] = priority++;
+        }
+        for (int c = 0; c < CHAR_PRIORITY.length; c++) {
+            if (CHAR_PRIORITY[c] < 0) {
+                CHAR_PRIORITY[c] = priority++;
+            }
+        }
+    }
+
+    private static final ThreadLocal<JsonCollator> collators = new ThreadLocal<JsonCollator>() {
+        @Override
+        protected JsonCollator initialValue() {
+            return new JsonCollator();
+        }
+    };
+
+    private Collator unicodeCollator;
+
+    // Positions in the two inputs, and the code points decoded by nextChar1/2():
+    private int pos1;
+    private int pos2;
+    private int char1;
+    private int char2;
+    private int decodedEnd;  // position after the character decodeChar() last returned
+
+    /**
+     * Compares two UTF-8 JSON values with this thread's collator.
+     */
+    public static int compareJSON(byte[] json1, byte[] json2, Mode mode) {
+        return collators.get().compare(json1, 0, json1.length, json2, 0, json2.length, mode);
+    }
+
+    /**
+     * Compares the UTF-8 JSON values in json1[offset1 ... offset1+length1) and
+     * json2[offset2 ... offset2+length2). Returns a negative number, zero or a positive number
+     * as the first sorts before, the same as or after the second.
+     */
+    public int compare(byte[] json1, int offset1, int length1, byte[] json2, int offset2, int length2, Mode mode) {
+        int end1 = offset1 + length1;
+        int end2 = offset2 + length2;
+        pos1 = offset1;
+        pos2 = offset2;
+        int depth = 0;
+        do {
+            pos1 = skipSeparators(json1, pos1, end1);
+            pos2 = skipSeparators(json2, pos2, end2);
+            int type1 = tokenType(json1, pos1, end1);
+            int type2 = tokenType(json2, pos2, end2);
+            if (type1 != type2) {
+                if (type1 == END || type2 == END) {
+                    return type1 == END ? -1 : 1;  // a shorter array or object comes first
+                }
+                return (mode == Mode.RAW) ? compareInts(RAW_ORDER[type1], RAW_ORDER[type2])
+                        : compareInts(type1, type2);
+            }
+            switch (type1) {
+                case NULL:
+                case TRUE:
+                    pos1 += 4;
+                    pos2 += 4;
+                    break;
+                case FALSE:
+                    pos1 += 5;
+                    pos2 += 5;
+                    break;
+                case NUMBER: {
+                    int result = compareNumbers(json1, end1, json2, end2);
+                    if (result != 0) {
+                        return result;
+                    }
+                    break;
+                }
+                case STRING: {
+                    int result = compareStrings(json1, end1, json2, end2, mode);
+                    if (result != 0) {
+                        return result;
+                    }
+                    break;
+                }
+                case ARRAY:
+                case OBJECT:
+                    pos1++;
+                    pos2++;
+                    depth++;
+                    break;
+                default:  // END
+                    if (pos1 >= end1 || pos2 >= end2) {
+                        return 0;  // both inputs ended (malformed if depth > 0)
+                    }
+                    pos1++;
+                    pos2++;
+                    depth--;
+                    break;
+            }
+        } while (depth > 0);
+        return 0;
+    }
+
+    private static int skipSeparators(byte[] json, int pos, int end) {
+        while (pos < end) {
+            byte c = json[pos];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r' && c != ',' && c != ':') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int tokenType(byte[] json, int pos, int end) {
+        if (pos >= end) {
+            return END;
+        }
+        switch (json[pos]) {
+            case 'n':
+                return NULL;
+            case 'f':
+                return FALSE;
+            case 't':
+                return TRUE;
+            case '"':
+                return STRING;
+            case '[':
+                return ARRAY;
+            case '{':
+                return OBJECT;
+            case ']':
+            case '}':
+                return END;
+            default:
+                return NUMBER;
+        }
+    }
+
+    private static int compareInts(int a, int b) {
+        return (a < b) ? -1 : ((a == b) ? 0 : 1);
+    }
+
+    private static boolean isNumberChar(byte c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+    }
+
+    private int compareNumbers(byte[] json1, int end1, byte[] json2, int end2) {
+        int start1 = pos1;
+        int start2 = pos2;
+        boolean integer1 = true;
+        boolean integer2 = true;
+        while (pos1 < end1 && isNumberChar(json1[pos1])) {
+            byte c = json1[pos1++];
+            integer1 &= (c >= '0' && c <= '9') || (c == '-' && pos1 == start1 + 1);
+        }
+        while (pos2 < end2 && isNumberChar(json2[pos2])) {
+            byte c = json2[pos2++];
+            integer2 &= (c >= '0' && c <= '9') || (c == '-' && pos2 == start2 + 1);
+        }
+        if (pos1 == start1 || pos2 == start2) {
+            // Not a number at all (malformed JSON); step over it so the walk still ends:
+            pos1 = Math.max(pos1, Math.min(start1 + 1, end1));
+            pos2 = Math.max(pos2, Math.min(start2 + 1, end2));
+            return compareInts(json1[start1], json2[start2]);
+        }
+        boolean long1 = integer1 && fitsLong(json1, start1, pos1);
+        boolean long2 = integer2 && fitsLong(json2, start2, pos2);
+        if (long1 && long2) {
+            return compareLongs(parseLong(json1, start1, pos1), parseLong(json2, start2, pos2));
+        }
+        long value1 = long1 ? parseLong(json1, start1, pos1) : 0;
+        long value2 = long2 ? parseLong(json2, start2, pos2) : 0;
+        double number1 = long1 ? (double) value1 : parseDouble(json1, start1, pos1);
+        double number2 = long2 ? (double) value2 : parseDouble(json2, start2, pos2);
+        int result = Double.compare(number1, number2);
+        if (result != 0) {
+            return result;
+        }
+        // A long too big for a double to hold exactly is a little more or less than its double:
+        return compareInts(long1 ? CollatableKey.roundingRemainder(value1, number1) : 0,
+                long2 ? CollatableKey.roundingRemainder(value2, number2) : 0);
+    }
+
+    private static int compareLongs(long a, long b) {
+        return (a < b) ? -1 : ((a == b) ? 0 : 1);
+    }
+
+    private static boolean fitsLong(byte[] json, int start, int end) {
+        if (end - start <= MAX_LONG_DIGITS) {
+            return true;
+        }
+        try {
+            Long.parseLong(new String(json, start, end - start, US_ASCII));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static long parseLong(byte[] json, int start, int end) {
+        if (end - start > MAX_LONG_DIGITS) {
+            return Long.parseLong(new String(json, start, end - start, US_ASCII));
+        }
+        boolean negative = json[start] == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            value = 10 * value + (json[i] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static double parseDouble(byte[] json, int start, int end) {
+        try {
+            double value = Double.parseDouble(new String(json, start, end - start, US_ASCII));
+            return (value == 0.0) ? 0.0 : value;  // -0 equals 0
+        } catch (NumberFormatException e) {
+            return 0.0;
+        }
+    }
+
+    private int compareStrings(byte[] json1, int end1, byte[] json2, int end2, Mode mode) {
+        int start1 = pos1;
+        int start2 = pos2;
+        pos1++;  // skip the opening quotes
+        pos2++;
+        while (true) {
+            boolean more1 = nextChar1(json1, end1);
+            boolean more2 = nextChar2(json2, end2);
+            if (!more1 || !more2) {
+                if (more1 || more2) {
+                    return more1 ? 1 : -1;  // the shorter string comes first
+                }
+                return 0;
+            }
+            if (char1 == char2) {
+                continue;
+            }
+            if (mode != Mode.UNICODE) {
+                return compareInts(char1, char2);
+            } else if (char1 < 128 && char2 < 128) {
+                return compareInts(CHAR_PRIORITY[char1], CHAR_PRIORITY[char2]);
+            }
+            return compareUnicode(json1, start1, end1, json2, start2, end2);
+        }
+    }
+
+    /**
+     * Compares two whole strings with java.text.Collator; used when they differ at a non-ASCII
+     * character, which the priority table doesn't cover. The comparison is over, so pos1 is
+     * free to be used for decoding.
+     */
+    private int compareUnicode(byte[] json1, int start1, int end1, byte[] json2, int start2, int end2) {
+        if (unicodeCollator == null) {
+            unicodeCollator = Collator.getInstance(Locale.ROOT);
+        }
+        String string1 = decodeString(json1, start1, end1);
+        String string2 = decodeString(json2, start2, end2);
+        int result = unicodeCollator.compare(string1, string2);
+        return (result != 0) ? result : string1.compareTo(string2);
+    }
+
+    private String decodeString(byte[] json, int start, int end) {
+        StringBuilder string = new StringBuilder();
+        pos1 = start + 1;
+        while (nextChar1(json, end)) {
+            string.appendCodePoint(char1);
+        }
+        return string.toString();
+    }
+
+    // Decodes the next character of the first string into char1, advancing pos1, or returns
+    // false (having skipped the closing quote) at the end of the string.
+    private boolean nextChar1(byte[] json, int end) {
+        int c = decodeChar(json, pos1, end);
+        pos1 = decodedEnd;
+        char1 = c;
+        return c >= 0;
+    }
+
+    private boolean nextChar2(byte[] json, int end) {
+        int c = decodeChar(json, pos2, end);
+        pos2 = decodedEnd;
+        char2 = c;
+        return c >= 0;
+    }
+
+    /**
+     * Decodes the code point at json[pos], handling UTF-8 sequences and backslash escapes
+     * (including UTF-16 surrogate pairs written as two \\u escapes). Sets decodedEnd to the
+     * position after it. Returns -1 at the closing quote (or the end of the input).
+     */
+    private int decodeChar(byte[] json, int pos, int end) {
+        if (pos >= end) {
+            decodedEnd = end;
+            return -1;
+        }
+        int c = json[pos] & 0xFF;
+        if (c == '"') {
+            decodedEnd = pos + 1;
+            return -1;
+        }
+        if (c == '\\' && pos + 1 < end) {
+            byte escaped = json[pos + 1];
+            decodedEnd = pos + 2;
+            switch (escaped) {
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u': {
+                    int unit = parseHex4(json, pos + 2, end);
+                    decodedEnd = Math.min(pos + 6, end);
+                    if (Character.isHighSurrogate((char) unit) && decodedEnd + 1 < end
+                            && json[decodedEnd] == '\\' && json[decodedEnd + 1] == 'u') {
+                        int low = parseHex4(json, decodedEnd + 2, end);
+                        if (Character.isLowSurrogate((char) low)) {
+                            decodedEnd = Math.min(decodedEnd + 6, end);
+                            return Character.toCodePoint((char) unit, (char) low);
+                        }
+                    }
+                    return unit;
+                }
+                default:
+                    return escaped & 0xFF;  // \" \\ \/
+            }
+        }
+        if (c < 0x80) {
+            decodedEnd = pos + 1;
+            return c;
+        }
+        int length;
+        int codePoint;
+        if (c >= 0xF0) {
+            length = 4;
+            codePoint = c & 0x07;
+        } else if (c >= 0xE0) {
+            length = 3;
+            codePoint = c & 0x0F;
+        } else {
+            length = 2;
+            codePoint = c & 0x1F;
+        }
+        int i = pos + 1;
+        for (; i < pos + length && i < end; i++) {
+            codePoint = (codePoint << 6) | (json[i] & 0x3F);
+        }
+        decodedEnd = i;
+        return codePoint;
+    }
+
+    private static int parseHex4(byte[] json, int pos, int end) {
+        int value = 0;
+        for (int i = pos; i < pos + 4 && i < end; i++) {
+            value = (value << 4) | Character.digit(json[i], 16);
+        }
+        return value;
+    }
+}
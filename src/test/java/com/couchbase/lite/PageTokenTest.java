@@ -0,0 +1,109 @@
+package com.couchbase.lite;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pages through rows the way a view query does with a PageToken: seeking to the token's
+ * (key, sequence) and skipping its duplicates with OFFSET.
+ */
+public class PageTokenTest {
+
+    private static final int LIMIT = 3;
+
+    @Test
+    public void testPagingThroughMoreThanAPageOfDuplicates() {
+        // Doc 1 emits "a" once; doc 2 emits "b" seven times; doc 3 emits "b" and "c":
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        rows.add(row("doc1", 1, "a"));
+        for (int i = 0; i < 7; i++) {
+            rows.add(row("doc2", 2, "b"));
+        }
+        rows.add(row("doc3", 3, "b"));
+        rows.add(row("doc3", 3, "c"));
+        assertEquals(rows.size(), pageThrough(rows, false));
+        assertEquals(rows.size(), pageThrough(rows, true));
+    }
+
+    @Test
+    public void testPagingThroughOnlyDuplicates() {
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        for (int i = 0; i < 3 * LIMIT; i++) {
+            rows.add(row("doc1", 1, "a"));
+        }
+        assertEquals(rows.size(), pageThrough(rows, false));
+        assertEquals(rows.size(), pageThrough(rows, true));
+    }
+
+    @Test
+    public void testDuplicatesCarryOverOnlyAtTheSamePosition() {
+        PageToken previous = PageToken.afterRow(row("doc1", 1, "a"), 2, null);
+        assertEquals(5, PageToken.afterRow(row("doc1", 1, "a"), 3, previous).getDuplicates());
+        assertEquals(3, PageToken.afterRow(row("doc2", 2, "a"), 3, previous).getDuplicates());
+        assertEquals(3, PageToken.afterRow(row("doc1", 1, "b"), 3, previous).getDuplicates());
+    }
+
+    /**
+     * Reads every page, passing each next-page token through its string form, and returns the
+     * number of rows read; fails if a page doesn't pick up where the last one ended.
+     */
+    private static int pageThrough(List<QueryRow> rows, boolean streaming) {
+        PageToken token = null;
+        int read = 0;
+        for (int pages = 0; pages <= rows.size(); pages++) {
+            List<QueryRow> page = queryPage(rows, token);
+            for (QueryRow row : page) {
+                assertTrue(row == rows.get(read));
+                read++;
+            }
+            if (page.size() < LIMIT) {
+                return read;
+            }
+            PageToken next;
+            if (streaming) {
+                int duplicates = 1;
+                for (int i = page.size() - 2; i >= 0 && PageToken.isDuplicate(page.get(i), page.get(page.size() - 1)); i--) {
+                    duplicates++;
+                }
+                next = PageToken.afterRow(page.get(page.size() - 1), duplicates, token);
+            } else {
+                next = PageToken.afterRows(page, token);
+            }
+            token = PageToken.decode(next.encode());
+        }
+        throw new AssertionError("Paging didn't end");
+    }
+
+    // What View's query does with a page token: rows from the token's (key, sequence) on,
+    // less the duplicates, up to the limit
+    private static List<QueryRow> queryPage(List<QueryRow> rows, PageToken token) {
+        List<QueryRow> page = new ArrayList<QueryRow>();
+        int skip = (token != null) ? token.getDuplicates() : 0;
+        for (QueryRow row : rows) {
+            if (token != null) {
+                int order = ((String) row.getKey()).compareTo((String) token.getKey());
+                if (order < 0 || (order == 0 && row.getSequenceNumber() < token.getSequence())) {
+                    continue;
+                }
+            }
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            if (page.size() == LIMIT) {
+                break;
+            }
+            page.add(row);
+        }
+        return page;
+    }
+
+    private static QueryRow row(String docId, long sequence, String key) {
+        return new QueryRow(docId, sequence, key, null, null);
+    }
+}
@@ -0,0 +1,79 @@
+package com.couchbase.lite.support;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that CollatableKey encodings, compared bytewise, sort like JsonCollator's ASCII mode,
+ * and that they decode back to their values.
+ */
+public class CollatableKeyTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final List<String> VALUES = Arrays.asList(
+            "null", "false", "true", "\"\"", "[]", "{}", "[null]", "[[]]", "[{}]",
+            "0", "-0.0", "1", "1.5", "-1", "-1.5", "100", "1e2", "1e-3", "1e308", "-1e308",
+            "9007199254740991", "9007199254740992", "9007199254740992.0", "9007199254740993",
+            "9007199254740993.0", "9007199254740994", "-9007199254740993", "-9007199254740992",
+            "123456789012345678", "123456789012345679", "1234567890123456789", "1234567890123456790",
+            "9223372036854775806", "9223372036854775807", "9223372036854775808",
+            "-9223372036854775807", "-9223372036854775808", "-9223372036854775809",
+            "\"a\"", "\"A\"", "\"aa\"", "\"\\u0000\"", "\"\\u0001\"", "\"a\\u0000b\"", "\"\u00e9\"",
+            "\"\ud83d\ude00\"", "[1,2]", "[1,2,3]", "[9007199254740993]", "[9007199254740992,1]",
+            "{\"a\":1}", "{\"a\":9007199254740993}", "{\"a\":9007199254740992}");
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testSortsLikeJsonCollatorASCII() throws Exception {
+        for (String json1 : VALUES) {
+            byte[] key1 = CollatableKey.encode(mapper.readValue(json1, Object.class));
+            for (String json2 : VALUES) {
+                byte[] key2 = CollatableKey.encode(mapper.readValue(json2, Object.class));
+                int expected = Integer.signum(JsonCollator.compareJSON(
+                        json1.getBytes(UTF_8), json2.getBytes(UTF_8), JsonCollator.Mode.ASCII));
+                assertEquals(json1 + " vs " + json2, expected, Integer.signum(compareBytes(key1, key2)));
+            }
+        }
+    }
+
+    @Test
+    public void testLargeIntegersKeepTheirOrder() {
+        long[] values = { Long.MIN_VALUE, Long.MIN_VALUE + 1, -(1L << 53) - 1, -(1L << 53),
+                (1L << 53) - 1, 1L << 53, (1L << 53) + 1, (1L << 53) + 2,
+                Long.MAX_VALUE - 1024, Long.MAX_VALUE - 1, Long.MAX_VALUE };
+        for (int i = 1; i < values.length; i++) {
+            assertTrue(values[i - 1] + " < " + values[i],
+                    compareBytes(CollatableKey.encode(values[i - 1]), CollatableKey.encode(values[i])) < 0);
+        }
+        for (long value : values) {
+            assertEquals(value, ((Long) CollatableKey.decode(CollatableKey.encode(value))).longValue());
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        assertEquals(Arrays.asList(2L, 1.5, "a\u0000b", null, true),
+                CollatableKey.decode(CollatableKey.encode(Arrays.asList(2.0, 1.5, "a\u0000b", null, true))));
+        assertEquals(mapper.readValue("{\"b\":[true,{}],\"a\":\"\u00e9\"}", Object.class),
+                CollatableKey.decode(CollatableKey.encode(mapper.readValue("{\"b\":[true,{}],\"a\":\"\u00e9\"}", Object.class))));
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int result = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return a.length - b.length;
+    }
+}
@@ -0,0 +1,109 @@
+package com.couchbase.lite.support;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times JsonCollator against ParsedJsonCollation, the parse-and-compare way of collating JSON,
+ * on a mix of typical view keys, and reports the time and the bytes allocated per comparison.
+ * Not a unit test; run it with
+ * <pre>java -cp ... com.couchbase.lite.support.JsonCollatorBenchmark [pairs] [rounds]</pre>
+ */
+public class JsonCollatorBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] WORDS = { "apple", "Apple", "apples", "banana", "b\u00e4nana",
+            "cherry", "chocolate", "d\u00e9j\u00e0 vu", "\u4e2d\u6587", "zebra", "" };
+
+    public static void main(String[] args) throws Exception {
+        int pairs = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+
+        Random random = new Random(42);
+        List<byte[]> keys = new ArrayList<byte[]>(2 * pairs);
+        for (int i = 0; i < 2 * pairs; i++) {
+            keys.add(randomKey(random).getBytes(UTF_8));
+        }
+
+        for (JsonCollator.Mode mode : JsonCollator.Mode.values()) {
+            // The first pass over each is a warm-up for the JIT:
+            run("JsonCollator", keys, rounds, mode, false);
+            Result fast = run("JsonCollator", keys, rounds, mode, false);
+            run("ParsedJsonCollation", keys, Math.max(1, rounds / 10), mode, true);
+            Result parsed = run("ParsedJsonCollation", keys, Math.max(1, rounds / 10), mode, true);
+            System.out.println(mode + ": " + fast + "; " + parsed + String.format("; %.1fx faster",
+                    parsed.nanosPerCompare / fast.nanosPerCompare));
+        }
+    }
+
+    private static Result run(String name, List<byte[]> keys, int rounds, JsonCollator.Mode mode, boolean parse)
+            throws Exception {
+        long compares = 0;
+        long checksum = 0;
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i + 1 < keys.size(); i += 2) {
+                byte[] json1 = keys.get(i);
+                byte[] json2 = keys.get(i + 1);
+                int result = parse ? ParsedJsonCollation.compare(json1, json2, mode)
+                        : JsonCollator.compareJSON(json1, json2, mode);
+                checksum += Integer.signum(result);
+                compares++;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = allocatedBytes() - startBytes;
+        return new Result(name, (double) nanos / compares, (startBytes < 0) ? -1 : (double) bytes / compares, checksum);
+    }
+
+    // A view key: a string, a number, or an array of a string and a number or of two strings,
+    // often sharing a prefix with its neighbour so the comparison has to go past the first item
+    private static String randomKey(Random random) {
+        String word = "\"" + WORDS[random.nextInt(WORDS.length)] + "\"";
+        switch (random.nextInt(4)) {
+            case 0:
+                return word;
+            case 1:
+                return random.nextBoolean() ? Integer.toString(random.nextInt(100)) : Double.toString(random.nextDouble());
+            case 2:
+                return "[" + word + "," + random.nextInt(10) + "]";
+            default:
+                return "[" + word + ",\"" + WORDS[random.nextInt(WORDS.length)] + "\",null]";
+        }
+    }
+
+    // Bytes allocated by this thread so far, or -1 if the JVM can't tell
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static class Result {
+        final String name;
+        final double nanosPerCompare;
+        final double bytesPerCompare;
+        final long checksum;  // so the comparisons can't be optimized away
+
+        Result(String name, double nanosPerCompare, double bytesPerCompare, long checksum) {
+            this.name = name;
+            this.nanosPerCompare = nanosPerCompare;
+            this.bytesPerCompare = bytesPerCompare;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public String toString() {
+            String bytes = (bytesPerCompare < 0) ? "?" : String.format("%.1f", bytesPerCompare);
+            return String.format("%s %.0f ns, %s bytes per compare (checksum %d)", name, nanosPerCompare, bytes, checksum);
+        }
+    }
+}
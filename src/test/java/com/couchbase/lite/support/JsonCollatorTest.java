@@ -0,0 +1,126 @@
+package com.couchbase.lite.support;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks JsonCollator, which compares JSON without parsing it, against a reference collation
+ * that parses both values and compares the resulting objects (see ParsedJsonCollation).
+ */
+public class JsonCollatorTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final List<String> VALUES = Arrays.asList(
+            // Mixed types, and whitespace that shouldn't matter:
+            "null", "false", "true", "0", "\"\"", "[]", "{}",
+            "[null]", "[false]", "[true]", "[0]", "[\"\"]", "[[]]", "[{}]",
+            "[1,2]", "[ 1 , 2 ]", "[1,2,3]", "[1,\"2\"]", "[2]", "[[1],2]", "[[1,2]]",
+            "{\"a\":1}", "{ \"a\" : 1 }", "{\"a\":2}", "{\"a\":1,\"b\":2}", "{\"b\":1}",
+            "{\"a\":[1,{\"b\":null}]}", "{\"a\":[1,{\"b\":false}]}",
+            // Numbers, including ones that compare equal with different spellings:
+            "-0", "0.0", "-0.0", "1", "1.0", "1e0", "1E+0", "10e-1", "-1", "-1.5", "2.5", "3",
+            "100", "1e2", "0.001", "1e-3", "-1e-3", "1e308", "-1e308", "1e-308",
+            "9007199254740993", "123456789012345678", "123456789012345679",
+            "-123456789012345678", "1234567890123456789", "12345678901234567890",
+            // Integers beyond 2^53, which doubles can't all hold, next to doubles they round to:
+            "9007199254740992", "9007199254740992.0", "9007199254740993.0", "9007199254740994",
+            "9223372036854775806", "9223372036854775807", "9223372036854775808",
+            "9.223372036854775807e18", "-9223372036854775807", "-9223372036854775808",
+            "-9223372036854775809", "[9007199254740993,1]", "[9007199254740992,2]",
+            // ASCII strings, in and out of the priority table's order:
+            "\"a\"", "\"A\"", "\"b\"", "\"B\"", "\"aa\"", "\"ab\"", "\"aB\"", "\"a b\"",
+            "\"0\"", "\"9\"", "\"10\"", "\"-\"", "\"_\"", "\"~\"", "\"$\"", "\"Z\"", "\"z\"",
+            // Escapes, some of them spelling the same string as another value:
+            "\"\\u0041\"", "\"\\\"\"", "\"\\\\\"", "\"\\/\"", "\"/\"", "\"\\n\"", "\"\\t\"",
+            "\"\\b\"", "\"\\f\"", "\"\\r\"", "\"\\u0000\"", "\"a\\u0000\"", "\"\\u007f\"",
+            // Non-ASCII strings, as UTF-8 and as escapes:
+            "\"\u00e9\"", "\"\\u00e9\"", "\"e\"", "\"E\"", "\"f\"", "\"\u00fc\"", "\"u\"",
+            "\"\u00e9a\"", "\"e\u0301\"", "\"\u4e2d\u6587\"", "\"\\u4e2d\\u6587\"",
+            "\"\ud83d\ude00\"", "\"\\ud83d\\ude00\"", "\"\\uffff\"", "\"a\u00e9\"", "\"a\u00e9b\"",
+            "[\"\u00e9\",1]", "[\"e\",1]", "{\"\u00e9\":1}", "{\"e\":1}");
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testAgreesWithParsedCollationUnicode() throws Exception {
+        checkAllPairs(JsonCollator.Mode.UNICODE);
+    }
+
+    @Test
+    public void testAgreesWithParsedCollationASCII() throws Exception {
+        checkAllPairs(JsonCollator.Mode.ASCII);
+    }
+
+    @Test
+    public void testAgreesWithParsedCollationRaw() throws Exception {
+        checkAllPairs(JsonCollator.Mode.RAW);
+    }
+
+    @Test
+    public void testTypeOrder() {
+        assertOrdered(JsonCollator.Mode.UNICODE, "null", "false", "true", "-1", "0", "\"\"", "[]", "{}");
+        assertOrdered(JsonCollator.Mode.ASCII, "null", "false", "true", "-1", "0", "\"\"", "[]", "{}");
+        assertOrdered(JsonCollator.Mode.RAW, "-1", "0", "false", "null", "true", "{}", "[]", "\"\"");
+    }
+
+    @Test
+    public void testStringOrder() {
+        // Character by character, so "aa" < "A":
+        assertOrdered(JsonCollator.Mode.UNICODE, "\"-\"", "\"0\"", "\"a\"", "\"aa\"", "\"A\"", "\"b\"", "\"B\"");
+        assertOrdered(JsonCollator.Mode.ASCII, "\"-\"", "\"0\"", "\"A\"", "\"B\"", "\"a\"", "\"aa\"", "\"b\"");
+        assertOrdered(JsonCollator.Mode.RAW, "\"A\"", "\"B\"", "\"a\"", "\"aa\"", "\"b\"");
+    }
+
+    @Test
+    public void testEquivalentSpellings() {
+        for (JsonCollator.Mode mode : JsonCollator.Mode.values()) {
+            assertEquals(0, compare("1", "1.0", mode));
+            assertEquals(0, compare("100", "1e2", mode));
+            assertEquals(0, compare("0", "-0.0", mode));
+            assertEquals(0, compare("\"A\"", "\"\\u0041\"", mode));
+            assertEquals(0, compare("\"/\"", "\"\\/\"", mode));
+            assertEquals(0, compare("\"\ud83d\ude00\"", "\"\\ud83d\\ude00\"", mode));
+            assertEquals(0, compare("[1,2]", "[ 1 , 2 ]", mode));
+        }
+    }
+
+    @Test
+    public void testCompareWithOffsets() {
+        byte[] json1 = "xx[1,\"a\"]yy".getBytes(UTF_8);
+        byte[] json2 = "[1,\"b\"]".getBytes(UTF_8);
+        JsonCollator collator = new JsonCollator();
+        assertTrue(collator.compare(json1, 2, 7, json2, 0, json2.length, JsonCollator.Mode.UNICODE) < 0);
+        assertEquals(0, collator.compare(json1, 2, 7, json1, 2, 7, JsonCollator.Mode.UNICODE));
+    }
+
+    private void checkAllPairs(JsonCollator.Mode mode) throws Exception {
+        for (String json1 : VALUES) {
+            Object value1 = mapper.readValue(json1, Object.class);
+            for (String json2 : VALUES) {
+                Object value2 = mapper.readValue(json2, Object.class);
+                int expected = Integer.signum(ParsedJsonCollation.compareValues(value1, value2, mode));
+                int actual = Integer.signum(compare(json1, json2, mode));
+                assertEquals(mode + ": " + json1 + " vs " + json2, expected, actual);
+            }
+        }
+    }
+
+    private static int compare(String json1, String json2, JsonCollator.Mode mode) {
+        return JsonCollator.compareJSON(json1.getBytes(UTF_8), json2.getBytes(UTF_8), mode);
+    }
+
+    private static void assertOrdered(JsonCollator.Mode mode, String... values) {
+        for (int i = 1; i < values.length; i++) {
+            assertTrue(mode + ": " + values[i - 1] + " < " + values[i], compare(values[i - 1], values[i], mode) < 0);
+            assertTrue(mode + ": " + values[i] + " > " + values[i - 1], compare(values[i], values[i - 1], mode) > 0);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.couchbase.lite.support;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The collations of JsonCollator, done the straightforward way: by parsing the JSON and
+ * comparing the resulting objects. JsonCollatorTest checks JsonCollator against it, and
+ * JsonCollatorBenchmark times the two.
+ */
+public class ParsedJsonCollation {
+
+    private static final String ASCII_ORDER = "\t\n\r `^_-,;:!?.'\"()[]{}@*/\\&#%+<=>|~$0123456789"
+            + "aAbBcCdDeEfFgGhHiIjJkKlLmMnNoOpPqQrRsStTuUvVwWxXyYzZ";
+
+    private static final Collator ROOT_COLLATOR = Collator.getInstance(Locale.ROOT);
+
+    private static final List<String> TYPE_ORDER = Arrays.asList(
+            "null", "false", "true", "number", "string", "array", "object");
+    private static final List<String> RAW_TYPE_ORDER = Arrays.asList(
+            "number", "false", "null", "true", "object", "array", "string");
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Parses two UTF-8 JSON values and compares them.
+     */
+    public static int compare(byte[] json1, byte[] json2, JsonCollator.Mode mode) throws IOException {
+        return compareValues(MAPPER.readValue(json1, Object.class), MAPPER.readValue(json2, Object.class), mode);
+    }
+
+    /**
+     * Compares two parsed JSON values (as parsed by Jackson into Maps, Lists, Strings, Numbers,
+     * Booleans and nulls).
+     */
+    public static int compareValues(Object value1, Object value2, JsonCollator.Mode mode) {
+        int type1 = typeRank(value1, mode);
+        int type2 = typeRank(value2, mode);
+        if (type1 != type2) {
+            return type1 - type2;
+        }
+        if (value1 instanceof Number) {
+            return compareNumbers((Number) value1, (Number) value2);
+        } else if (value1 instanceof String) {
+            return compareStrings((String) value1, (String) value2, mode);
+        } else if (value1 instanceof List) {
+            return compareItems(((List<?>) value1).iterator(), ((List<?>) value2).iterator(), mode);
+        } else if (value1 instanceof Map) {
+            return compareItems(objectItems((Map<?, ?>) value1), objectItems((Map<?, ?>) value2), mode);
+        }
+        return 0;  // null, true or false
+    }
+
+    private static int typeRank(Object value, JsonCollator.Mode mode) {
+        return ((mode == JsonCollator.Mode.RAW) ? RAW_TYPE_ORDER : TYPE_ORDER).indexOf(typeName(value));
+    }
+
+    private static String typeName(Object value) {
+        if (value == null) {
+            return "null";
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value) ? "true" : "false";
+        } else if (value instanceof Number) {
+            return "number";
+        } else if (value instanceof String) {
+            return "string";
+        } else if (value instanceof List) {
+            return "array";
+        }
+        return "object";
+    }
+
+    // By exact value: integers that fit in a long as they are, other numbers as the doubles
+    // they parse to
+    private static int compareNumbers(Number number1, Number number2) {
+        return exactValue(number1).compareTo(exactValue(number2));
+    }
+
+    private static BigDecimal exactValue(Number number) {
+        if (number instanceof Integer || number instanceof Long) {
+            return BigDecimal.valueOf(number.longValue());
+        }
+        return new BigDecimal(number.doubleValue());
+    }
+
+    private static int compareStrings(String string1, String string2, JsonCollator.Mode mode) {
+        int i1 = 0;
+        int i2 = 0;
+        while (i1 < string1.length() && i2 < string2.length()) {
+            int c1 = string1.codePointAt(i1);
+            int c2 = string2.codePointAt(i2);
+            if (c1 != c2) {
+                if (mode != JsonCollator.Mode.UNICODE) {
+                    return c1 - c2;
+                } else if (c1 < 128 && c2 < 128) {
+                    return asciiPriority(c1) - asciiPriority(c2);
+                }
+                int result = ROOT_COLLATOR.compare(string1, string2);
+                return (result != 0) ? result : string1.compareTo(string2);
+            }
+            i1 += Character.charCount(c1);
+            i2 += Character.charCount(c2);
+        }
+        return (string1.length() - i1) - (string2.length() - i2);
+    }
+
+    // Control characters first, then the listed characters in order, then DEL
+    private static int asciiPriority(int c) {
+        int index = ASCII_ORDER.indexOf(c);
+        if (index >= 0) {
+            return 1000 + index;
+        }
+        return (c < ' ') ? c : 2000 + c;
+    }
+
+    private static int compareItems(Iterator<?> items1, Iterator<?> items2, JsonCollator.Mode mode) {
+        while (items1.hasNext() && items2.hasNext()) {
+            int result = compareValues(items1.next(), items2.next(), mode);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return (items1.hasNext() ? 1 : 0) - (items2.hasNext() ? 1 : 0);
+    }
+
+    // An object's keys and values, alternating, in order
+    private static Iterator<Object> objectItems(Map<?, ?> object) {
+        List<Object> items = new ArrayList<Object>(2 * object.size());
+        for (Map.Entry<?, ?> entry : object.entrySet()) {
+            items.add(entry.getKey());
+            items.add(entry.getValue());
+        }
+        return items.iterator();
+    }
+}